@@ -3,62 +3,39 @@ package sr.evolution.operators;
 import beast.base.evolution.tree.Node;
 import beast.base.inference.util.InputUtil;
 import sr.evolution.tree.SRTree;
-import beast.base.util.Randomizer;
-
-import java.util.ArrayList;
 
 /**
  * @author Alexandra Gavryushkina
  */
 public class LeftRightChildSwap extends SRTreeOperator {
 
+    private static final int NO_SWAPPABLE_NODE = 0;
+    private static final String[] REJECTION_REASONS = {"noSwappableNode"};
+
     @Override
     public void initAndValidate() {
     }
 
+    @Override
+    protected String[] getRejectionReasons() {
+        return REJECTION_REASONS;
+    }
+
     /**
      * @return log of Hastings Ratio, or Double.NEGATIVE_INFINITY if proposal should not be accepted *
      */
     @Override
-    public double proposal() {
+    protected double doProposal() {
 
         SRTree tree = (SRTree) InputUtil.get(treeInput, this);
 
-        // choose a random node avoiding root and leaves that are direct ancestors
-        int nodeCount = tree.getNodeCount();
-
-        Node node = null;
-
-        for (int i=0; i<5; i++) {
-            node = tree.getNode(Randomizer.nextInt(nodeCount));
-            if (!node.isLeaf() && !node.isFake() && !tree.belongToSameSRange(node.getNr(), node.getLeft().getNr())) {
-                break;
-            }
-            node = null;
+        // choose uniformly among the nodes that are neither leaves nor fake and whose left
+        // child is not in the same range, which the tree keeps in an indexed set
+        int swappableCount = tree.getSwappableNodeCount();
+        if (swappableCount == 0) {
+            return rejectProposal(NO_SWAPPABLE_NODE);
         }
-
-
-        if (node == null) {
-            ArrayList<Integer> allowableNodeIndices = new ArrayList<>();
-
-            for (int index=0; index<nodeCount; index++) {
-                Node candidateNode = tree.getNode(index);
-                //the node is not a leaf or sampled ancestor, the node is not fake, none of its children
-                // belongs to the same srange as node
-                if (!candidateNode.isLeaf() && !candidateNode.isFake() &&
-                        !tree.belongToSameSRange(index, candidateNode.getLeft().getNr()))
-                    allowableNodeIndices.add(index);
-            }
-
-            int allowableNodeCount = allowableNodeIndices.size();
-
-            if (allowableNodeCount == 0) {
-                return Double.NEGATIVE_INFINITY;
-            }
-
-            node=tree.getNode(allowableNodeIndices.get(Randomizer.nextInt(allowableNodeCount)));
-        }
-
+        Node node = tree.getNode(tree.getSwappableNodeNr(rng().nextInt(swappableCount)));
 
         Node left = node.getLeft();
         Node right = node.getRight();
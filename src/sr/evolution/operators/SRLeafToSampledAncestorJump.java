@@ -7,13 +7,10 @@ import beast.base.core.Input;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
-import beast.base.util.Randomizer;
 import sr.evolution.sranges.StratigraphicRange;
 import sr.evolution.tree.SRNode;
 import sr.evolution.tree.SRTree;
 
-import java.util.*;
-
 /**
  * @author Alexandra Gavryushkina
  * @author Ugne Stolz
@@ -32,55 +29,75 @@ public class SRLeafToSampledAncestorJump extends SRTreeOperator {
     public Input<RealParameter> rInput =
             new Input<RealParameter>("removalProbability", "The probability of an individual to be removed from the process immediately after the sampling");
 
+    private static final int NO_SINGLE_FOSSIL = 0, SIBLING_NOT_YOUNGER = 1, RANGE_BRANCH = 2, REMOVAL_PROBABILITY_ONE = 3;
+    private static final String[] REJECTION_REASONS = {"noSingleFossil", "siblingNotYounger", "rangeBranch", "removalProbabilityOne"};
+    private static final int NEAR_ZERO_BRANCH = 0, NEAR_ZERO_ROOT_BRANCH = 1, SAMPLED_ANCESTOR_IN_SIBLING_RANGE = 2;
+    private static final String[] DIAGNOSTIC_NAMES = {"nearZeroBranch", "nearZeroRootBranch", "sampledAncestorInSiblingRange"};
+
+    // size and lower bound of the rate category range, fixed by the parameter bounds
+    private int categoryCount = 1;
+    private int lowerCategory = 0;
+
     @Override
     public void initAndValidate() {
+        if (categoriesInput.get() != null) {
+            lowerCategory = categoriesInput.get().getLower();
+            categoryCount = categoriesInput.get().getUpper() - lowerCategory + 1;
+        }
     }
 
     @Override
-    public double proposal() {
+    protected String[] getRejectionReasons() {
+        return REJECTION_REASONS;
+    }
+
+    @Override
+    protected String[] getDiagnosticNames() {
+        return DIAGNOSTIC_NAMES;
+    }
+
+    @Override
+    protected double doProposal() {
 
         double newHeight, newRange, oldRange, orientationCoefficient;
         StratigraphicRange sameRange = null;
         orientationCoefficient = 1;
-        int categoryCount = 1;
-        if (categoriesInput.get() != null) {
-            categoryCount = categoriesInput.get().getUpper() - categoriesInput.get().getLower() +1;
-        }
 
         SRTree tree = (SRTree) treeInput.get();
 
-		Integer[] fitLeafNodeNrs = getFitToMoveNodeNrs(tree);
+		// single fossils are the same throughout the run, the tree builds the array once
+		int[] fitLeafNodeNrs = tree.getSingleFossilNodeNrs();
 		if (fitLeafNodeNrs.length == 0)
-			return Double.NEGATIVE_INFINITY;
+			return rejectProposal(NO_SINGLE_FOSSIL);
 
-		SRNode leaf = (SRNode) tree.getNode(fitLeafNodeNrs[Randomizer.nextInt(fitLeafNodeNrs.length)]);
+		SRNode leaf = (SRNode) tree.getNode(fitLeafNodeNrs[rng().nextInt(fitLeafNodeNrs.length)]);
         SRNode parent = (SRNode) leaf.getParent();
         if (Math.abs(leaf.getHeight()-parent.getHeight())>0 && Math.abs(leaf.getHeight()-parent.getHeight())<0.00000005){
-            System.out.println("");
+            countDiagnostic(NEAR_ZERO_BRANCH);
         }
 
         if (leaf.isDirectAncestor()) {
             oldRange = 1;
             if (parent.isRoot()) {
-                final double randomNumber = Randomizer.nextExponential(1);
+                final double randomNumber = rng().nextExponential(1);
                 if (randomNumber<0.00000005)
-                    System.out.println("");
+                    countDiagnostic(NEAR_ZERO_ROOT_BRANCH);
                 newHeight = parent.getHeight() + randomNumber;
                 newRange = Math.exp(randomNumber);
             } else {
                 newRange = parent.getParent().getHeight() - parent.getHeight();
-                newHeight = parent.getHeight() + Randomizer.nextDouble() * newRange;
+                newHeight = parent.getHeight() + rng().nextDouble() * newRange;
             }
 
             if (categoriesInput.get() != null) {
                 int index = leaf.getNr();
-                int newValue = Randomizer.nextInt(categoryCount) + categoriesInput.get().getLower(); // from 0 to n-1, n must > 0,
+                int newValue = rng().nextInt(categoryCount) + lowerCategory; // from 0 to n-1, n must > 0,
                 categoriesInput.get().setValue(index, newValue);
             }
 
             SRNode otherChild = (SRNode) getOtherChild(parent,leaf);
             sameRange = tree.getSharedRange(otherChild.getNr(),leaf.getNr());
-            if (sameRange==null && Randomizer.nextBoolean()){
+            if (sameRange==null && rng().nextBoolean()){
                 parent.removeAllChildren(true);
                 parent.addChild(leaf);
                 parent.addChild(otherChild);
@@ -99,7 +116,7 @@ public class SRLeafToSampledAncestorJump extends SRTreeOperator {
             SRNode otherChild = (SRNode) getOtherChild(parent,leaf);
             //make sure that the branch where a new sampled node to appear is not above that sampled node
             if (otherChild.getHeight() >= leaf.getHeight() )
-                return Double.NEGATIVE_INFINITY;
+                return rejectProposal(SIBLING_NOT_YOUNGER);
 
             if (parent.isRoot()) {
                 oldRange = Math.exp(parent.getHeight() - leaf.getHeight());
@@ -107,7 +124,7 @@ public class SRLeafToSampledAncestorJump extends SRTreeOperator {
                 int siblingNr =  getOtherChild(parent, leaf).getNr();
                 int grandParentNr =   parent.getParent().getNr();
                 if (tree.belongToSameSRange(siblingNr,grandParentNr))
-                    return Double.NEGATIVE_INFINITY;
+                    return rejectProposal(RANGE_BRANCH);
 
                 oldRange = parent.getParent().getHeight() - leaf.getHeight();
             }
@@ -127,9 +144,9 @@ public class SRLeafToSampledAncestorJump extends SRTreeOperator {
             if (sameRange == null) {
                 orientationCoefficient *= 0.5;
             } else {
-                System.out.println("There is a bug in the SRLeafToSampledAncestorJump operator. " +
+                return inconsistency(SAMPLED_ANCESTOR_IN_SIBLING_RANGE, "leaf " + leaf.getID() +
+                        " is in the same range as its sibling and cannot become a sampled ancestor. " +
                         "Please report this to the developers!");
-                System.exit(1);
             }
             leafRange.removeNodeNr(tree, parent.getNr());
             parent.makeAllDirty(Tree.IS_FILTHY);
@@ -138,18 +155,9 @@ public class SRLeafToSampledAncestorJump extends SRTreeOperator {
 
         //make sure that either there are no direct ancestors or r<1
         if ((rInput.get() != null) && (tree.getDirectAncestorNodeCount() > 0 && rInput.get().getValue() == 1))  {
-            return Double.NEGATIVE_INFINITY;
+            return rejectProposal(REMOVAL_PROBABILITY_ONE);
         }
 
         return Math.log(orientationCoefficient*newRange/oldRange);
     }
-
-	private Integer[] getFitToMoveNodeNrs(SRTree tree) {
-		Set<Integer> fitNodeNrs = new HashSet<Integer>();
-        for (StratigraphicRange range : tree.getSRanges()){
-            if (range.isSingleFossilRange())
-                fitNodeNrs.add(range.getNodeNrs().get(0));
-        }
-		return fitNodeNrs.toArray(new Integer[0]);
-	}
 }
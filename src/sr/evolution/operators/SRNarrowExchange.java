@@ -0,0 +1,85 @@
+package sr.evolution.operators;
+
+import beast.base.core.Description;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.util.InputUtil;
+import sr.evolution.tree.SRTree;
+
+/**
+ * Narrow exchange for the sRange tree. A grandparent gp is drawn uniformly from all nodes; its
+ * older child p and younger child u (the uncle) are taken, and a child c of p drawn uniformly is
+ * exchanged with u, each node taking the place of the other. Only speciation events without a
+ * sampled ancestor are involved: gp and p must be neither leaves nor fake, and neither u nor c
+ * may continue the range of its parent, so all range chains and orientations are kept.
+ *
+ * After the exchange p is still the older child of gp and u is a child of p that does not
+ * continue its range, so every accepted move can be reversed with the same probability and
+ * the Hastings ratio is 1.
+ */
+@Description("Narrow exchange of an uncle and a nephew that keeps the stratigraphic ranges and orientation.")
+public class SRNarrowExchange extends SRTreeOperator {
+
+    private static final int NOT_SPECIATION = 0, PARENT_NOT_SPECIATION = 1, RANGE_CONTINUED = 2;
+    private static final String[] REJECTION_REASONS = {"notSpeciation", "parentNotSpeciation", "rangeContinued"};
+
+    @Override
+    public void initAndValidate() {
+    }
+
+    @Override
+    protected String[] getRejectionReasons() {
+        return REJECTION_REASONS;
+    }
+
+    /**
+     * @return log of Hastings Ratio, or Double.NEGATIVE_INFINITY if proposal should not be accepted *
+     */
+    @Override
+    protected double doProposal() {
+
+        SRTree tree = (SRTree) InputUtil.get(treeInput, this);
+
+        Node gp = tree.getNode(rng().nextInt(tree.getNodeCount()));
+        if (gp.isLeaf() || gp.isFake() || gp.getChildCount() != 2) {
+            return rejectProposal(NOT_SPECIATION);
+        }
+
+        Node p = gp.getLeft();
+        Node u = gp.getRight();
+        if (u.getHeight() > p.getHeight()) {
+            p = gp.getRight();
+            u = gp.getLeft();
+        }
+        if (p.isLeaf() || p.isFake() || p.getChildCount() != 2 || !(u.getHeight() < p.getHeight())) {
+            return rejectProposal(PARENT_NOT_SPECIATION);
+        }
+
+        Node c = rng().nextBoolean() ? p.getLeft() : p.getRight();
+        if (tree.belongToSameSRange(gp.getNr(), u.getNr()) || tree.belongToSameSRange(p.getNr(), c.getNr())) {
+            return rejectProposal(RANGE_CONTINUED);
+        }
+
+        tree.startEditing(this);
+        // each node takes the place of the other, so left (ancestor) and right (descendant) are kept
+        if (gp.getLeft() == u) {
+            gp.setLeft(c);
+        } else {
+            gp.setRight(c);
+        }
+        if (p.getLeft() == c) {
+            p.setLeft(u);
+        } else {
+            p.setRight(u);
+        }
+        c.setParent(gp);
+        u.setParent(p);
+
+        gp.makeDirty(Tree.IS_FILTHY);
+        p.makeDirty(Tree.IS_FILTHY);
+        c.makeDirty(Tree.IS_FILTHY);
+        u.makeDirty(Tree.IS_FILTHY);
+
+        return 0.0;
+    }
+}
@@ -0,0 +1,35 @@
+package sr.evolution.operators;
+
+import sr.evolution.sranges.StratigraphicRange;
+import sr.evolution.tree.SRNode;
+import sr.evolution.tree.SRTree;
+
+/**
+ * Thrown by an SR operator in strict mode when it finds the tree in a state it cannot handle.
+ * The message holds the full tree state, Newick with node numbers and the node numbers of
+ * every range, so that the failing proposal can be reproduced.
+ */
+public class SROperatorException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SROperatorException(String message, SRTree tree) {
+        super(message + "\n" + describe(tree));
+    }
+
+    /**
+     * @return Newick string of the tree with all node numbers, and the node numbers of its ranges
+     */
+    public static String describe(SRTree tree) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("Tree ").append(tree.getID()).append(": ");
+        buf.append(((SRNode) tree.getRoot()).toShortNewickForLog(true)).append(";");
+        if (tree.getSRanges() != null) {
+            for (StratigraphicRange range : tree.getSRanges()) {
+                buf.append("\nRange ").append(range.getFirstOccurrenceID()).append("-")
+                        .append(range.getLastOccurrenceID()).append(": ").append(range.getNodeNrs());
+            }
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,72 @@
+package sr.evolution.operators;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Logs the statistics SRTreeOperator collects for each operator, cumulative since the start
+ * of the run: number of proposals, acceptance rate, mean and maximum wall-clock time per
+ * proposal, early rejections by reason, for operators with a retry loop the mean and maximum
+ * number of retries, and
+ * the counts of edge cases and inconsistencies the operators ran into.
+ * Cost per proposal and acceptance rate together give the accepted moves per second an
+ * operator buys, which is what operator weights should be tuned for.
+ */
+@Description("Logs proposal counts, timing, acceptance and early rejections by reason of SR tree operators.")
+public class SROperatorLogger extends BEASTObject implements Loggable {
+
+    final public Input<List<SRTreeOperator>> operatorsInput = new Input<>("operator",
+            "SR tree operator to report on", new ArrayList<>(), Input.Validate.REQUIRED);
+
+    @Override
+    public void initAndValidate() {
+    }
+
+    private static String prefix(SRTreeOperator operator) {
+        return (operator.getID() == null ? operator.getClass().getSimpleName() : operator.getID()) + ".";
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        for (SRTreeOperator operator : operatorsInput.get()) {
+            SROperatorStatistics statistics = operator.getStatistics();
+            String prefix = prefix(operator);
+            out.print(prefix + "proposals\t" + prefix + "acceptance\t" + prefix + "meanMicros\t" + prefix + "maxMicros\t");
+            for (int r = 0; r < statistics.getRejectionReasonCount(); r++)
+                out.print(prefix + "rejected." + statistics.getRejectionReason(r) + "\t");
+            if (statistics.countsRetries())
+                out.print(prefix + "meanRetries\t" + prefix + "maxRetries\t");
+            for (int d = 0; d < statistics.getDiagnosticCount(); d++)
+                out.print(prefix + "diagnostic." + statistics.getDiagnosticName(d) + "\t");
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        for (SRTreeOperator operator : operatorsInput.get()) {
+            SROperatorStatistics statistics = operator.getStatistics();
+            long accepted = operator.get_m_nNrAccepted();
+            long decided = accepted + operator.get_m_nNrRejected();
+            out.print(statistics.getProposalCount() + "\t");
+            out.print((decided == 0 ? Double.NaN : (double) accepted / decided) + "\t");
+            out.print(statistics.getMeanMicros() + "\t");
+            out.print(statistics.getMaxMicros() + "\t");
+            for (int r = 0; r < statistics.getRejectionReasonCount(); r++)
+                out.print(statistics.getRejectionCount(r) + "\t");
+            if (statistics.countsRetries())
+                out.print(statistics.getMeanRetries() + "\t" + statistics.getMaxRetries() + "\t");
+            for (int d = 0; d < statistics.getDiagnosticCount(); d++)
+                out.print(statistics.getDiagnosticCount(d) + "\t");
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+    }
+}
@@ -0,0 +1,136 @@
+package sr.evolution.operators;
+
+import java.util.Arrays;
+
+/**
+ * Counters of one SR operator: number of proposals and time spent in them, proposals rejected
+ * before the posterior is evaluated, by reason, the iterations of retry loops, and diagnostics,
+ * i.e. edge cases and inconsistencies the operator ran into, by name. Updated by
+ * SRTreeOperator on every proposal; an operator belongs to one chain, so no synchronisation
+ * is needed.
+ */
+public class SROperatorStatistics {
+
+    private final String[] rejectionReasons;
+    private final long[] rejections;
+    private final boolean countsRetries;
+    private final String[] diagnosticNames;
+    private final long[] diagnostics;
+
+    private long proposals;
+    private long nanos;
+    private long maxNanos;
+    private long retries;
+    private long maxRetries;
+
+    /**
+     * @param rejectionReasons names of the reasons for early rejection, in the order of their indices
+     * @param countsRetries    true if the operator reports retry loop iterations
+     * @param diagnosticNames  names of the diagnostics, in the order of their indices
+     */
+    public SROperatorStatistics(String[] rejectionReasons, boolean countsRetries, String[] diagnosticNames) {
+        this.rejectionReasons = rejectionReasons.clone();
+        this.rejections = new long[rejectionReasons.length];
+        this.countsRetries = countsRetries;
+        this.diagnosticNames = diagnosticNames.clone();
+        this.diagnostics = new long[diagnosticNames.length];
+    }
+
+    void addProposal(long proposalNanos) {
+        proposals++;
+        nanos += proposalNanos;
+        if (proposalNanos > maxNanos)
+            maxNanos = proposalNanos;
+    }
+
+    void addRejection(int reason) {
+        rejections[reason]++;
+    }
+
+    void addRetries(int count) {
+        retries += count;
+        if (count > maxRetries)
+            maxRetries = count;
+    }
+
+    void addDiagnostic(int diagnostic) {
+        diagnostics[diagnostic]++;
+    }
+
+    public void reset() {
+        proposals = nanos = maxNanos = retries = maxRetries = 0;
+        Arrays.fill(rejections, 0);
+        Arrays.fill(diagnostics, 0);
+    }
+
+    public long getProposalCount() {
+        return proposals;
+    }
+
+    /**
+     * @return total wall-clock time spent in proposals, in nanoseconds
+     */
+    public long getTotalNanos() {
+        return nanos;
+    }
+
+    public double getMeanMicros() {
+        return proposals == 0 ? Double.NaN : nanos / 1e3 / proposals;
+    }
+
+    public double getMaxMicros() {
+        return maxNanos / 1e3;
+    }
+
+    public int getRejectionReasonCount() {
+        return rejectionReasons.length;
+    }
+
+    public String getRejectionReason(int reason) {
+        return rejectionReasons[reason];
+    }
+
+    public long getRejectionCount(int reason) {
+        return rejections[reason];
+    }
+
+    /**
+     * @return proposals rejected early for any reason
+     */
+    public long getRejectionCount() {
+        long count = 0;
+        for (long r : rejections)
+            count += r;
+        return count;
+    }
+
+    public boolean countsRetries() {
+        return countsRetries;
+    }
+
+    /**
+     * @return mean number of retry loop iterations per proposal
+     */
+    public double getMeanRetries() {
+        return proposals == 0 ? Double.NaN : (double) retries / proposals;
+    }
+
+    public long getMaxRetries() {
+        return maxRetries;
+    }
+
+    public int getDiagnosticCount() {
+        return diagnosticNames.length;
+    }
+
+    public String getDiagnosticName(int diagnostic) {
+        return diagnosticNames[diagnostic];
+    }
+
+    /**
+     * @return how often the operator ran into the given diagnostic
+     */
+    public long getDiagnosticCount(int diagnostic) {
+        return diagnostics[diagnostic];
+    }
+}
@@ -0,0 +1,237 @@
+package sr.evolution.operators;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.util.InputUtil;
+import sr.evolution.sranges.StratigraphicRange;
+import sr.evolution.tree.SRTree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Subtree slide for the sRange tree. A node i is drawn uniformly from all nodes and its parent iP,
+ * a speciation event without a sampled ancestor whose child i does not continue its range, is
+ * moved by a uniform step of at most size, taking the subtree of i along. Moving up, iP is
+ * regrafted on the branch of its ancestors that spans the new height; moving down below its
+ * other child CiP, on a branch of the subtree of CiP chosen uniformly among those that span it.
+ *
+ * Ranges are kept intact: if iP continued a range on CiP it leaves that range, and if the new
+ * branch belongs to a range, iP joins it with the range continuing on the left and i on the
+ * right. On other branches i is placed on either side with probability 1/2, which enters the
+ * Hastings ratio together with the number of branches to choose from.
+ */
+@Description("Subtree slide that moves the parent of a subtree up or down the tree, joining and leaving " +
+        "stratigraphic ranges where the new or old branch is part of a range.")
+public class SRSubtreeSlide extends SRTreeOperator {
+
+    final public Input<Double> sizeInput = new Input<>("size", "maximum distance the parent of the subtree is moved", 1.0);
+    final public Input<Boolean> optimiseInput = new Input<>("optimise", "flag to indicate that the size should be optimised", true);
+
+    private static final int NOT_SPECIATION = 0, RANGE_CONTINUED = 1, BELOW_SUBTREE = 2, NO_BRANCH = 3;
+    private static final String[] REJECTION_REASONS = {"notSpeciation", "rangeContinued", "belowSubtree", "noBranch"};
+
+    private double size;
+
+    @Override
+    public void initAndValidate() {
+        size = sizeInput.get();
+        if (!(size > 0)) {
+            throw new IllegalArgumentException("size must be positive, not " + size);
+        }
+    }
+
+    @Override
+    protected String[] getRejectionReasons() {
+        return REJECTION_REASONS;
+    }
+
+    /**
+     * @return log of Hastings Ratio, or Double.NEGATIVE_INFINITY if proposal should not be accepted *
+     */
+    @Override
+    protected double doProposal() {
+
+        SRTree tree = (SRTree) InputUtil.get(treeInput, this);
+
+        Node i = tree.getNode(rng().nextInt(tree.getNodeCount()));
+        Node iP = i.getParent();
+        if (iP == null || iP.isFake() || iP.getChildCount() != 2) {
+            return rejectProposal(NOT_SPECIATION);
+        }
+        if (tree.belongToSameSRange(iP.getNr(), i.getNr())) {
+            return rejectProposal(RANGE_CONTINUED);
+        }
+        Node CiP = getOtherChild(iP, i);
+
+        final double oldHeight = iP.getHeight();
+        final double newHeight = oldHeight + (2.0 * rng().nextDouble() - 1.0) * size;
+        if (newHeight <= i.getHeight()) {
+            return rejectProposal(BELOW_SUBTREE);
+        }
+
+        Node newChild;
+        double logHastingsRatio;
+        if (newHeight > oldHeight) {
+            newChild = iP;
+            Node newParent = iP.getParent();
+            while (newParent != null && newParent.getHeight() < newHeight) {
+                newChild = newParent;
+                newParent = newParent.getParent();
+            }
+            if (newChild == iP) {
+                // still below the old grandparent, only the height changes
+                iP.setHeight(newHeight);
+                return 0.0;
+            }
+            // the reverse move chooses among the branches below newChild spanning the old height,
+            // counted once iP is regrafted
+            logHastingsRatio = Double.NaN;
+        } else {
+            if (newHeight > CiP.getHeight()) {
+                iP.setHeight(newHeight);
+                return 0.0;
+            }
+            List<Node> destinations = new ArrayList<>();
+            intersectingEdges(CiP, newHeight, destinations);
+            if (destinations.isEmpty()) {
+                return rejectProposal(NO_BRANCH);
+            }
+            newChild = destinations.get(rng().nextInt(destinations.size()));
+            logHastingsRatio = Math.log(destinations.size());
+        }
+
+        // classify the old and the new branch before changing the tree structure
+        StratigraphicRange pruningRange = tree.getSharedRange(iP.getNr(), CiP.getNr());
+        StratigraphicRange attachingRange = newChild.getParent() == null ? null
+                : tree.getSharedRange(newChild.getParent().getNr(), newChild.getNr());
+
+        tree.startEditing(this);
+        prune(tree, iP, CiP);
+        boolean iRight = attachingRange != null || rng().nextBoolean();
+        regraft(tree, iP, i, newChild, iRight);
+        iP.setHeight(newHeight);
+
+        if (pruningRange != null) {
+            pruningRange.removeNodeNr(tree, iP.getNr());
+        }
+        if (attachingRange != null) {
+            attachingRange.addNodeNrAfter(tree, iP.getParent().getNr(), iP.getNr());
+        }
+
+        if (Double.isNaN(logHastingsRatio)) {
+            logHastingsRatio = -Math.log(intersectingEdges(newChild, oldHeight, null));
+        }
+        // the orientation of i is random on branches outside ranges, in both directions
+        if (pruningRange == null) {
+            logHastingsRatio += Math.log(0.5);
+        }
+        if (attachingRange == null) {
+            logHastingsRatio -= Math.log(0.5);
+        }
+        return logHastingsRatio;
+    }
+
+    /**
+     * Removes iP from between its parent and CiP; CiP takes the place of iP.
+     */
+    private void prune(SRTree tree, Node iP, Node CiP) {
+        Node PiP = iP.getParent();
+        if (PiP != null) {
+            if (PiP.getLeft() == iP) {
+                PiP.setLeft(CiP);
+            } else {
+                PiP.setRight(CiP);
+            }
+            CiP.setParent(PiP);
+            PiP.makeDirty(Tree.IS_FILTHY);
+        } else {
+            CiP.setParent(null);
+            tree.setRootOnly(CiP);
+        }
+        CiP.makeDirty(Tree.IS_FILTHY);
+    }
+
+    /**
+     * Inserts iP on the branch above newChild, with children newChild and i.
+     *
+     * @param iRight true if i becomes the right (descendant) child
+     */
+    private void regraft(SRTree tree, Node iP, Node i, Node newChild, boolean iRight) {
+        Node newParent = newChild.getParent();
+        if (newParent != null) {
+            if (newParent.getLeft() == newChild) {
+                newParent.setLeft(iP);
+            } else {
+                newParent.setRight(iP);
+            }
+            iP.setParent(newParent);
+            newParent.makeDirty(Tree.IS_FILTHY);
+        } else {
+            iP.setParent(null);
+            tree.setRootOnly(iP);
+        }
+        newChild.setParent(iP);
+        if (iRight) {
+            iP.setLeft(newChild);
+            iP.setRight(i);
+        } else {
+            iP.setLeft(i);
+            iP.setRight(newChild);
+        }
+        iP.makeDirty(Tree.IS_FILTHY);
+        newChild.makeDirty(Tree.IS_FILTHY);
+    }
+
+    /**
+     * Counts the branches in the subtree of node that span the given height, i.e. those of nodes
+     * below it whose parent is above it. Branches of sampled ancestors have length zero and
+     * never do.
+     *
+     * @param node         root of the subtree, above height
+     * @param height       height to cross
+     * @param destinations if not null, collects the nodes below the branches
+     * @return number of branches
+     */
+    private static int intersectingEdges(Node node, double height, List<Node> destinations) {
+        int count = 0;
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            Node n = stack.pop();
+            if (n.getHeight() < height) {
+                if (n != node) {
+                    count++;
+                    if (destinations != null)
+                        destinations.add(n);
+                }
+                continue;
+            }
+            for (Node child : n.getChildren()) {
+                stack.push(child);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public double getCoercableParameterValue() {
+        return size;
+    }
+
+    @Override
+    public void setCoercableParameterValue(double value) {
+        size = value;
+    }
+
+    @Override
+    public void optimize(double logAlpha) {
+        if (optimiseInput.get()) {
+            size = Math.exp(Math.log(size) + calcDelta(logAlpha));
+        }
+    }
+}
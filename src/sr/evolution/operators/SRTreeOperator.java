@@ -5,6 +5,7 @@ import beast.base.inference.Operator;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import sr.evolution.tree.SRTree;
+import sr.util.RandomSource;
 
 /**
  * copy from TreeOperator.
@@ -18,6 +19,118 @@ abstract public class SRTreeOperator extends Operator {
             "Mark all ancestors of nodes changed by the operator as changed," +
             " up to the MRCA of all nodes changed by the operator.",
             false);
+    final public Input<RandomSource> rngInput = new Input<>("rng",
+            "random number stream for the proposals. If not set, the stream of the running thread " +
+            "is used, which is the global Randomizer unless a chain runner sets its own.");
+    final public Input<Boolean> strictInput = new Input<>("strict",
+            "throw an SROperatorException with the full tree state when the operator finds the tree " +
+            "inconsistent, instead of counting it and rejecting the proposal; for debugging", false);
+
+    private SROperatorStatistics statistics;
+
+    /**
+     * Times doProposal() and counts it in the statistics of this operator.
+     *
+     * @return log of Hastings Ratio, or Double.NEGATIVE_INFINITY if proposal should not be accepted *
+     */
+    @Override
+    public double proposal() {
+        final long start = System.nanoTime();
+        final double logHastingsRatio = doProposal();
+        getStatistics().addProposal(System.nanoTime() - start);
+        return logHastingsRatio;
+    }
+
+    /**
+     * The proposal of the operator, called and timed by proposal(). A subclass written when
+     * proposal() was abstract moves the body of its proposal() here.
+     *
+     * @return log of Hastings Ratio, or Double.NEGATIVE_INFINITY if proposal should not be accepted *
+     */
+    protected abstract double doProposal();
+
+    /**
+     * @return names of the reasons for which doProposal() rejects early, indexed as passed to
+     * rejectProposal(int)
+     */
+    protected String[] getRejectionReasons() {
+        return new String[0];
+    }
+
+    /**
+     * @return true if the operator reports the iterations of a retry loop with addRetries(int)
+     */
+    protected boolean countsRetries() {
+        return false;
+    }
+
+    /**
+     * Counts an early rejection.
+     *
+     * @param reason index into getRejectionReasons()
+     * @return Double.NEGATIVE_INFINITY, to be returned from doProposal()
+     */
+    protected double rejectProposal(int reason) {
+        getStatistics().addRejection(reason);
+        return Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * @return names of the diagnostics the subclass counts, indexed as passed to
+     * countDiagnostic(int) and inconsistency(int, String)
+     */
+    protected String[] getDiagnosticNames() {
+        return new String[0];
+    }
+
+    /**
+     * Counts an edge case the proposal ran into without failing.
+     *
+     * @param diagnostic index into getDiagnosticNames()
+     */
+    protected void countDiagnostic(int diagnostic) {
+        getStatistics().addDiagnostic(diagnostic);
+    }
+
+    /**
+     * Counts an inconsistency of the tree found by the proposal. In strict mode an
+     * SROperatorException with the full tree state is thrown, otherwise the proposal is
+     * rejected and the state is restored by the chain.
+     *
+     * @param diagnostic index into getDiagnosticNames()
+     * @param message    description of the inconsistency
+     * @return Double.NEGATIVE_INFINITY, to be returned from doProposal()
+     */
+    protected double inconsistency(int diagnostic, String message) {
+        getStatistics().addDiagnostic(diagnostic);
+        if (strictInput.get()) {
+            throw new SROperatorException(getID() + ": " + message, treeInput.get());
+        }
+        return Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Records the number of iterations a retry loop of the current proposal took.
+     */
+    protected void addRetries(int count) {
+        getStatistics().addRetries(count);
+    }
+
+    /**
+     * @return proposal counts, timing and early rejections of this operator
+     */
+    public SROperatorStatistics getStatistics() {
+        if (statistics == null)
+            statistics = new SROperatorStatistics(getRejectionReasons(), countsRetries(), getDiagnosticNames());
+        return statistics;
+    }
+
+    /**
+     * @return random number stream to draw the proposal from
+     */
+    protected RandomSource rng() {
+        return RandomSource.orCurrent(rngInput.get());
+    }
 
     /**
      * @param parent the parent
@@ -3,7 +3,6 @@ package sr.evolution.operators;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.util.InputUtil;
-import beast.base.util.Randomizer;
 import sr.evolution.sranges.StratigraphicRange;
 import sr.evolution.tree.SRTree;
 
@@ -16,15 +15,38 @@ import java.util.ArrayList;
  */
 public class SRWilsonBalding extends SRTreeOperator {
 
+    private static final int NO_ALLOWABLE_NODE = 0, NO_ATTACHMENT_BRANCH = 1, J_IS_PARENT = 2, J_PARENT_IS_I = 3;
+    private static final String[] REJECTION_REASONS = {"noAllowableNode", "noAttachmentBranch", "jIsParent", "jParentIsI"};
+    private static final int NODE_COUNT_MISMATCH = 0;
+    private static final String[] DIAGNOSTIC_NAMES = {"nodeCountMismatch"};
+
     @Override
     public void initAndValidate() {
     }
 
+    @Override
+    protected String[] getRejectionReasons() {
+        return REJECTION_REASONS;
+    }
+
+    @Override
+    protected String[] getDiagnosticNames() {
+        return DIAGNOSTIC_NAMES;
+    }
+
+    /**
+     * The choice of the target branch is retried until it is above the pruned subtree.
+     */
+    @Override
+    protected boolean countsRetries() {
+        return true;
+    }
+
     /**
      * @return log of Hastings Ratio, or Double.NEGATIVE_INFINITY if proposal should not be accepted *
      */
     @Override
-    public double proposal() {
+    protected double doProposal() {
 
         SRTree tree = (SRTree) InputUtil.get(treeInput, this);
         //double x0 = 10;
@@ -53,10 +75,10 @@ public class SRWilsonBalding extends SRTreeOperator {
         int allowableNodeCount = allowableNodeIndices.size();
 
         if (allowableNodeCount == 0) {
-            return Double.NEGATIVE_INFINITY;
+            return rejectProposal(NO_ALLOWABLE_NODE);
         }
 
-        i=tree.getNode(allowableNodeIndices.get(Randomizer.nextInt(allowableNodeCount)));
+        i=tree.getNode(allowableNodeIndices.get(rng().nextInt(allowableNodeCount)));
 
         Node iP = i.getParent();
         Node CiP;
@@ -68,7 +90,7 @@ public class SRWilsonBalding extends SRTreeOperator {
 
         // make sure that there is at least one candidate edge to attach node iP to
         if (iP.getParent() == null && CiP.getHeight() <= i.getHeight()) {
-            return Double.NEGATIVE_INFINITY;
+            return rejectProposal(NO_ATTACHMENT_BRANCH);
         }
 
         // choose another random node to insert i above or to attach i to this node if it is a leaf
@@ -78,7 +100,8 @@ public class SRWilsonBalding extends SRTreeOperator {
         final int leafNodeCount = tree.getLeafNodeCount();
 
         if (leafNodeCount != tree.getExternalNodes().size()) {
-            System.out.println("node counts are incorrect. NodeCount = " + nodeCount + " leafNodeCount = " + leafNodeCount + " external node count = " + tree.getExternalNodes().size());
+            return inconsistency(NODE_COUNT_MISMATCH, "node counts are incorrect. NodeCount = " + nodeCount +
+                    " leafNodeCount = " + leafNodeCount + " external node count = " + tree.getExternalNodes().size());
         }
 
         // make sure that the target branch <jP, j> or target leaf j is above the subtree being moved
@@ -88,10 +111,12 @@ public class SRWilsonBalding extends SRTreeOperator {
         boolean attachingToLeaf;
         boolean adjacentEdge;
         //boolean adjacentLeaf;
+        int tries = 0;
         do {
+            tries++;
             adjacentEdge = false;
             //adjacentLeaf = false;
-            nodeNumber = Randomizer.nextInt(nodeCount + leafNodeCount);
+            nodeNumber = rng().nextInt(nodeCount + leafNodeCount);
             if (nodeNumber < nodeCount) {
                 j = tree.getNode(nodeNumber);
                 jP = j.getParent();
@@ -109,16 +134,15 @@ public class SRWilsonBalding extends SRTreeOperator {
                 //adjacentLeaf = (iP.getNr() == j.getNr());
             }
         } while (j.isDirectAncestor() || (newParentHeight <= i.getHeight()) || (i.getNr() == j.getNr()) || adjacentEdge /*|| adjacentLeaf */);
+        addRetries(tries - 1);
 
 
         if (attachingToLeaf && iP.getNr() == j.getNr()) {
-            System.out.println("Proposal failed because j = iP");
-            return Double.NEGATIVE_INFINITY;
+            return rejectProposal(J_IS_PARENT);
         }
 
         if (jP != null && jP.getNr() == i.getNr()) {
-            System.out.println("Proposal failed because jP = i. Heights of i = " + i.getHeight() + " Height of jP = " + jP.getHeight());
-            return Double.NEGATIVE_INFINITY;
+            return rejectProposal(J_PARENT_IS_I);
         }
 
 
@@ -154,10 +178,10 @@ public class SRWilsonBalding extends SRTreeOperator {
             if (jP != null) {
                 newMinAge = Math.max(i.getHeight(), j.getHeight());
                 newRange = jP.getHeight() - newMinAge;
-                newAge = newMinAge + (Randomizer.nextDouble() * newRange);
+                newAge = newMinAge + (rng().nextDouble() * newRange);
             } else {
                 double randomNumberFromExponential;
-                randomNumberFromExponential = Randomizer.nextExponential(1);
+                randomNumberFromExponential = rng().nextExponential(1);
                 newRange = Math.exp(randomNumberFromExponential);
                 newAge = j.getHeight() + randomNumberFromExponential;
             }
@@ -238,7 +262,7 @@ public class SRWilsonBalding extends SRTreeOperator {
             j.setParent(iP);
             if (!attachingToSRange && !attachingToLeaf)
                 randomAttach = true;
-            if (attachingToSRange || (!attachingToLeaf && Randomizer.nextBoolean())) {
+            if (attachingToSRange || (!attachingToLeaf && rng().nextBoolean())) {
                 iP.setLeft(j);
                 iP.setRight(i);
             } else {
@@ -251,7 +275,7 @@ public class SRWilsonBalding extends SRTreeOperator {
             if (iP.getNr() == j.getNr()) {
                 if (!attachingToSRange)
                     randomAttach = true;
-                if (attachingToSRange || Randomizer.nextBoolean()) { //in special case 1: when attaching to the range
+                if (attachingToSRange || rng().nextBoolean()) { //in special case 1: when attaching to the range
                                                                      //make i right
                                                                      //otherwise choose randomly
                     iP.setLeft(CiP);
@@ -37,6 +37,12 @@ public class StratigraphicRange extends BEASTObject {
      */
     private List<Integer> nodes = new ArrayList<>();  //
 
+    /**
+     * Position of this range in the range list of its tree, used by the tree to keep its
+     * node to range index up to date; -1 if not set.
+     */
+    private int indexInTree = -1;
+
     @Override
     public void initAndValidate() {
         if (taxonFirstOccurrenceInput.get() != null || taxonLastOccurrenceInput.get() != null) {
@@ -65,16 +71,41 @@ public class StratigraphicRange extends BEASTObject {
             nr = tree.getNode(nodeNr).getDirectAncestorChild().getNr();
         int i= nodes.indexOf(afterNr)+1;
         nodes.add(i,nr);
+        tree.rangeNodeAdded(this, nr);
     }
 
     public void removeNodeNr(SRTree tree, int nodeNr) {
-        nodes.remove((Integer)nodeNr);
+        if (nodes.remove((Integer)nodeNr))
+            tree.rangeNodeRemoved(this, nodeNr);
     }
 
     public void removeAllNodeNrs() {
         nodes.clear();
     }
 
+    /**
+     * Replaces the node numbers of this range by those of another range,
+     * reusing the existing list.
+     * @param other range to copy from
+     */
+    public void copyNodeNrsFrom(StratigraphicRange other) {
+        nodes.clear();
+        for (int i = 0; i < other.nodes.size(); i++) {
+            nodes.add(other.nodes.get(i));
+        }
+    }
+
+    /**
+     * Replaces the node numbers of this range by nodeNrs[from] .. nodeNrs[to - 1],
+     * reusing the existing list. Negative numbers stand for unset nodes.
+     */
+    public void setNodeNrs(int[] nodeNrs, int from, int to) {
+        nodes.clear();
+        for (int i = from; i < to; i++) {
+            nodes.add(nodeNrs[i] < 0 ? null : nodeNrs[i]);
+        }
+    }
+
     public List<Integer> getNodeNrs() {
         return nodes;
     }
@@ -91,8 +122,9 @@ public class StratigraphicRange extends BEASTObject {
         if (nodes.isEmpty()) {
             nodes.add(nr);
         } else {
-            nodes.set(0,nr);
+            tree.rangeNodeRemoved(this, nodes.set(0,nr));
         }
+        tree.rangeNodeAdded(this, nr);
     }
 
     /**
@@ -109,8 +141,9 @@ public class StratigraphicRange extends BEASTObject {
             if (nodes.isEmpty()) {
                 nodes.add(nr);
             } else {
-                nodes.set(0,nr);
+                tree.rangeNodeRemoved(this, nodes.set(0,nr));
             }
+            tree.rangeNodeAdded(this, nr);
             return;
         } else {
             if (nodes.isEmpty()) {
@@ -118,6 +151,7 @@ public class StratigraphicRange extends BEASTObject {
             }
         }
         nodes.add(nr);
+        tree.rangeNodeAdded(this, nr);
     }
 
     public void makeSingleFossilRange() {
@@ -192,5 +226,14 @@ public class StratigraphicRange extends BEASTObject {
         if (tree.getNode(nodeNr).isFake())
             nr = tree.getNode(nodeNr).getDirectAncestorChild().getNr();
         nodes.add(nr);
+        tree.rangeNodeAdded(this, nr);
+    }
+
+    public int getIndexInTree() {
+        return indexInTree;
+    }
+
+    public void setIndexInTree(int index) {
+        indexInTree = index;
     }
 }
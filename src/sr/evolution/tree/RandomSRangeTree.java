@@ -8,8 +8,8 @@ import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.TraitSet;
 import beast.base.evolution.tree.coalescent.PopulationFunction;
 import beast.base.util.HeapSort;
-import beast.base.util.Randomizer;
 import sr.evolution.sranges.StratigraphicRange;
+import sr.util.RandomSource;
 
 import java.util.*;
 
@@ -22,6 +22,9 @@ public class RandomSRangeTree extends SRTree implements StateNodeInitialiser {
 
 	final public Input<PopulationFunction> populationFunctionInput = new Input<>("populationModel", "population function for generating coalescent", Input.Validate.REQUIRED);
 
+	final public Input<RandomSource> rngInput = new Input<>("rng", "random number stream for the coalescent simulation. " +
+			"If not set, the stream of the running thread is used, which is the global Randomizer unless a chain runner sets its own.");
+
 	// total nr of taxa
 	int nrOfTaxa;
 
@@ -308,10 +311,11 @@ public class RandomSRangeTree extends SRTree implements StateNodeInitialiser {
 	 * @return
 	 */
 	private double coalesceTwoActiveNodes(double height) {
-		final int node1 = Randomizer.nextInt(activeNodeCount);
+		final RandomSource rng = RandomSource.orCurrent(rngInput.get());
+		final int node1 = rng.nextInt(activeNodeCount);
 		int node2 = node1;
 		while (node2 == node1) {
-			node2 = Randomizer.nextInt(activeNodeCount);
+			node2 = rng.nextInt(activeNodeCount);
 		}
 
 		final Node left = nodeList.get(node1);
@@ -2,6 +2,7 @@ package sr.evolution.tree;
 
 import beast.base.core.Log;
 import beast.base.evolution.tree.Node;
+import sr.util.TreeTraversal;
 
 import java.util.TreeMap;
 
@@ -30,6 +31,73 @@ public class SRNode extends Node {
         return node;
     } // copy
 
+    /*
+     * Changes of heights, parents and children are reported to the tree, which keeps
+     * the set of nodes whose children LeftRightChildSwap may swap up to date.
+     */
+
+    @Override
+    public void setHeight(final double height) {
+        final boolean changed = height != this.height;
+        super.setHeight(height);
+        if (changed)
+            reportChange(this);
+    }
+
+    @Override
+    public int scale(final double scale) {
+        // Node.scale sets the height field directly
+        final double oldHeight = height;
+        final int dof = super.scale(scale);
+        if (height != oldHeight)
+            reportChange(this);
+        return dof;
+    }
+
+    @Override
+    public void setParent(final Node parent) {
+        final Node oldParent = this.parent;
+        super.setParent(parent);
+        if (oldParent != parent) {
+            reportChange(this);
+            reportChange(oldParent);
+        }
+    }
+
+    @Override
+    public void setParent(final Node parent, final boolean inOperator) {
+        final Node oldParent = this.parent;
+        super.setParent(parent, inOperator);
+        if (oldParent != parent) {
+            reportChange(this);
+            reportChange(oldParent);
+        }
+    }
+
+    @Override
+    public void addChild(final Node child) {
+        super.addChild(child);
+        // re-adding children to the same parent changes their order but not their parent
+        reportChange(this);
+    }
+
+    @Override
+    public void setLeft(final Node leftChild) {
+        super.setLeft(leftChild);
+        reportChange(this);
+    }
+
+    @Override
+    public void setRight(final Node rightChild) {
+        super.setRight(rightChild);
+        reportChange(this);
+    }
+
+    private void reportChange(final Node node) {
+        if (node != null && m_tree instanceof SRTree)
+            ((SRTree) m_tree).nodeChanged(node);
+    }
+
     @Override
     public int sort()  {
         Log.warning("Do not sort ordered trees. Tree not sorted");
@@ -49,25 +117,31 @@ public class SRNode extends Node {
     public String toShortNewickForLog(final boolean printInternalNodeNumbers) {
         final StringBuilder buf = new StringBuilder();
 
-        if (!isLeaf()) {
-            buf.append("(");
-            boolean isFirst = true;
-            for (Node child : getChildren()) {
-                if (isFirst)
-                    isFirst = false;
-                else
-                    buf.append(",");
-                buf.append(((SRNode) child).toShortNewickForLog(printInternalNodeNumbers));
+        TreeTraversal.walk(this, new TreeTraversal.Visitor() {
+            @Override
+            public void enter(Node node) {
+                if (!node.isLeaf())
+                    buf.append("(");
             }
-            buf.append(")");
-        }
 
-        if (isLeaf() || getID() != null || printInternalNodeNumbers) {
-            buf.append(getNr()+1);
-        }
+            @Override
+            public void between(Node node) {
+                buf.append(",");
+            }
 
-        buf.append(getNewickMetaData());
-        buf.append(":").append(getNewickLengthMetaData()).append(getLength());
+            @Override
+            public void exit(Node node) {
+                SRNode srNode = (SRNode) node;
+                if (!srNode.isLeaf())
+                    buf.append(")");
+                if (srNode.isLeaf() || srNode.getID() != null || printInternalNodeNumbers) {
+                    buf.append(srNode.getNr()+1);
+                }
+
+                buf.append(srNode.getNewickMetaData());
+                buf.append(":").append(srNode.getNewickLengthMetaData()).append(srNode.getLength());
+            }
+        });
         return buf.toString();
     }
 }
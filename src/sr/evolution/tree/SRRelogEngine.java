@@ -0,0 +1,259 @@
+package sr.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import sr.evolution.sranges.StratigraphicRange;
+import sr.util.TreeTraversal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Computes orientation and stratigraphic range membership of trees read back from a log,
+ * without reorienting the tree or rebuilding its ranges.
+ *
+ * The taxon-to-range table is built once, from the ranges of the first tree. Every call to
+ * {@link #snapshot(Tree)} then needs a single linear pass over the tree and returns the
+ * result as a separate {@link Snapshot}, so neither the engine nor the tree is modified and
+ * snapshots of different trees can be computed in parallel.
+ */
+public class SRRelogEngine {
+
+    private final String[] firstOccurrenceIDs;
+    private final String[] lastOccurrenceIDs;
+    private final boolean[] singleFossilRange;
+    private final HashMap<String, Integer> rangeOfTaxon = new HashMap<>();
+
+    /**
+     * @param ranges stratigraphic ranges, in the order range indices will refer to
+     */
+    public SRRelogEngine(List<StratigraphicRange> ranges) {
+        int n = ranges.size();
+        firstOccurrenceIDs = new String[n];
+        lastOccurrenceIDs = new String[n];
+        singleFossilRange = new boolean[n];
+        for (int r = 0; r < n; r++) {
+            StratigraphicRange range = ranges.get(r);
+            firstOccurrenceIDs[r] = range.getFirstOccurrenceID();
+            lastOccurrenceIDs[r] = range.getLastOccurrenceID();
+            singleFossilRange[r] = range.isSingleFossilRange();
+            if (firstOccurrenceIDs[r] != null)
+                rangeOfTaxon.put(firstOccurrenceIDs[r], r);
+            if (lastOccurrenceIDs[r] != null)
+                rangeOfTaxon.put(lastOccurrenceIDs[r], r);
+        }
+    }
+
+    /**
+     * Builds the engine from the ranges of the given tree, initialising them
+     * if this has not been done yet.
+     */
+    public static SRRelogEngine fromTree(SRTree tree) {
+        if (tree.getSRanges() == null) {
+            tree.initSRanges();
+        }
+        return new SRRelogEngine(tree.getSRanges());
+    }
+
+    public int getRangeCount() {
+        return firstOccurrenceIDs.length;
+    }
+
+    public String getFirstOccurrenceID(int range) {
+        return firstOccurrenceIDs[range];
+    }
+
+    public String getLastOccurrenceID(int range) {
+        return lastOccurrenceIDs[range];
+    }
+
+    public boolean isSingleFossilRange(int range) {
+        return singleFossilRange[range];
+    }
+
+    /**
+     * @return index of the range the taxon belongs to, or -1
+     */
+    public int getRangeOfTaxon(String taxonID) {
+        Integer r = rangeOfTaxon.get(taxonID);
+        return r == null ? -1 : r;
+    }
+
+    /**
+     * Computes orientation and range membership of the tree in one linear pass.
+     * The tree is only read.
+     */
+    public Snapshot snapshot(Tree tree) {
+        return new Snapshot(tree);
+    }
+
+    /**
+     * Orientation and range membership of one tree.
+     */
+    public final class Snapshot {
+        private final Node[] nodes;
+        private final int[] left;
+        private final int[] right;
+        private final String[] orientation;
+        private final int[] rangeOfNode;
+        private final int[][] rangeNodeNrs;
+
+        Snapshot(Tree tree) {
+            nodes = tree.getNodesAsArray();
+            int nodeCount = nodes.length;
+            left = new int[nodeCount];
+            right = new int[nodeCount];
+            orientation = new String[nodeCount];
+            rangeOfNode = new int[nodeCount];
+            Arrays.fill(rangeOfNode, -1);
+
+            int rangeCount = getRangeCount();
+            int[] firstNr = new int[rangeCount];
+            int[] lastNr = new int[rangeCount];
+            Arrays.fill(firstNr, -1);
+            Arrays.fill(lastNr, -1);
+
+            for (int i = 0; i < nodeCount; i++) {
+                Node node = nodes[i];
+                left[i] = -1;
+                right[i] = -1;
+                if (node.isLeaf()) {
+                    int r = getRangeOfTaxon(node.getID());
+                    if (r < 0)
+                        continue;
+                    if (singleFossilRange[r]) {
+                        firstNr[r] = i;
+                        lastNr[r] = i;
+                    } else {
+                        if (node.getID().equals(firstOccurrenceIDs[r]))
+                            firstNr[r] = i;
+                        if (node.getID().equals(lastOccurrenceIDs[r]))
+                            lastNr[r] = i;
+                    }
+                    continue;
+                }
+                // same rule as Tools.orientateNodeChildren
+                Node child0 = node.getChild(0);
+                if (node.getChildCount() == 1) {
+                    left[i] = child0.getNr();
+                    continue;
+                }
+                Node child1 = node.getChild(1);
+                boolean swap = node.isFake() ? child1.getHeight() != node.getHeight()
+                        : child0.metaDataString != null && !child0.metaDataString.contains("orientation=ancestor");
+                left[i] = swap ? child1.getNr() : child0.getNr();
+                right[i] = swap ? child0.getNr() : child1.getNr();
+            }
+
+            rangeNodeNrs = new int[rangeCount][];
+            for (int r = 0; r < rangeCount; r++)
+                rangeNodeNrs[r] = walkRange(r, firstNr[r], lastNr[r]);
+
+            addOrientation(tree.getRoot().getNr());
+        }
+
+        /**
+         * Follows the ancestral (left) lineage from the first to the last occurrence.
+         * Each node lies on at most one range, so all walks together are linear in the tree size.
+         */
+        private int[] walkRange(int r, int firstNr, int lastNr) {
+            if (firstNr < 0)
+                return new int[0];
+            rangeOfNode[firstNr] = r;
+            if (singleFossilRange[r] || lastNr < 0 || lastNr == firstNr)
+                return new int[]{firstNr};
+
+            List<Integer> chain = new ArrayList<>();
+            chain.add(firstNr);
+            Node current = nodes[firstNr].isDirectAncestor() ? nodes[firstNr].getParent() : nodes[firstNr];
+            while (true) {
+                if (current.isLeaf())
+                    throw new RuntimeException("Range of " + firstOccurrenceIDs[r] + " does not reach its last " +
+                            "occurrence " + lastOccurrenceIDs[r] + " along the ancestral lineage.");
+                Node next = nodes[left[current.getNr()]];
+                int nr = next.isFake() ? next.getDirectAncestorChild().getNr() : next.getNr();
+                chain.add(nr);
+                rangeOfNode[nr] = r;
+                if (nr == lastNr)
+                    break;
+                current = nodes[nr].isDirectAncestor() ? nodes[nr].getParent() : nodes[nr];
+            }
+            int[] nrs = new int[chain.size()];
+            for (int k = 0; k < nrs.length; k++)
+                nrs[k] = chain.get(k);
+            return nrs;
+        }
+
+        /**
+         * Same metadata as SRTree.addOrientationMetadata, stored here instead of on the nodes.
+         */
+        private void addOrientation(int rootNr) {
+            orientation[rootNr] = "orientation=ancestor";
+            // parents are labelled before their children
+            for (int nr : TreeTraversal.preOrderNrs(rootNr, left, right)) {
+                Node node = nodes[nr];
+                if (node.isLeaf())
+                    continue;
+                if (node.isFake() || right[nr] < 0) {
+                    orientation[left[nr]] = orientation[nr];
+                    if (right[nr] >= 0)
+                        orientation[right[nr]] = orientation[nr];
+                } else {
+                    orientation[left[nr]] = "orientation=ancestor";
+                    orientation[right[nr]] = "orientation=descendant";
+                }
+            }
+        }
+
+        public SRRelogEngine getEngine() {
+            return SRRelogEngine.this;
+        }
+
+        public Node getLeft(Node node) {
+            int nr = left[node.getNr()];
+            return nr < 0 ? null : nodes[nr];
+        }
+
+        public Node getRight(Node node) {
+            int nr = right[node.getNr()];
+            return nr < 0 ? null : nodes[nr];
+        }
+
+        public String getOrientation(Node node) {
+            return orientation[node.getNr()];
+        }
+
+        /**
+         * @return index of the range the node belongs to, or -1. Fake nodes are
+         * looked up through their direct ancestor child, as in StratigraphicRange.
+         */
+        public int getRangeIndex(Node node) {
+            Node n = node.isFake() ? node.getDirectAncestorChild() : node;
+            return rangeOfNode[n.getNr()];
+        }
+
+        /**
+         * @return node numbers of the range, ordered from the first to the last occurrence
+         */
+        public int[] getRangeNodeNrs(int range) {
+            return rangeNodeNrs[range];
+        }
+
+        /**
+         * Same as StratigraphicRange.getInternalNodeNrs: all range nodes except the first
+         * occurrence, with the parent added after each sampled ancestor.
+         */
+        public List<Integer> getInternalNodeNrs(int range) {
+            int[] nrs = rangeNodeNrs[range];
+            List<Integer> internal = new ArrayList<>();
+            for (int k = 1; k < nrs.length; k++) {
+                internal.add(nrs[k]);
+                if (nodes[nrs[k]].isDirectAncestor())
+                    internal.add(nodes[nrs[k]].getParent().getNr());
+            }
+            return internal;
+        }
+    }
+}
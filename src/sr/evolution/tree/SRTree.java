@@ -7,10 +7,16 @@ import beast.base.evolution.tree.TreeInterface;
 import beast.base.evolution.tree.TreeParser;
 import beast.base.inference.StateNode;
 import sr.evolution.sranges.StratigraphicRange;
+import sr.util.TreeTraversal;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 /**
  * @author Alexandra Gavryushkina
@@ -30,6 +36,32 @@ public class SRTree extends Tree implements TreeInterface {
     protected ArrayList<StratigraphicRange> sRanges;
     protected ArrayList<StratigraphicRange> storedSRanges;
 
+    // taxon ID -> range lookup for sRanges, see getRangeByTaxonID()
+    private Map<String, StratigraphicRange> rangeByTaxonID;
+    private List<StratigraphicRange> rangeByTaxonIDList;
+    private int rangeByTaxonIDSize;
+
+    // node numbers of the single fossil ranges, see getSingleFossilNodeNrs()
+    private int[] singleFossilNodeNrs;
+
+    // position of the range of every node in sRanges, -1 if none, kept up to date by the range
+    // mutators through rangeNodeAdded() and rangeNodeRemoved(); rebuilt lazily when invalid
+    private int[] rangeOfNode, storedRangeOfNode;
+    private boolean rangeIndexValid, storedRangeIndexValid;
+
+    // indexed set of the nodes LeftRightChildSwap may act on, see isSwappable(): the first
+    // swappableCount entries of swappableNodeNrs, and the position of each node in it or -1.
+    // Node and range changes only mark nodes as changed, they are re-evaluated on next use.
+    private int[] swappableNodeNrs, swappablePosition;
+    private int[] storedSwappableNodeNrs, storedSwappablePosition;
+    private int swappableCount, storedSwappableCount;
+    private boolean swappableValid, storedSwappableValid;
+    private int[] changedNodeNrs;
+    private boolean[] nodeChanged;
+    private int changedNodeCount;
+    // counts changes of heights, topology and range node numbers, see getModificationCount()
+    private long modificationCount, storedModificationCount;
+
     /**
      * Initializes and validates the object, assigns the tree if provided,
      * and initializes the stratigraphic ranges.
@@ -46,30 +78,37 @@ public class SRTree extends Tree implements TreeInterface {
     /**
      * Initializes the stratigraphic ranges based on the input or
      * inferred from the provided tree structure.
+     * Taxa are matched to ranges through a hash table, so this is linear in the number of leaves.
      */
     protected void initSRanges() {
         if (stratigraphicRangeInput.get().size() != 0) {
             sRanges = (ArrayList<StratigraphicRange>) stratigraphicRangeInput.get();
-            List<Node> externalNodes = getExternalNodes();
-            List<Node> unusedNodes = getExternalNodes();
             for (StratigraphicRange range:sRanges) {
                 range.removeAllNodeNrs();
-                for (Node node:externalNodes) {
-                    if(node.getID().equals(range.getFirstOccurrenceID()) && !range.isSingleFossilRange()) {
+                range.initAndValidate();
+            }
+            Map<String, StratigraphicRange> rangeByTaxon = getRangeByTaxonID();
+            List<Node> unusedNodes = new ArrayList<>();
+            for (Node node:getExternalNodes()) {
+                StratigraphicRange range = rangeByTaxon.get(node.getID());
+                boolean used = false;
+                if (range != null) {
+                    if (node.getID().equals(range.getFirstOccurrenceID()) && !range.isSingleFossilRange()) {
                         if (!node.isDirectAncestor()) {
                             throw new RuntimeException("The first occurrence always has to be a sampled ancestor but " +
                                     range.getFirstOccurrenceID() + " is not a sampled ancestor. Something went wrong in " +
                                     "initializing the stratigraphic range tree."  );
                         }
                         range.setFirstOccurrenceNodeNr(this, node.getNr());
-                        unusedNodes.remove(node);
+                        used = true;
                     }
                     if (node.getID().equals(range.getLastOccurrenceID())) {
                         range.setLastOccurrenceNodeNr(this, node.getNr());
-                        unusedNodes.remove(node);
+                        used = true;
                     }
                 }
-                range.initAndValidate();
+                if (!used)
+                    unusedNodes.add(node);
             }
             for (Node n : unusedNodes){
                 StratigraphicRange tmpRange = new StratigraphicRange();
@@ -79,12 +118,15 @@ public class SRTree extends Tree implements TreeInterface {
                 tmpRange.setLastOccurrenceID(n.getID());
                 tmpRange.initAndValidate();
                 sRanges.add(tmpRange);
+                rangeByTaxon.putIfAbsent(n.getID(), tmpRange);
             }
+            rangeByTaxonIDSize = sRanges.size();
 
         } else {
             sRanges = new ArrayList<>();
-            ArrayList<StratigraphicRange> firstRanges = new ArrayList<>();
-            ArrayList<StratigraphicRange> lastRanges = new ArrayList<>();
+            // ranges seen so far with only a first or only a last occurrence, keyed by taxon name without suffix
+            Map<String, StratigraphicRange> firstRanges = new LinkedHashMap<>();
+            Map<String, StratigraphicRange> lastRanges = new LinkedHashMap<>();
             for (Node node:getExternalNodes()) {
                 String ID = node.getID();
                 String IDwithoutPrefix = ID;
@@ -99,66 +141,72 @@ public class SRTree extends Tree implements TreeInterface {
 //                        throw new RuntimeException("The first occurrence always has to be a sampled ancestor but " +
 //                                node.getID() + " is not a sampled ancestor.");
 //                    }
-                    boolean found = false;
-                    for (StratigraphicRange candidateRange:lastRanges) {
-                        if (candidateRange.getID().equals(IDwithoutPrefix)) {
-                            candidateRange.setFirstOccurrenceID(ID);
-                            candidateRange.setFirstOccurrenceNodeNr(this, node.getNr());
-                            sRanges.add(candidateRange);
-                            lastRanges.remove(candidateRange);
-                            found=true;
-                            break;
-                        }
-                    }
-                    if (!found) {
+                    StratigraphicRange candidateRange = lastRanges.remove(IDwithoutPrefix);
+                    if (candidateRange != null) {
+                        candidateRange.setFirstOccurrenceID(ID);
+                        candidateRange.setFirstOccurrenceNodeNr(this, node.getNr());
+                        sRanges.add(candidateRange);
+                    } else {
                         StratigraphicRange range = new StratigraphicRange();
                         range.setID(IDwithoutPrefix);
                         range.setFirstOccurrenceID(ID);
-                        if (node.isDirectAncestor()) {
-                            range.setFirstOccurrenceNodeNr(this, node.getNr());
-                        } else {
-                            range.setFirstOccurrenceNodeNr(this, node.getNr());
-                        }
-                        firstRanges.add(range);
+                        range.setFirstOccurrenceNodeNr(this, node.getNr());
+                        firstRanges.putIfAbsent(IDwithoutPrefix, range);
                     }
                 } else {
-                    boolean found = false;
-                    for (StratigraphicRange candidateRange:firstRanges) {
-                        if (candidateRange.getID().equals(IDwithoutPrefix)) {
-                            if (!prefix.equals("last")) {
-                                throw new RuntimeException("Taxa " + candidateRange.getFirstOccurrenceID() + " and " +
-                                        ID  + " are found in the tree. If " + ID + " is the last occurrence then add " +
-                                        "_last at the end.");
-                            }
-                            candidateRange.setLastOccurrenceID(ID);
-                            candidateRange.setLastOccurrenceNodeNr(this, node.getNr());
-                            sRanges.add(candidateRange);
-                            firstRanges.remove(candidateRange);
-                            found=true;
-                            break;
+                    StratigraphicRange candidateRange = firstRanges.get(IDwithoutPrefix);
+                    if (candidateRange != null) {
+                        if (!prefix.equals("last")) {
+                            throw new RuntimeException("Taxa " + candidateRange.getFirstOccurrenceID() + " and " +
+                                    ID  + " are found in the tree. If " + ID + " is the last occurrence then add " +
+                                    "_last at the end.");
                         }
-                    }
-                    if (!found) {
+                        candidateRange.setLastOccurrenceID(ID);
+                        candidateRange.setLastOccurrenceNodeNr(this, node.getNr());
+                        sRanges.add(candidateRange);
+                        firstRanges.remove(IDwithoutPrefix);
+                    } else {
                         StratigraphicRange range = new StratigraphicRange();
                         range.setID(IDwithoutPrefix);
                         range.setLastOccurrenceID(ID);
                         range.setLastOccurrenceNodeNr(this, node.getNr());
-                        lastRanges.add(range);
+                        lastRanges.putIfAbsent(IDwithoutPrefix, range);
                     }
                 }
             }
             if (!lastRanges.isEmpty()) {
-                throw new RuntimeException("There are taxa with last occurrence only " + lastRanges.toString() );
+                throw new RuntimeException("There are taxa with last occurrence only " + lastRanges.values().toString() );
             }
-            for (StratigraphicRange range:firstRanges) {
+            for (StratigraphicRange range:firstRanges.values()) {
                 range.makeSingleFossilRange();
             }
-            sRanges.addAll(firstRanges);
+            sRanges.addAll(firstRanges.values());
+            rangeByTaxonID = null;
         }
 
+        singleFossilNodeNrs = null;
         initStoredRanges();
     }
 
+    /**
+     * @return table from first and last occurrence taxon IDs to the ranges in sRanges,
+     * rebuilt only when the list of ranges has changed since it was last built.
+     */
+    private Map<String, StratigraphicRange> getRangeByTaxonID() {
+        if (rangeByTaxonID == null || rangeByTaxonIDList != sRanges || rangeByTaxonIDSize != sRanges.size()) {
+            rangeByTaxonID = new HashMap<>(2 * sRanges.size());
+            for (StratigraphicRange range : sRanges) {
+                if (range.getFirstOccurrenceID() != null)
+                    rangeByTaxonID.putIfAbsent(range.getFirstOccurrenceID(), range);
+                if (range.getLastOccurrenceID() != null)
+                    rangeByTaxonID.putIfAbsent(range.getLastOccurrenceID(), range);
+            }
+            rangeByTaxonIDList = sRanges;
+            rangeByTaxonIDSize = sRanges.size();
+        }
+        return rangeByTaxonID;
+    }
+
     /**
      * Initializes the stored stratigraphic ranges,
      * based on the current stratigraphic ranges.
@@ -176,7 +224,7 @@ public class SRTree extends Tree implements TreeInterface {
             range_sink.setLastOccurrenceID(range_src.getLastOccurrenceID());
             storedSRanges.add(range_sink);
         }
-
+        invalidateNodeIndices();
     }
 
     @Override
@@ -211,6 +259,9 @@ public class SRTree extends Tree implements TreeInterface {
      */
     @Override
     public void assignFromFragile(final StateNode other) {
+        if (other instanceof SRTree && assignFromSameTaxa((SRTree) other)) {
+            return;
+        }
         // invalidate cache
         postCache = null;
 
@@ -258,6 +309,45 @@ public class SRTree extends Tree implements TreeInterface {
         }
     }
 
+    /**
+     * Fast path of assignFromFragile for a source SRTree over the same taxa and ranges.
+     * The source is already oriented and its ranges are up to date, so parent and child
+     * indices and range node numbers are copied directly, without reorienting the source,
+     * re-adding children or rediscovering ranges.
+     *
+     * @param other source tree
+     * @return false if the trees differ in size, taxa or ranges and the general path has to be used
+     */
+    private boolean assignFromSameTaxa(final SRTree other) {
+        if (m_nodes == null || other.m_nodes == null || other.nodeCount != nodeCount
+                || other.leafNodeCount != leafNodeCount || sRanges == null || other.sRanges == null
+                || sRanges.size() != other.sRanges.size()) {
+            return false;
+        }
+        for (int i = 0; i < leafNodeCount; i++) {
+            if (!Objects.equals(m_nodes[i].getID(), other.m_nodes[i].getID())) {
+                return false;
+            }
+        }
+        for (int i = 0; i < sRanges.size(); i++) {
+            StratigraphicRange range = sRanges.get(i);
+            StratigraphicRange otherRange = other.sRanges.get(i);
+            if (!Objects.equals(range.getFirstOccurrenceID(), otherRange.getFirstOccurrenceID())
+                    || !Objects.equals(range.getLastOccurrenceID(), otherRange.getLastOccurrenceID())) {
+                return false;
+            }
+        }
+
+        postCache = null;
+        copyNodes(other.m_nodes, m_nodes, 0, nodeCount);
+        root = m_nodes[other.root.getNr()];
+        for (int i = 0; i < sRanges.size(); i++) {
+            sRanges.get(i).copyNodeNrsFrom(other.sRanges.get(i));
+        }
+        invalidateNodeIndices();
+        return true;
+    }
+
     /**
      * helper to assignFromFragile *
      */
@@ -294,6 +384,7 @@ public class SRTree extends Tree implements TreeInterface {
                 range_sink.addNodeNr(this, nodeNr);
             }
         }
+        storeNodeIndices();
     }
 
     /**
@@ -304,14 +395,22 @@ public class SRTree extends Tree implements TreeInterface {
      * @param end   nodes are stored up to but not including this index
      */
     private void storeNodes(final int start, final int end) {
+        copyNodes(m_nodes, m_storedNodes, start, end);
+    }
+
+    /**
+     * Copies heights, parents and children of nodes with index i, for start <= i < end,
+     * from srcNodes to sinkNodes, keeping the child order.
+     */
+    private static void copyNodes(final Node[] srcNodes, final Node[] sinkNodes, final int start, final int end) {
         // Use direct members for speed (we are talking 5-7% or more from total time for large trees :)
         for (int i = start; i < end; i++) {
-            final SRNode sink = (SRNode)m_storedNodes[i];
-            final SRNode src = (SRNode)m_nodes[i];
+            final Node sink = sinkNodes[i];
+            final Node src = srcNodes[i];
             sink.setHeight(src.getHeight());
 
             if ( src.getParent() != null ) {
-                sink.setParent(m_storedNodes[src.getParent().getNr()]);
+                sink.setParent(sinkNodes[src.getParent().getNr()]);
             } else {
                 // currently only called in the case of sampled ancestor trees
                 // where root node is not always last in the list
@@ -324,9 +423,9 @@ public class SRTree extends Tree implements TreeInterface {
             if( children.size() == srcChildren.size() ) {
                 // shave some more time by avoiding list clear and add
                 for (int k = 0; k < children.size(); ++k) {
-                    final SRNode srcChild = (SRNode)srcChildren.get(k);
+                    final Node srcChild = srcChildren.get(k);
                     // don't call addChild, which calls  setParent(..., true);
-                    final Node c = m_storedNodes[srcChild.getNr()];
+                    final Node c = sinkNodes[srcChild.getNr()];
                     c.setParent(sink);
                     children.set(k, c);
                 }
@@ -335,7 +434,7 @@ public class SRTree extends Tree implements TreeInterface {
                 //sink.removeAllChildren(false);
                 for (final Node srcChild : srcChildren) {
                     // don't call addChild, which calls  setParent(..., true);
-                    final Node c = m_storedNodes[srcChild.getNr()];
+                    final Node c = sinkNodes[srcChild.getNr()];
                     c.setParent(sink);
                     children.add(c);
                     //sink.addChild(c);
@@ -344,6 +443,79 @@ public class SRTree extends Tree implements TreeInterface {
         }
     }
 
+    /**
+     * Copies heights, topology and range node numbers into a flat buffer.
+     *
+     * @param state buffer to fill, its arrays are reused
+     */
+    public void exportState(final SRTreeState state) {
+        int rangeNodes = 0;
+        for (StratigraphicRange range : sRanges) {
+            rangeNodes += range.getNodeNrs().size();
+        }
+        state.ensureCapacity(nodeCount, sRanges.size(), rangeNodes);
+        state.nodeCount = nodeCount;
+        state.rootNr = root.getNr();
+        for (int i = 0; i < nodeCount; i++) {
+            final Node node = m_nodes[i];
+            state.heights[i] = node.getHeight();
+            state.parents[i] = node.getParent() == null ? -1 : node.getParent().getNr();
+            final List<Node> children = node.getChildren();
+            state.leftChildren[i] = children.size() > 0 ? children.get(0).getNr() : -1;
+            state.rightChildren[i] = children.size() > 1 ? children.get(1).getNr() : -1;
+        }
+        state.rangeCount = sRanges.size();
+        int k = 0;
+        for (int r = 0; r < sRanges.size(); r++) {
+            state.rangeStarts[r] = k;
+            for (Integer nr : sRanges.get(r).getNodeNrs()) {
+                state.rangeNodeNrs[k++] = nr == null ? -1 : nr;
+            }
+        }
+        state.rangeStarts[sRanges.size()] = k;
+    }
+
+    /**
+     * Sets heights, topology and range node numbers from a flat buffer filled by exportState
+     * of a tree over the same taxa and ranges. All nodes are marked as changed.
+     *
+     * @param state buffer to copy from
+     */
+    public void importState(final SRTreeState state) {
+        if (state.nodeCount != nodeCount || state.rangeCount != sRanges.size()) {
+            throw new IllegalArgumentException("Cannot import the state of a tree with " + state.nodeCount +
+                    " nodes and " + state.rangeCount + " ranges into " + getID() + " with " + nodeCount +
+                    " nodes and " + sRanges.size() + " ranges.");
+        }
+        startEditing(null);
+        postCache = null;
+        for (int i = 0; i < nodeCount; i++) {
+            final Node sink = m_nodes[i];
+            sink.setHeight(state.heights[i]);
+            sink.setParent(state.parents[i] < 0 ? null : m_nodes[state.parents[i]]);
+
+            final List<Node> children = sink.getChildrenMutable();
+            final int childCount = state.leftChildren[i] < 0 ? 0 : (state.rightChildren[i] < 0 ? 1 : 2);
+            while (children.size() > childCount) {
+                children.remove(children.size() - 1);
+            }
+            for (int c = 0; c < childCount; c++) {
+                final Node child = m_nodes[c == 0 ? state.leftChildren[i] : state.rightChildren[i]];
+                if (c < children.size()) {
+                    children.set(c, child);
+                } else {
+                    children.add(child);
+                }
+            }
+        }
+        root = m_nodes[state.rootNr];
+        for (int r = 0; r < sRanges.size(); r++) {
+            sRanges.get(r).setNodeNrs(state.rangeNodeNrs, state.rangeStarts[r], state.rangeStarts[r + 1]);
+        }
+        invalidateNodeIndices();
+        setEverythingDirty(true);
+    }
+
     /**
      * Populates the tree from XML file data.
      * @param node XML node containing tree data.
@@ -365,6 +537,7 @@ public class SRTree extends Tree implements TreeInterface {
         }
         initArrays();
         orientateTree();
+        invalidateNodeIndices();
 //        for (StratigraphicRange range : this.getSRanges()) {
 //            int firstNr = range.getNodeNrs().get(0);
 //            Node first = this.getNode(range.getNodeNrs().get(0));
@@ -400,6 +573,7 @@ public class SRTree extends Tree implements TreeInterface {
         ArrayList<StratigraphicRange> tmp_ranges = storedSRanges;
         storedSRanges = sRanges;
         sRanges = tmp_ranges;
+        restoreNodeIndices();
     }
 
     /**
@@ -416,6 +590,31 @@ public class SRTree extends Tree implements TreeInterface {
     public ArrayList<StratigraphicRange> getSRanges() {
         return  sRanges;
     }
+    /**
+     * Node numbers of the single fossil ranges. A single fossil is a leaf or sampled ancestor
+     * whose number does not change while the ranges stay the same, so the array is built once
+     * after the ranges are initialised and shared afterwards; it must not be modified.
+     *
+     * @return node numbers of the single fossil ranges, in range order
+     */
+    public int[] getSingleFossilNodeNrs() {
+        if (singleFossilNodeNrs == null) {
+            int count = 0;
+            for (StratigraphicRange range : sRanges) {
+                if (range.isSingleFossilRange())
+                    count++;
+            }
+            int[] nodeNrs = new int[count];
+            int i = 0;
+            for (StratigraphicRange range : sRanges) {
+                if (range.isSingleFossilRange())
+                    nodeNrs[i++] = range.getNodeNrs().get(0);
+            }
+            singleFossilNodeNrs = nodeNrs;
+        }
+        return singleFossilNodeNrs;
+    }
+
     public Integer getNonSingleSRangeCount() {
         int count = 0;
         for (StratigraphicRange range: sRanges) {
@@ -445,30 +644,15 @@ public class SRTree extends Tree implements TreeInterface {
      *          or null if no such range exists.
      */
     public StratigraphicRange sRangesContainsID(String taxonName) {
-        for (StratigraphicRange range:sRanges) {
-            if (range.getFirstOccurrenceID().equals(taxonName)) {
-                return range;
-            }
-            if (range.getLastOccurrenceID().equals(taxonName)) {
-                return range;
-            }
-        }
-        return null;
+        return getRangeByTaxonID().get(taxonName);
     }
 
     /**
      * Retrieves the stratigraphic range to which a node belongs.
      */
     public StratigraphicRange getRangeOfNode(Node node) {
-        int nodeNr = node.getNr();
-        if (node.isFake())
-            nodeNr = node.getDirectAncestorChild().getNr();
-        for (StratigraphicRange candidate_range:sRanges) {
-            if (candidate_range.containsNodeNr(this, nodeNr)) {
-                return candidate_range;
-            }
-        }
-        return null;
+        int r = rangeIndexOf(node.getNr());
+        return r < 0 ? null : sRanges.get(r);
     }
 
     /**
@@ -478,18 +662,233 @@ public class SRTree extends Tree implements TreeInterface {
      *          or null if no such range exists.
      */
     public StratigraphicRange getSharedRange(int node1Nr, int node2Nr){
-        if (m_nodes[node1Nr].isFake())
-            node1Nr = m_nodes[node1Nr].getDirectAncestorChild().getNr();
-        if (m_nodes[node2Nr].isFake())
-            node2Nr = m_nodes[node2Nr].getDirectAncestorChild().getNr();
-        for (StratigraphicRange range:sRanges) {
-            if (range.containsNodeNr(this, node1Nr) && range.containsNodeNr(this, node2Nr)) {
-                return range;
+        int r = rangeIndexOf(node1Nr);
+        return r >= 0 && r == rangeIndexOf(node2Nr) ? sRanges.get(r) : null;
+    }
+
+    /**
+     * @return position in sRanges of the range of the node, or of its direct ancestor child
+     * for a fake node, -1 if it is in no range
+     */
+    private int rangeIndexOf(int nodeNr) {
+        if (!rangeIndexValid)
+            rebuildRangeIndex();
+        if (m_nodes[nodeNr].isFake())
+            nodeNr = m_nodes[nodeNr].getDirectAncestorChild().getNr();
+        return rangeOfNode[nodeNr];
+    }
+
+    private void rebuildRangeIndex() {
+        if (rangeOfNode == null || rangeOfNode.length != nodeCount) {
+            rangeOfNode = new int[nodeCount];
+            storedRangeOfNode = new int[nodeCount];
+        }
+        Arrays.fill(rangeOfNode, -1);
+        for (int r = 0; r < sRanges.size(); r++) {
+            StratigraphicRange range = sRanges.get(r);
+            range.setIndexInTree(r);
+            if (storedSRanges != null && r < storedSRanges.size())
+                storedSRanges.get(r).setIndexInTree(r);
+            for (Integer nr : range.getNodeNrs()) {
+                if (nr != null && nr >= 0 && nr < nodeCount)
+                    rangeOfNode[nr] = r;
             }
         }
-        return null;
+        rangeIndexValid = true;
+        storedRangeIndexValid = false;
+        storedSwappableValid = false;
+    }
+
+    /**
+     * Called by the range mutators after nodeNr was added to range. Ignored for ranges
+     * that are not current ranges of this tree, such as the stored copies.
+     */
+    public void rangeNodeAdded(StratigraphicRange range, Integer nodeNr) {
+        if (!rangeIndexValid)
+            modificationCount++;
+        if (!isIndexedRange(range) || nodeNr == null || nodeNr < 0 || nodeNr >= nodeCount)
+            return;
+        rangeOfNode[nodeNr] = range.getIndexInTree();
+        nodeChanged(m_nodes[nodeNr]);
     }
 
+    /**
+     * Called by the range mutators after nodeNr was removed from range.
+     */
+    public void rangeNodeRemoved(StratigraphicRange range, Integer nodeNr) {
+        if (!rangeIndexValid)
+            modificationCount++;
+        if (!isIndexedRange(range) || nodeNr == null || nodeNr < 0 || nodeNr >= nodeCount)
+            return;
+        if (rangeOfNode[nodeNr] == range.getIndexInTree())
+            rangeOfNode[nodeNr] = -1;
+        nodeChanged(m_nodes[nodeNr]);
+    }
+
+    /**
+     * Counter of changes to node heights, parents and children and to the node numbers of the
+     * ranges, whether or not the tree is in a State. Restoring the tree restores the count it had
+     * when it was stored. Equal counts mean an unchanged tree, so calculation nodes can key
+     * caches of values derived from the tree on it.
+     */
+    public long getModificationCount() {
+        return modificationCount;
+    }
+
+    private boolean isIndexedRange(StratigraphicRange range) {
+        int r = range.getIndexInTree();
+        return rangeIndexValid && r >= 0 && r < sRanges.size() && sRanges.get(r) == range;
+    }
+
+    /**
+     * A node can have its children swapped by LeftRightChildSwap if it is neither a leaf
+     * nor fake and its left child is not in the same range, i.e. it is a speciation event.
+     */
+    private boolean isSwappable(Node node) {
+        return !node.isLeaf() && !node.isFake() && !belongToSameSRange(node.getNr(), node.getLeft().getNr());
+    }
+
+    /**
+     * @return number of nodes whose children can be swapped, see getSwappableNodeNr()
+     */
+    public int getSwappableNodeCount() {
+        updateSwappableNodes();
+        return swappableCount;
+    }
+
+    /**
+     * Nodes that are neither leaves nor fake and whose left child is not in the same range
+     * are kept in an indexed set that is updated as nodes and ranges change, so that one can
+     * be drawn uniformly in constant time.
+     *
+     * @param i index between 0 and getSwappableNodeCount() - 1
+     * @return number of the i-th such node, in no particular order
+     */
+    public int getSwappableNodeNr(int i) {
+        updateSwappableNodes();
+        return swappableNodeNrs[i];
+    }
+
+    private void updateSwappableNodes() {
+        if (!swappableValid) {
+            rebuildSwappableNodes();
+            return;
+        }
+        for (int k = 0; k < changedNodeCount; k++) {
+            final int nr = changedNodeNrs[k];
+            nodeChanged[nr] = false;
+            final boolean swappable = isSwappable(m_nodes[nr]);
+            final int pos = swappablePosition[nr];
+            if (swappable && pos < 0) {
+                swappablePosition[nr] = swappableCount;
+                swappableNodeNrs[swappableCount++] = nr;
+            } else if (!swappable && pos >= 0) {
+                final int last = swappableNodeNrs[--swappableCount];
+                swappableNodeNrs[pos] = last;
+                swappablePosition[last] = pos;
+                swappablePosition[nr] = -1;
+            }
+        }
+        changedNodeCount = 0;
+    }
+
+    private void rebuildSwappableNodes() {
+        if (swappableNodeNrs == null || swappableNodeNrs.length != nodeCount) {
+            swappableNodeNrs = new int[nodeCount];
+            swappablePosition = new int[nodeCount];
+            storedSwappableNodeNrs = new int[nodeCount];
+            storedSwappablePosition = new int[nodeCount];
+            changedNodeNrs = new int[nodeCount];
+            nodeChanged = new boolean[nodeCount];
+        }
+        Arrays.fill(nodeChanged, false);
+        changedNodeCount = 0;
+        Arrays.fill(swappablePosition, -1);
+        swappableCount = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            if (isSwappable(m_nodes[i])) {
+                swappablePosition[i] = swappableCount;
+                swappableNodeNrs[swappableCount++] = i;
+            }
+        }
+        swappableValid = true;
+        storedSwappableValid = false;
+    }
+
+    /**
+     * Called by SRNode after a change of its height, parent or children. Whether a node is
+     * swappable depends on its own children and heights and on those of its left child, so the
+     * node, its parent and its grandparent are re-evaluated on next use.
+     */
+    void nodeChanged(Node node) {
+        final int nr = node.getNr();
+        // changes of the stored copies while storing do not count
+        if (m_nodes != null && nr >= 0 && nr < m_nodes.length && m_nodes[nr] == node)
+            modificationCount++;
+        for (int k = 0; k < 3 && node != null; k++) {
+            markChanged(node);
+            node = node.getParent();
+        }
+    }
+
+    private void markChanged(Node node) {
+        final int nr = node.getNr();
+        if (!swappableValid || nr < 0 || nr >= nodeCount || nodeChanged[nr])
+            return;
+        nodeChanged[nr] = true;
+        changedNodeNrs[changedNodeCount++] = nr;
+    }
+
+    private void invalidateNodeIndices() {
+        modificationCount++;
+        rangeIndexValid = false;
+        swappableValid = false;
+    }
+
+    private void storeNodeIndices() {
+        storedModificationCount = modificationCount;
+        if (rangeIndexValid)
+            System.arraycopy(rangeOfNode, 0, storedRangeOfNode, 0, nodeCount);
+        storedRangeIndexValid = rangeIndexValid;
+        if (swappableValid) {
+            updateSwappableNodes();
+            System.arraycopy(swappableNodeNrs, 0, storedSwappableNodeNrs, 0, swappableCount);
+            System.arraycopy(swappablePosition, 0, storedSwappablePosition, 0, nodeCount);
+            storedSwappableCount = swappableCount;
+        }
+        storedSwappableValid = swappableValid;
+    }
+
+    private void restoreNodeIndices() {
+        // the restored tree is the stored one, so it gets its count back
+        modificationCount = storedModificationCount;
+        int[] tmp = rangeOfNode;
+        rangeOfNode = storedRangeOfNode;
+        storedRangeOfNode = tmp;
+        boolean tmpValid = rangeIndexValid;
+        rangeIndexValid = storedRangeIndexValid;
+        storedRangeIndexValid = tmpValid;
+
+        tmp = swappableNodeNrs;
+        swappableNodeNrs = storedSwappableNodeNrs;
+        storedSwappableNodeNrs = tmp;
+        tmp = swappablePosition;
+        swappablePosition = storedSwappablePosition;
+        storedSwappablePosition = tmp;
+        int tmpCount = swappableCount;
+        swappableCount = storedSwappableCount;
+        storedSwappableCount = tmpCount;
+        tmpValid = swappableValid;
+        swappableValid = storedSwappableValid;
+        storedSwappableValid = tmpValid;
+
+        // the stored sets were taken after all earlier changes were applied
+        if (nodeChanged != null) {
+            for (int k = 0; k < changedNodeCount; k++)
+                nodeChanged[changedNodeNrs[k]] = false;
+        }
+        changedNodeCount = 0;
+    }
 
     /**
      *
@@ -520,12 +919,15 @@ public class SRTree extends Tree implements TreeInterface {
      * @param subtreeRootNr the node number
      */
     private void addOrientationMetadataNode(int subtreeRootNr) {
-        Node subRoot = this.getNode(subtreeRootNr);
-        if (subRoot.isRoot()) {
-            subRoot.metaDataString = "orientation=ancestor";
+        Node subtreeRoot = this.getNode(subtreeRootNr);
+        if (subtreeRoot.isRoot()) {
+            subtreeRoot.metaDataString = "orientation=ancestor";
         }
 
-        if (!subRoot.isLeaf()) {
+        // parents are labelled before their children
+        for (Node subRoot : TreeTraversal.preOrder(subtreeRoot)) {
+            if (subRoot.isLeaf())
+                continue;
             if (subRoot.isFake()) {
                 subRoot.getLeft().metaDataString = subRoot.metaDataString;
                 subRoot.getRight().metaDataString = subRoot.metaDataString;
@@ -535,11 +937,6 @@ public class SRTree extends Tree implements TreeInterface {
                 subRoot.getLeft().metaDataString = "orientation=ancestor";
                 subRoot.getRight().metaDataString = "orientation=descendant";
             }
-
-            addOrientationMetadataNode(subRoot.getLeft().getNr());
-            if(subRoot.getChildCount()!=1){
-                addOrientationMetadataNode(subRoot.getRight().getNr());
-            }
         }
     }
 
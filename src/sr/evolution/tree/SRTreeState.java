@@ -0,0 +1,111 @@
+package sr.evolution.tree;
+
+import sr.util.TreeTraversal;
+
+import java.util.Arrays;
+
+/**
+ * Flat copy of the state of an SRTree: node heights, parent and child numbers, the root
+ * and the node numbers of every stratigraphic range, in primitive arrays. Filled by
+ * {@link SRTree#exportState(SRTreeState)} and applied by {@link SRTree#importState(SRTreeState)},
+ * e.g. to exchange states between coupled chains without going through XML or Newick.
+ * The arrays are reused, so a buffer kept per tree makes repeated copies allocation free.
+ *
+ * A state can only be imported into a tree over the same taxa and ranges, numbered in the
+ * same way, such as a tree created from the same XML.
+ */
+public class SRTreeState {
+
+    int nodeCount = 0;
+    int rootNr = -1;
+    double[] heights = new double[0];
+    int[] parents = new int[0];
+    // first and second child per node, -1 where there is none
+    int[] leftChildren = new int[0];
+    int[] rightChildren = new int[0];
+
+    int rangeCount = 0;
+    // node numbers of range r are rangeNodeNrs[rangeStarts[r]] .. rangeNodeNrs[rangeStarts[r + 1] - 1], -1 for unset
+    int[] rangeStarts = new int[1];
+    int[] rangeNodeNrs = new int[0];
+
+    void ensureCapacity(int nodes, int ranges, int rangeNodes) {
+        if (heights.length < nodes) {
+            heights = Arrays.copyOf(heights, nodes);
+            parents = Arrays.copyOf(parents, nodes);
+            leftChildren = Arrays.copyOf(leftChildren, nodes);
+            rightChildren = Arrays.copyOf(rightChildren, nodes);
+        }
+        if (rangeStarts.length < ranges + 1)
+            rangeStarts = Arrays.copyOf(rangeStarts, ranges + 1);
+        if (rangeNodeNrs.length < rangeNodes)
+            rangeNodeNrs = Arrays.copyOf(rangeNodeNrs, Math.max(rangeNodes, 2 * rangeNodeNrs.length));
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getRangeCount() {
+        return rangeCount;
+    }
+
+    public double getHeight(int nodeNr) {
+        return heights[nodeNr];
+    }
+
+    /**
+     * Changes the height of a node of the state, e.g. while optimising a copy of a tree. The
+     * caller keeps the heights consistent with the topology.
+     */
+    public void setHeight(int nodeNr, double height) {
+        heights[nodeNr] = height;
+    }
+
+    public int getRootNr() {
+        return rootNr;
+    }
+
+    /**
+     * @return number of the parent, -1 for the root
+     */
+    public int getParent(int nodeNr) {
+        return parents[nodeNr];
+    }
+
+    /**
+     * @return number of the first (left) child, -1 for a leaf
+     */
+    public int getLeftChild(int nodeNr) {
+        return leftChildren[nodeNr];
+    }
+
+    /**
+     * @return number of the second (right) child, -1 if there is none
+     */
+    public int getRightChild(int nodeNr) {
+        return rightChildren[nodeNr];
+    }
+
+    /**
+     * @return node numbers in post-order, children before their parents
+     */
+    public int[] postOrderNrs() {
+        return TreeTraversal.postOrderNrs(rootNr, leftChildren, rightChildren);
+    }
+
+    /**
+     * @return number of nodes of range r, including unset ones
+     */
+    public int getRangeSize(int r) {
+        return rangeStarts[r + 1] - rangeStarts[r];
+    }
+
+    /**
+     * @return number of the k-th node of range r, in the order of StratigraphicRange.getNodeNrs(),
+     * -1 if unset
+     */
+    public int getRangeNodeNr(int r, int k) {
+        return rangeNodeNrs[rangeStarts[r] + k];
+    }
+}
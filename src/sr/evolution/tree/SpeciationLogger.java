@@ -6,11 +6,17 @@ import beast.base.core.Loggable;
 import beast.base.evolution.tree.Node;
 import beast.base.inference.CalculationNode;
 import sr.evolution.sranges.StratigraphicRange;
+import sr.util.loggers.SpeciationEventWriter;
+
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import static sr.util.Tools.getSeparatingLengthAndNodeCount;
 import static sr.util.Tools.removeLastSubstring;
@@ -35,27 +41,67 @@ public class SpeciationLogger extends CalculationNode implements Loggable, Funct
                     "Default false.",
             false);
 
+    public Input<String> formatInput = new Input<>("format",
+            "Output format for speciation events. 'dense' writes all range pairs into the trace log; " +
+                    "'sparse' (tab-separated triplets) and 'binary' (columnar blocks) write only the events " +
+                    "observed in each sample to eventsFile and log the number of events. Default dense.",
+            "dense");
 
+    public Input<String> eventsFileInput = new Input<>("eventsFile",
+            "File to write speciation events to when format is sparse or binary.");
 
 //    public Input<Boolean> onlyFirstInput = new Input<>("onlyFirst",
 //            "If true, only the first descendant is logged " ,
 //            Boolean.FALSE);
     HashMap<String, double[]> speciationsCounter = new HashMap<>();
     List<String> keys = new ArrayList<>();
+
+    // sparse and binary output
+    SpeciationEventWriter.Format format;
+    SpeciationEventWriter eventWriter;
+    List<String> speciesNames = new ArrayList<>();
+    HashMap<String, int[]> keyToSpeciesPair = new HashMap<>();
+    Set<String> touchedKeys = new LinkedHashSet<>();
+
+    // built from the first relogged tree
+    SRRelogEngine relogEngine;
+
     @Override
     public void initAndValidate() {
+        format = SpeciationEventWriter.Format.parse(formatInput.get());
+        if (format != SpeciationEventWriter.Format.DENSE && eventsFileInput.get() == null)
+            throw new IllegalArgumentException("SpeciationLogger: eventsFile must be specified for " +
+                    formatInput.get() + " output.");
+        initKeys();
+    }
+
+    /**
+     * Collects donor>recipient keys for all pairs of ranges together with the species
+     * indices used by sparse output.
+     */
+    private void initKeys() {
         final SRTree tree = treeInput.get();
         ArrayList<StratigraphicRange> ranges = tree.getSRanges();
+        HashMap<String, Integer> speciesIndex = new HashMap<>();
+        for (StratigraphicRange range : ranges) {
+            String species = removeLastSubstring(sepStringInput.get(), range.getFirstOccurrenceID());
+            if (!speciesIndex.containsKey(species)) {
+                speciesIndex.put(species, speciesNames.size());
+                speciesNames.add(species);
+            }
+        }
         for (StratigraphicRange range1 : ranges) {
             for (StratigraphicRange range2 : ranges) {
                 if (range1==range2)
                     continue;
-                String key = removeLastSubstring(sepStringInput.get(), range1.getFirstOccurrenceID()) +
-                        directStringInput.get() + removeLastSubstring(sepStringInput.get(), range2.getFirstOccurrenceID());
+                String species1 = removeLastSubstring(sepStringInput.get(), range1.getFirstOccurrenceID());
+                String species2 = removeLastSubstring(sepStringInput.get(), range2.getFirstOccurrenceID());
+                String key = species1 + directStringInput.get() + species2;
                 if (speciationsCounter.get(key)==null){
                     double[] vals = new double[2];
                     speciationsCounter.put(key, vals);
                     keys.add(key);
+                    keyToSpeciesPair.put(key, new int[]{speciesIndex.get(species1), speciesIndex.get(species2)});
                 }
             }
         }
@@ -63,127 +109,171 @@ public class SpeciationLogger extends CalculationNode implements Loggable, Funct
 
     @Override
     public void init(PrintStream out) {
-        final SRTree tree = treeInput.get();
-        ArrayList<StratigraphicRange> ranges = tree.getSRanges();
-        for (StratigraphicRange range1 : ranges) {
-            for (StratigraphicRange range2 : ranges) {
-                if (range1==range2)
-                    continue;
-                String key = removeLastSubstring(sepStringInput.get(), range1.getFirstOccurrenceID()) +
-                        directStringInput.get() + removeLastSubstring(sepStringInput.get(), range2.getFirstOccurrenceID());
-                if (speciationsCounter.get(key)==null){
-                    double[] vals = new double[2];
-                    speciationsCounter.put(key, vals);
-                    keys.add(key);
-                }
-                out.print(key + "\t");
+        if (keys.isEmpty())
+            initKeys();
+        if (format != SpeciationEventWriter.Format.DENSE) {
+            try {
+                eventWriter = new SpeciationEventWriter(new File(eventsFileInput.get()), format, speciesNames,
+                        "length", "nodeCount");
+            } catch (IOException e) {
+                throw new RuntimeException("SpeciationLogger: cannot open " + eventsFileInput.get() +
+                        " for writing: " + e.getMessage());
             }
+            out.print((getID() == null ? treeInput.get().getID() + ".speciations" : getID()) + "\t");
+            return;
         }
+        for (String key : keys)
+            out.print(key + "\t");
+    }
+
+    /**
+     * Records the separating length and node count of a speciation event for the current sample.
+     */
+    private void record(String key, double[] vals) {
+        speciationsCounter.put(key, vals);
+        if (eventWriter != null)
+            touchedKeys.add(key);
     }
 
     @Override
     public void log(long nSample, PrintStream out) {
         SRTree tree = treeInput.get();
         if (relogInput.get()){
-//            return;
-            tree.orientateTree();
-            tree.initSRanges();
-        }
-        for (StratigraphicRange range : tree.getSRanges()) {
-            List<Integer> internalNodeNrs = range.getInternalNodeNrs(tree);
-            if (relogInput.get() && !range.isSingleFossilRange()){
-                SRNode start = (SRNode) tree.getNode(range.getNodeNrs().get(0));
-                SRNode child = (SRNode) start.getParent().getLeft();
-                int childNr = child.getNr();
-                if (child.isFake())
-                    childNr=child.getDirectAncestorChild().getNr();
-                while (childNr != internalNodeNrs.get(0)){
-                    range.addNodeNrAfter(tree, start.getNr(), child.getNr());
-                    start = child;
-                    child = (SRNode) start.getLeft();
-                    childNr = child.getNr();
-                    if (child.isFake())
-                        childNr=child.getDirectAncestorChild().getNr();
-                }
+            // orientation and ranges are read off the logged tree without modifying it
+            if (relogEngine == null)
+                relogEngine = SRRelogEngine.fromTree(tree);
+            SRRelogEngine.Snapshot snapshot = relogEngine.snapshot(tree);
+            for (int r = 0; r < relogEngine.getRangeCount(); r++) {
+                int[] nodeNrs = snapshot.getRangeNodeNrs(r);
+                if (nodeNrs.length == 0)
+                    continue;
+                logRange(tree, relogEngine.getFirstOccurrenceID(r), relogEngine.isSingleFossilRange(r),
+                        nodeNrs[0], snapshot.getInternalNodeNrs(r), snapshot);
             }
-//            if (range.getInternalNodeNrs(tree).size() == 1)
-//                continue;
-            for (Integer i : range.getInternalNodeNrs(tree)) {
+        } else {
+            for (StratigraphicRange range : tree.getSRanges()) {
+                logRange(tree, range.getFirstOccurrenceID(), range.isSingleFossilRange(),
+                        range.getNodeNrs().get(0), range.getInternalNodeNrs(tree), null);
+            }
+        }
+        if (eventWriter != null) {
+            logEvents(nSample, out);
+            return;
+        }
+        for (String s : keys) {
+//            out.print(speciationsCounter.get(s) + "\t");
+            if (speciationsCounter.get(s)[1]==-1)
+                System.out.print("SpeciationLogger: " + s + " has -1 node count, which is not allowed. " +
+                        "This may be due to a bug in the code or a problem with the tree.\n");
+            out.print(String.join(",", Arrays.stream(speciationsCounter.get(s))
+                    .mapToObj(Double::toString)
+                    .toArray(String[]::new))+ "\t");
+            speciationsCounter.put(s, new double[]{0,0});
+        }
+
+    }
+
+    /**
+     * Records the speciation events of a single range.
+     *
+     * @param firstNr         node number of the first occurrence
+     * @param internalNodeNrs range nodes after the first occurrence, see StratigraphicRange.getInternalNodeNrs
+     * @param snapshot        orientation of a relogged tree, or null if the tree itself is oriented
+     */
+    private void logRange(SRTree tree, String firstOccurrenceID, boolean singleFossilRange, int firstNr,
+                          List<Integer> internalNodeNrs, SRRelogEngine.Snapshot snapshot) {
+        for (Integer i : internalNodeNrs) {
 //            for (Integer i : range.getNodeNrs()) {
-                Node right = tree.getNode(i);
-                if (right.isFake() && right.getDirectAncestorChild().getID().contains("first") && !range.isSingleFossilRange())
-                    continue;
-                if (!tree.getNode(i).isLeaf())
-                    right = tree.getNode(i).getRight();
-
-                if (right.isLeaf() && !right.getID().contains("last") && !range.isSingleFossilRange()){
-                    String key = removeLastSubstring(sepStringInput.get(),range.getFirstOccurrenceID()) +
-                            directStringInput.get()  + removeLastSubstring(sepStringInput.get(),right.getID());
-                    double[] vals = getSeparatingLengthAndNodeCount(right.getParent(), right);
-                    if (right.isDirectAncestor())
-                        vals[1] = vals[1] - 1;
-                    speciationsCounter.put(key, vals);
-                }
-                for (Node l : right.getAllLeafNodes()){
-                        if (!l.getID().contains("last") && (right.getID()==null ||!l.getID().contains(right.getID()))){
-                            String key = removeLastSubstring(sepStringInput.get(),range.getFirstOccurrenceID()) +
-                                    directStringInput.get()  + removeLastSubstring(sepStringInput.get(),l.getID());
-                            double[] vals = getSeparatingLengthAndNodeCount(tree.getNode(i), l);
-                            if (l.isDirectAncestor())
-                                vals[1] = vals[1] - 1;
-                            speciationsCounter.put(key, vals);
-                        }
-                    }
-                if (right.isDirectAncestor() &&
-                        (right.getID().contains("last") || (right.getID().contains("first") && range.isSingleFossilRange()))){
-                    for (Node l : right.getParent().getAllLeafNodes()){
-                        if (l.getID().contains("first")){
-                            String key = removeLastSubstring(sepStringInput.get(),range.getFirstOccurrenceID()) +
-                                    directStringInput.get()  + removeLastSubstring(sepStringInput.get(),l.getID());
-                            double[] vals = getSeparatingLengthAndNodeCount(right.getParent(), l);
-                            if (l.isDirectAncestor())
-                                vals[1] = vals[1] - 1;
-                            speciationsCounter.put(key, vals);
-
-                        }
-                    }
-                }
+            Node right = tree.getNode(i);
+            if (right.isFake() && right.getDirectAncestorChild().getID().contains("first") && !singleFossilRange)
+                continue;
+            if (!tree.getNode(i).isLeaf())
+                right = snapshot == null ? tree.getNode(i).getRight() : snapshot.getRight(tree.getNode(i));
 
-//                }
+            if (right.isLeaf() && !right.getID().contains("last") && !singleFossilRange){
+                String key = removeLastSubstring(sepStringInput.get(),firstOccurrenceID) +
+                        directStringInput.get()  + removeLastSubstring(sepStringInput.get(),right.getID());
+                double[] vals = getSeparatingLengthAndNodeCount(right.getParent(), right);
+                if (right.isDirectAncestor())
+                    vals[1] = vals[1] - 1;
+                record(key, vals);
             }
-            SRNode right = (SRNode) tree.getNode(range.getNodeNrs().get(0));
+            for (Node l : right.getAllLeafNodes()){
+                    if (!l.getID().contains("last") && (right.getID()==null ||!l.getID().contains(right.getID()))){
+                        String key = removeLastSubstring(sepStringInput.get(),firstOccurrenceID) +
+                                directStringInput.get()  + removeLastSubstring(sepStringInput.get(),l.getID());
+                        double[] vals = getSeparatingLengthAndNodeCount(tree.getNode(i), l);
+                        if (l.isDirectAncestor())
+                            vals[1] = vals[1] - 1;
+                        record(key, vals);
+                    }
+                }
             if (right.isDirectAncestor() &&
-                    (right.getID().contains("last") || (right.getID().contains("first") && range.isSingleFossilRange()))){
+                    (right.getID().contains("last") || (right.getID().contains("first") && singleFossilRange))){
                 for (Node l : right.getParent().getAllLeafNodes()){
                     if (l.getID().contains("first")){
-                        String key = removeLastSubstring(sepStringInput.get(),range.getFirstOccurrenceID()) +
+                        String key = removeLastSubstring(sepStringInput.get(),firstOccurrenceID) +
                                 directStringInput.get()  + removeLastSubstring(sepStringInput.get(),l.getID());
                         double[] vals = getSeparatingLengthAndNodeCount(right.getParent(), l);
                         if (l.isDirectAncestor())
                             vals[1] = vals[1] - 1;
-                        speciationsCounter.put(key, vals);
+                        record(key, vals);
 
                     }
                 }
             }
 
+//                }
         }
-        for (String s : keys) {
-//            out.print(speciationsCounter.get(s) + "\t");
-            if (speciationsCounter.get(s)[1]==-1)
-                System.out.print("SpeciationLogger: " + s + " has -1 node count, which is not allowed. " +
-                        "This may be due to a bug in the code or a problem with the tree.\n");
-            out.print(String.join(",", Arrays.stream(speciationsCounter.get(s))
-                    .mapToObj(Double::toString)
-                    .toArray(String[]::new))+ "\t");
-            speciationsCounter.put(s, new double[]{0,0});
+        Node right = tree.getNode(firstNr);
+        if (right.isDirectAncestor() &&
+                (right.getID().contains("last") || (right.getID().contains("first") && singleFossilRange))){
+            for (Node l : right.getParent().getAllLeafNodes()){
+                if (l.getID().contains("first")){
+                    String key = removeLastSubstring(sepStringInput.get(),firstOccurrenceID) +
+                            directStringInput.get()  + removeLastSubstring(sepStringInput.get(),l.getID());
+                    double[] vals = getSeparatingLengthAndNodeCount(right.getParent(), l);
+                    if (l.isDirectAncestor())
+                        vals[1] = vals[1] - 1;
+                    record(key, vals);
+
+                }
+            }
         }
 
     }
 
+    /**
+     * Writes only the events recorded for this sample to the events file.
+     */
+    private void logEvents(long nSample, PrintStream out) {
+        eventWriter.startSample(nSample);
+        for (String key : touchedKeys) {
+            int[] pair = keyToSpeciesPair.get(key);
+            if (pair != null)
+                eventWriter.addEvent(pair[0], pair[1], speciationsCounter.get(key));
+        }
+        touchedKeys.clear();
+        out.print(eventWriter.getEventCount() + "\t");
+        try {
+            eventWriter.endSample();
+        } catch (IOException e) {
+            throw new RuntimeException("SpeciationLogger: failed writing to " + eventsFileInput.get() +
+                    ": " + e.getMessage());
+        }
+    }
+
     @Override
     public void close(PrintStream out) {
-        // nothing to do
+        if (eventWriter != null) {
+            try {
+                eventWriter.close();
+            } catch (IOException e) {
+                throw new RuntimeException("SpeciationLogger: failed closing " + eventsFileInput.get() +
+                        ": " + e.getMessage());
+            }
+            eventWriter = null;
+        }
     }
 
     @Override
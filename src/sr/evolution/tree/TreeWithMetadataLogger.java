@@ -7,6 +7,7 @@ import beast.base.inference.CalculationNode;
 import beast.base.inference.StateNode;
 import beast.base.inference.parameter.Parameter;
 import sr.evolution.sranges.StratigraphicRange;
+import sr.util.TreeTraversal;
 
 import java.io.PrintStream;
 import java.math.RoundingMode;
@@ -46,6 +47,9 @@ public class TreeWithMetadataLogger extends CalculationNode implements Loggable
 
     private DecimalFormat df;
 
+    // built from the first relogged tree
+    SRRelogEngine relogEngine;
+
     @Override
     public void initAndValidate() {
         relog = relogInput.get();
@@ -85,23 +89,15 @@ public class TreeWithMetadataLogger extends CalculationNode implements Loggable
     public void log(long nSample, PrintStream out) {
         // make sure we get the current version of the inputs
         final SRTree srTree = (SRTree) srTeeInput.get().getCurrent();
-        if (relog && logRanges){
-            srTree.orientateTree();
-            srTree.initSRanges();
-            for (StratigraphicRange range : srTree.getSRanges()) {
-                int firstNr = range.getNodeNrs().get(0);
-                Node first = srTree.getNode(range.getNodeNrs().get(0));
-                first = first.isDirectAncestor() ? first.getParent() : first;
-                Node last = srTree.getNode(range.getNodeNrs().get(range.getNodeNrs().size() - 1));
-                while (!range.isSingleFossilRange() && firstNr !=last.getNr()){
-                    int nr = first.getLeft().isFake() ? first.getLeft().getDirectAncestorChild().getNr(): first.getLeft().getNr();
-                    range.addNodeNrAfter(srTree, first.getNr(), nr);
-                    firstNr = nr;
-                    first = srTree.getNode(nr).isDirectAncestor() ? srTree.getNode(nr).getParent(): srTree.getNode(nr);
-                }
-            }
+        SRRelogEngine.Snapshot snapshot = null;
+        if (relog) {
+            // orientation and ranges are read off the logged tree without modifying it
+            if (relogEngine == null)
+                relogEngine = SRRelogEngine.fromTree(srTree);
+            snapshot = relogEngine.snapshot(srTree);
+        } else {
+            srTree.addOrientationMetadata();
         }
-        srTree.addOrientationMetadata();
         List<Function> metadata = parameterInput.get();
         for (int i = 0; i < metadata.size(); i++) {
             if (metadata.get(i) instanceof StateNode) {
@@ -112,7 +108,7 @@ public class TreeWithMetadataLogger extends CalculationNode implements Loggable
         // write out the log tree with meta data
         out.print("tree STATE_" + nSample + " = ");
 //        tree.getRoot().sort();
-		out.print(toNewick(srTree, (SRNode) srTree.getRoot(), metadata, branchRateModel));
+		out.print(toNewick(srTree, (SRNode) srTree.getRoot(), metadata, branchRateModel, snapshot));
         //out.print(tree.getRoot().toShortNewick(false));
         out.print(";");
     }
@@ -133,15 +129,53 @@ public class TreeWithMetadataLogger extends CalculationNode implements Loggable
         }
     }
 
-	String toNewick(SRTree tree, SRNode node, List<Function> metadataList, BranchRateModel branchRateModel) {
+	/**
+	 * @param snapshot orientation and ranges of a relogged tree, or null to use the tree's own
+	 */
+	String toNewick(SRTree tree, SRNode node, List<Function> metadataList, BranchRateModel branchRateModel,
+					SRRelogEngine.Snapshot snapshot) {
         StringBuffer buf = new StringBuffer();
-        if (node.getLeft() != null) {
-            buf.append("(");
-            buf.append(toNewick(tree, (SRNode) node.getLeft(), metadataList, branchRateModel));
-            if (node.getRight() != null) {
+        TreeTraversal.ChildOrder order = new TreeTraversal.ChildOrder() {
+            @Override
+            public int getChildCount(Node n) {
+                Node left = snapshot == null ? n.getLeft() : snapshot.getLeft(n);
+                Node right = snapshot == null ? n.getRight() : snapshot.getRight(n);
+                return left == null ? 0 : (right == null ? 1 : 2);
+            }
+
+            @Override
+            public Node getChild(Node n, int i) {
+                if (snapshot == null)
+                    return i == 0 ? n.getLeft() : n.getRight();
+                return i == 0 ? snapshot.getLeft(n) : snapshot.getRight(n);
+            }
+        };
+        TreeTraversal.walk(node, order, new TreeTraversal.Visitor() {
+            @Override
+            public void enter(Node n) {
+                if (order.getChildCount(n) > 0)
+                    buf.append("(");
+            }
+
+            @Override
+            public void between(Node n) {
                 buf.append(',');
-                buf.append(toNewick(tree, (SRNode) node.getRight(), metadataList, branchRateModel));
             }
+
+            @Override
+            public void exit(Node n) {
+                appendNode(buf, tree, n, order.getChildCount(n) == 0, metadataList, branchRateModel, snapshot);
+            }
+        });
+        return buf.toString();
+    }
+
+    /**
+     * Appends the label, metadata and branch length of a node whose children have been written.
+     */
+    private void appendNode(StringBuffer buf, SRTree tree, Node node, boolean isTip, List<Function> metadataList,
+                            BranchRateModel branchRateModel, SRRelogEngine.Snapshot snapshot) {
+        if (!isTip) {
             buf.append(")");
         } else {
 			buf.append(node.getNr() + 1);
@@ -189,13 +223,29 @@ public class TreeWithMetadataLogger extends CalculationNode implements Loggable
                 }
             }
             if (logRanges){
-                StratigraphicRange range = tree.getRangeOfNode(node);
                 String id = node.isFake() ? node.getDirectAncestorChild().getID() : node.getID();
+                String firstID = null, lastID = null;
+                boolean single = true;
+                if (snapshot == null) {
+                    StratigraphicRange range = tree.getRangeOfNode(node);
+                    if (range != null) {
+                        firstID = range.getFirstOccurrenceID();
+                        lastID = range.getLastOccurrenceID();
+                        single = range.isSingleFossilRange();
+                    }
+                } else {
+                    int r = snapshot.getRangeIndex(node);
+                    if (r >= 0) {
+                        firstID = relogEngine.getFirstOccurrenceID(r);
+                        lastID = relogEngine.getLastOccurrenceID(r);
+                        single = relogEngine.isSingleFossilRange(r);
+                    }
+                }
 
-                if (range !=null && !range.isSingleFossilRange() && (id==null || !id.equals(range.getFirstOccurrenceID()))){
+                if (!single && (id==null || !id.equals(firstID))){
                     buf.append("range=");
                     if (logRangeNamesInput.get()){
-                        buf.append(removeLastSubstring("_", range.getLastOccurrenceID()));
+                        buf.append(removeLastSubstring("_", lastID));
                     } else {
                         buf.append("range");
                     }
@@ -206,7 +256,7 @@ public class TreeWithMetadataLogger extends CalculationNode implements Loggable
             }
 
 			if (logOrientationInput.get()) {
-				buf.append(node.metaDataString);
+				buf.append(snapshot == null ? node.metaDataString : snapshot.getOrientation(node));
             }
 
             buf.append(']');
@@ -221,7 +271,6 @@ public class TreeWithMetadataLogger extends CalculationNode implements Loggable
         } else {
             appendDouble(buf, nodeLength);
         }
-        return buf.toString();
     }
 
 
@@ -0,0 +1,115 @@
+package sr.inference;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Loggable;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Acceptance and swap rates of the chains of an SRCoupledMCMC run. The counts are updated at
+ * every swap, while all chains wait, so the logged rates are those of the last swap. Acceptance
+ * counts are those of the operators, which exclude burn-in. Put it in a logger of the cold
+ * chain to trace the rates.
+ */
+@Description("Per-chain acceptance rates and swap rates between neighbouring chains of an SRCoupledMCMC run.")
+public class CoupledChainStatistics extends BEASTObject implements Loggable {
+
+    private double[] betas = new double[0];
+    private long[] proposed = new long[0];
+    private long[] accepted = new long[0];
+    private long[] swapsProposed = new long[0];
+    private long[] swapsAccepted = new long[0];
+
+    @Override
+    public void initAndValidate() {
+    }
+
+    /**
+     * Clears the counts for a run with chains at the given inverse temperatures.
+     */
+    public void reset(double[] betas) {
+        this.betas = betas.clone();
+        proposed = new long[betas.length];
+        accepted = new long[betas.length];
+        swapsProposed = new long[Math.max(0, betas.length - 1)];
+        swapsAccepted = new long[Math.max(0, betas.length - 1)];
+    }
+
+    /**
+     * @param proposals   proposals of the chain since its start, summed over its operators
+     * @param acceptances accepted proposals of the chain
+     */
+    void setProposals(int chain, long proposals, long acceptances) {
+        proposed[chain] = proposals;
+        accepted[chain] = acceptances;
+    }
+
+    /**
+     * @param pair index of the lower of the two neighbouring chains
+     */
+    void addSwap(int pair, boolean wasAccepted) {
+        swapsProposed[pair]++;
+        if (wasAccepted)
+            swapsAccepted[pair]++;
+    }
+
+    public int getChainCount() {
+        return betas.length;
+    }
+
+    public double getBeta(int chain) {
+        return betas[chain];
+    }
+
+    public long getProposalCount(int chain) {
+        return proposed[chain];
+    }
+
+    public double getAcceptanceRate(int chain) {
+        return proposed[chain] == 0 ? Double.NaN : (double) accepted[chain] / proposed[chain];
+    }
+
+    public long getSwapCount(int pair) {
+        return swapsProposed[pair];
+    }
+
+    public double getSwapRate(int pair) {
+        return swapsProposed[pair] == 0 ? Double.NaN : (double) swapsAccepted[pair] / swapsProposed[pair];
+    }
+
+    /**
+     * Prints a table of the rates, e.g. at the end of a run.
+     */
+    public void printSummary(PrintStream out) {
+        out.println("Chain  beta      proposals     acceptance");
+        for (int i = 0; i < betas.length; i++)
+            out.println(String.format(Locale.US, "%-6d %-9.4f %-13d %.4f", i, betas[i], proposed[i], getAcceptanceRate(i)));
+        out.println();
+        out.println("Swap   proposed      accepted");
+        for (int i = 0; i < swapsProposed.length; i++)
+            out.println(String.format(Locale.US, "%-6s %-13d %.4f", i + "-" + (i + 1), swapsProposed[i], getSwapRate(i)));
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        String prefix = getID() == null ? "coupled." : getID() + ".";
+        for (int i = 0; i < betas.length; i++)
+            out.print(prefix + "acceptance" + i + "\t");
+        for (int i = 0; i < swapsProposed.length; i++)
+            out.print(prefix + "swap" + i + "-" + (i + 1) + "\t");
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        for (int i = 0; i < betas.length; i++)
+            out.print(getAcceptanceRate(i) + "\t");
+        for (int i = 0; i < swapsProposed.length; i++)
+            out.print(getSwapRate(i) + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) {
+    }
+}
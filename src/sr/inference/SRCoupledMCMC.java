@@ -0,0 +1,345 @@
+package sr.inference;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.inference.Distribution;
+import beast.base.inference.MCMC;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.parser.XMLParser;
+import beast.base.parser.XMLProducer;
+import beast.base.util.Randomizer;
+import sr.evolution.tree.SRTree;
+import sr.evolution.tree.SRTreeState;
+import sr.util.RandomSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Metropolis-coupled MCMC (MC^3) in one JVM. This MCMC is the cold chain; heated copies of it
+ * are created from its XML and each runs the MCMC loop (burn-in, state file and resume,
+ * operator tuning) on a thread of its own. A heated chain samples the posterior raised to the
+ * power beta, by wrapping its distribution in a HeatedDistribution. Every swapEvery samples
+ * all chains wait for each other and a neighbouring pair proposes to exchange states. SR
+ * trees are exchanged through flat SRTreeState buffers, other state nodes through copy and
+ * assignFromFragile.
+ *
+ * Only the cold chain logs. Heated chains keep state files of their own, named after the state
+ * file of the cold chain. With a single chain the run is the same as that of MCMC. With more
+ * chains runs are not reproducible, even with a seed: the MCMC loop of every chain selects
+ * operators and accepts proposals with the global Randomizer, which all chain threads share.
+ * The seed only fixes the streams of the SR operators of the heated chains and of the swaps.
+ */
+@Description("Metropolis-coupled MCMC with heated chains run on separate threads in one JVM, " +
+        "exchanging SR tree states through flat buffers.")
+public class SRCoupledMCMC extends MCMC {
+
+    final public Input<Integer> chainsInput = new Input<>("chains",
+            "total number of chains, including the cold chain; each chain runs on a thread of its own", 4);
+    final public Input<Double> deltaTemperatureInput = new Input<>("deltaTemperature",
+            "chain i runs at inverse temperature 1 / (1 + i * deltaTemperature)", 0.1);
+    final public Input<Integer> swapEveryInput = new Input<>("swapEvery",
+            "number of samples between proposed swaps of neighbouring chains", 1000);
+    final public Input<Long> seedInput = new Input<>("seed",
+            "seed from which the streams of the heated chains and of the swaps are derived, default the Randomizer seed");
+    final public Input<CoupledChainStatistics> statisticsInput = new Input<>("statistics",
+            "collects acceptance and swap rates; add it to a logger to log them");
+
+    private int chainNr = 0;
+    private double beta = 1.0;
+    private Coupling coupling;
+    // set by the swap when the state of this chain was exchanged
+    private boolean swapped;
+    private SRTreeState[] treeStates;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+        if (chainsInput.get() < 1)
+            throw new IllegalArgumentException("At least one chain is needed, not " + chainsInput.get());
+        if (!(deltaTemperatureInput.get() > 0))
+            throw new IllegalArgumentException("deltaTemperature must be positive, not " + deltaTemperatureInput.get());
+        if (swapEveryInput.get() < 1)
+            throw new IllegalArgumentException("swapEvery must be positive, not " + swapEveryInput.get());
+    }
+
+    /**
+     * The posterior of a heated chain, beta times the log-density of the wrapped distribution.
+     */
+    @Description("Posterior of a heated chain, the wrapped distribution raised to the power beta.")
+    public static class HeatedDistribution extends Distribution {
+        final public Input<Distribution> distributionInput = new Input<>("distribution",
+                "the distribution to heat", Input.Validate.REQUIRED);
+        final public Input<Double> betaInput = new Input<>("beta", "inverse temperature", Input.Validate.REQUIRED);
+
+        @Override
+        public void initAndValidate() {
+        }
+
+        @Override
+        public double calculateLogP() {
+            logP = betaInput.get() * distributionInput.get().calculateLogP();
+            return logP;
+        }
+
+        @Override
+        public double getCurrentLogP() {
+            return betaInput.get() * distributionInput.get().getCurrentLogP();
+        }
+
+        @Override
+        public double getNonStochasticLogP() {
+            return betaInput.get() * distributionInput.get().getNonStochasticLogP();
+        }
+
+        @Override
+        public boolean isStochastic() {
+            return distributionInput.get().isStochastic();
+        }
+
+        @Override
+        public List<String> getArguments() {
+            return distributionInput.get().getArguments();
+        }
+
+        @Override
+        public List<String> getConditions() {
+            return distributionInput.get().getConditions();
+        }
+
+        @Override
+        public void sample(State state, Random random) {
+            distributionInput.get().sample(state, random);
+        }
+    }
+
+    /**
+     * What the chains of a run share: the chains, the phaser at which they wait for the swaps
+     * and the first failure. A failing chain terminates the phaser, which stops the others at
+     * their next swap.
+     */
+    private static class Coupling {
+        final SRCoupledMCMC[] chains;
+        final Phaser phaser;
+        final RandomSource swapRandom;
+        final CoupledChainStatistics statistics;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Coupling(SRCoupledMCMC[] chains, RandomSource swapRandom, CoupledChainStatistics statistics) {
+            this.chains = chains;
+            this.swapRandom = swapRandom;
+            this.statistics = statistics;
+            this.phaser = new Phaser(chains.length) {
+                // the swap runs on the last chain to arrive, while the others wait
+                @Override
+                protected boolean onAdvance(int phase, int registeredParties) {
+                    try {
+                        proposeSwap();
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        /**
+         * Proposes to exchange the states of a random pair of neighbouring chains.
+         */
+        private void proposeSwap() {
+            for (SRCoupledMCMC chain : chains)
+                chain.updateStatistics();
+            if (chains.length < 2)
+                return;
+            final int i = swapRandom.nextInt(chains.length - 1);
+            final SRCoupledMCMC a = chains[i];
+            final SRCoupledMCMC b = chains[i + 1];
+            final double logAlpha = (a.beta - b.beta) * (b.getUnheatedLogP() - a.getUnheatedLogP());
+            final boolean accept = logAlpha >= 0 || swapRandom.nextDouble() < Math.exp(logAlpha);
+            if (accept) {
+                if (a.treeStates == null)
+                    a.treeStates = new SRTreeState[a.state.getNrOfStateNodes()];
+                if (b.treeStates == null)
+                    b.treeStates = new SRTreeState[b.state.getNrOfStateNodes()];
+                exchangeStates(a.state, a.treeStates, b.state, b.treeStates);
+                a.swapped = true;
+                b.swapped = true;
+            }
+            statistics.addSwap(i, accept);
+        }
+
+        void fail(Throwable t) {
+            failure.compareAndSet(null, t);
+            phaser.forceTermination();
+        }
+    }
+
+    private double getUnheatedLogP() {
+        return oldLogLikelihood / beta;
+    }
+
+    private void updateStatistics() {
+        long proposed = 0, accepted = 0;
+        for (Operator operator : operatorsInput.get()) {
+            proposed += operator.get_m_nNrAccepted() + operator.get_m_nNrRejected();
+            accepted += operator.get_m_nNrAccepted();
+        }
+        coupling.statistics.setProposals(chainNr, proposed, accepted);
+    }
+
+    /**
+     * Exchanges the values of all state nodes of two states of copies of the same model.
+     *
+     * @param buffersA buffers for the SR trees of a, one per state node, allocated where null
+     * @param buffersB buffers for the SR trees of b
+     */
+    public static void exchangeStates(State a, SRTreeState[] buffersA, State b, SRTreeState[] buffersB) {
+        for (int k = 0; k < a.getNrOfStateNodes(); k++) {
+            final StateNode nodeA = a.getStateNode(k);
+            final StateNode nodeB = b.getStateNode(k);
+            if (nodeA instanceof SRTree && nodeB instanceof SRTree) {
+                if (buffersA[k] == null)
+                    buffersA[k] = new SRTreeState();
+                if (buffersB[k] == null)
+                    buffersB[k] = new SRTreeState();
+                ((SRTree) nodeA).exportState(buffersA[k]);
+                ((SRTree) nodeB).exportState(buffersB[k]);
+                ((SRTree) nodeA).importState(buffersB[k]);
+                ((SRTree) nodeB).importState(buffersA[k]);
+            } else {
+                final StateNode copyOfA = nodeA.copy();
+                nodeA.assignFromFragile(nodeB);
+                nodeB.assignFromFragile(copyOfA);
+            }
+        }
+    }
+
+    /**
+     * Called by the MCMC loop after every sample; waits for the other chains every swapEvery
+     * samples and recalculates the posterior if the swap exchanged the state of this chain.
+     */
+    @Override
+    protected void callUserFunction(final long sample) {
+        if (sample <= 0 || sample % swapEveryInput.get() != 0)
+            return;
+        if (coupling.phaser.arriveAndAwaitAdvance() < 0)
+            throw new RuntimeException("Chain " + chainNr + " stopped at sample " + sample + " because another chain failed");
+        if (swapped) {
+            swapped = false;
+            oldLogLikelihood = state.robustlyCalcPosterior(posterior);
+        }
+    }
+
+    private SRCoupledMCMC heatedCopy(int chainNr, double beta) {
+        SRCoupledMCMC copy;
+        try {
+            BEASTInterface parsed = new XMLParser().parseFragment(new XMLProducer().toRawXML(this), true);
+            copy = (SRCoupledMCMC) parsed;
+        } catch (Exception e) {
+            throw new RuntimeException("Could not create a heated copy of " + getID() + ": " + e.getMessage(), e);
+        }
+        copy.chainNr = chainNr;
+        copy.beta = beta;
+        HeatedDistribution heated = new HeatedDistribution();
+        heated.initByName("distribution", copy.posteriorInput.get(), "beta", beta);
+        copy.setInputValue("distribution", heated);
+        copy.loggersInput.get().clear();
+        copy.stateFileName = stateFileName == null ? null : stateFileName + ".chain" + chainNr;
+        copy.restoreFromFile = restoreFromFile;
+        return copy;
+    }
+
+    // runs the MCMC loop of this chain with the given stream for the SR operators
+    private void runChain(RandomSource random) {
+        final RandomSource previous = RandomSource.current();
+        RandomSource.setCurrent(random);
+        try {
+            super.run();
+        } catch (Throwable t) {
+            coupling.fail(t);
+        } finally {
+            RandomSource.setCurrent(previous);
+        }
+    }
+
+    @Override
+    public void run() throws IOException {
+        final int chainCount = chainsInput.get();
+        final long seed = seedInput.get() != null ? seedInput.get() : Randomizer.getSeed();
+        final CoupledChainStatistics statistics = statisticsInput.get() != null ? statisticsInput.get() : new CoupledChainStatistics();
+
+        SRCoupledMCMC[] chains = new SRCoupledMCMC[chainCount];
+        double[] betas = new double[chainCount];
+        chains[0] = this;
+        for (int i = 1; i < chainCount; i++) {
+            betas[i] = 1.0 / (1.0 + i * deltaTemperatureInput.get());
+            chains[i] = heatedCopy(i, betas[i]);
+        }
+        betas[0] = 1.0;
+        statistics.reset(betas);
+        // the swap decisions get a stream of their own, after those of the chains
+        coupling = new Coupling(chains, RandomSource.forChain(seed, chainCount), statistics);
+        for (SRCoupledMCMC chain : chains)
+            chain.coupling = coupling;
+        if (chainCount > 1)
+            Log.info.println("Running " + chainCount + " coupled chains, inverse temperatures from 1 to " + betas[chainCount - 1]);
+
+        // the cold chain runs on this thread and draws from the current stream, as MCMC does
+        ExecutorService pool = chainCount > 1 ? Executors.newFixedThreadPool(chainCount - 1) : null;
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int i = 1; i < chainCount; i++) {
+                final SRCoupledMCMC chain = chains[i];
+                final RandomSource random = RandomSource.forChain(seed, i);
+                futures.add(pool.submit(() -> chain.runChain(random)));
+            }
+            runChain(RandomSource.current());
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    coupling.fail(e);
+                }
+            }
+        } finally {
+            if (pool != null)
+                pool.shutdownNow();
+        }
+
+        final Throwable failure = coupling.failure.get();
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure != null)
+            throw new RuntimeException(failure.getMessage(), failure);
+
+        updateStatistics();
+        for (int i = 1; i < chainCount; i++)
+            chains[i].updateStatistics();
+        if (chainCount > 1) {
+            Log.info.println();
+            statistics.printSummary(Log.info);
+        }
+    }
+
+    /**
+     * @return rates of the chains of the last run
+     */
+    public CoupledChainStatistics getStatistics() {
+        return coupling == null ? null : coupling.statistics;
+    }
+}
@@ -0,0 +1,122 @@
+package sr.speciation;
+
+import sr.evolution.tree.SRTreeState;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Evaluates the SRangesBirthDeathModel log-density of many trees under several sets of rates,
+ * e.g. of the trees of a posterior sample for model comparison or importance sampling. Each
+ * tree is classified once (SRangesStructure) and the closed-form density is then evaluated for
+ * every parameter set. Trees are processed concurrently on a fixed number of threads.
+ *
+ * A parameter set is a row {lambda, mu, psi, rho, origin} or {lambda, mu, psi, rho, origin, r};
+ * without r the current removal probability of the model is used. The conditioning settings
+ * and the tree offset are those of the model, so the origin is given in the same units as the
+ * model's origin parameter.
+ */
+public class SRangesBatchLikelihood {
+
+    public static final int LAMBDA = 0, MU = 1, PSI = 2, RHO = 3, ORIGIN = 4, REMOVAL_PROBABILITY = 5;
+
+    private final SRangesBirthDeathModel model;
+    private final int threads;
+
+    /**
+     * @param model   model providing the conditioning settings, offset and removal probability
+     * @param threads number of trees evaluated concurrently
+     */
+    public SRangesBatchLikelihood(SRangesBirthDeathModel model, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Number of threads must be positive, not " + threads);
+        this.model = model;
+        this.threads = threads;
+    }
+
+    /**
+     * @param trees      flat tree states, e.g. filled by SRTree.exportState; the states are read
+     *                   on other threads and must not be changed until this method returns
+     * @param parameters one parameter set per row
+     * @return log-densities, one row per tree in the order of the stream, one column per parameter set
+     */
+    public double[][] logDensities(Stream<SRTreeState> trees, double[][] parameters) throws InterruptedException {
+        final double[][] rates = completeParameters(parameters);
+        final double offset = model.getOffset();
+        final ThreadLocal<SRangesBirthDeathModel> evaluators = ThreadLocal.withInitial(model::newEvaluator);
+        final ThreadLocal<SRangesStructure> structures = ThreadLocal.withInitial(SRangesStructure::new);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<double[]>> futures = new ArrayList<>();
+        try {
+            Iterator<SRTreeState> iterator = trees.iterator();
+            while (iterator.hasNext()) {
+                SRTreeState state = iterator.next();
+                futures.add(pool.submit(() -> evaluate(state, offset, rates, structures.get(), evaluators.get())));
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        double[][] result = new double[futures.size()][];
+        for (int t = 0; t < result.length; t++) {
+            try {
+                result[t] = futures.get(t).get();
+            } catch (ExecutionException e) {
+                pool.shutdownNow();
+                throw new RuntimeException("Evaluation of tree " + t + " failed: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Log-densities of a single tree, on the calling thread.
+     *
+     * @return one log-density per parameter set
+     */
+    public double[] logDensities(SRTreeState tree, double[][] parameters) {
+        SRangesStructure structure = new SRangesStructure();
+        return evaluate(tree, model.getOffset(), completeParameters(parameters), structure, model.newEvaluator());
+    }
+
+    private static double[] evaluate(SRTreeState state, double offset, double[][] rates,
+                                     SRangesStructure structure, SRangesBirthDeathModel evaluator) {
+        structure.update(state, offset);
+        double[] densities = new double[rates.length];
+        for (int p = 0; p < rates.length; p++) {
+            double[] row = rates[p];
+            evaluator.setRates(row[LAMBDA], row[MU], row[PSI], row[REMOVAL_PROBABILITY], row[RHO], row[ORIGIN]);
+            densities[p] = evaluator.logDensity(structure);
+        }
+        return densities;
+    }
+
+    // checks the rows and appends the removal probability of the model where it is missing
+    private double[][] completeParameters(double[][] parameters) {
+        double[][] rates = new double[parameters.length][];
+        double r = Double.NaN;
+        for (int p = 0; p < parameters.length; p++) {
+            double[] row = parameters[p];
+            if (row.length == REMOVAL_PROBABILITY + 1) {
+                rates[p] = row.clone();
+            } else if (row.length == REMOVAL_PROBABILITY) {
+                if (Double.isNaN(r))
+                    r = model.getRemovalProbability();
+                rates[p] = new double[REMOVAL_PROBABILITY + 1];
+                System.arraycopy(row, 0, rates[p], 0, row.length);
+                rates[p][REMOVAL_PROBABILITY] = r;
+            } else {
+                throw new IllegalArgumentException("Parameter set " + p + " has " + row.length +
+                        " values, expected lambda, mu, psi, rho, origin and optionally r");
+            }
+        }
+        return rates;
+    }
+}
@@ -1,13 +1,13 @@
 package sr.speciation;
 
-import beast.base.evolution.tree.Node;
 import beast.base.core.Citation;
 import beast.base.core.Description;
 
 
 import sa.evolution.speciation.SABirthDeathModel;
 import sr.evolution.tree.SRTree;
-import sr.evolution.sranges.StratigraphicRange;
+
+import java.util.Arrays;
 
 /**
  * @author Alexandra Gavryushkina
@@ -22,6 +22,35 @@ import sr.evolution.sranges.StratigraphicRange;
         "Bayesian total-evidence dating under the fossilized birth-death model with stratigraphic ranges.")
 public class SRangesBirthDeathModel extends SABirthDeathModel {
 
+    public static final int GRADIENT_BIRTH_RATE = 0, GRADIENT_DEATH_RATE = 1, GRADIENT_SAMPLING_RATE = 2,
+            GRADIENT_ORIGIN = 3, GRADIENT_HEIGHTS = 4;
+
+    // set by an SRangesLikelihoodProfiler reporting on this model, null otherwise
+    private SRangesLikelihoodProfiler profiler;
+    // time spent classifying the tree and in the sums over node classes and over ranges of the
+    // last evaluation, only measured with a profiler
+    private long structureNanos, nodeSumNanos, rangeSumNanos;
+    private boolean structureRecomputed;
+
+    // classification of the tree, kept until the tree or its offset changes so that moves of the
+    // rates only evaluate the sums; double buffered, the stored one belongs to the stored state.
+    // Keyed on the modification count of the tree, which also changes outside of a State
+    private final SRangesStructure[] structures = {new SRangesStructure(), new SRangesStructure()};
+    private final double[] structureOffsets = new double[2];
+    private final long[] structureCounts = new long[2];
+    private int currentStructure = 0, storedStructure = 0;
+    private boolean structureValid = false, storedStructureValid = false;
+
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+        structureValid = storedStructureValid = false;
+    }
+
+    void setProfiler(SRangesLikelihoodProfiler profiler) {
+        this.profiler = profiler;
+    }
+
     @Override
     public double q(double t, double c1, double c2) {
         double v = Math.exp(-c1 * t);
@@ -41,33 +70,77 @@ public class SRangesBirthDeathModel extends SABirthDeathModel {
         return 0.5*(-t*(lambda + mu + psi) + log_q(t,c1,c2));
     }
 
-    private Node findAncestralRangeLastNode(Node node) {
-        Node parent = node.getParent();
-        if (node.isDirectAncestor()){
-            parent = parent.getParent();
-            node = node.getParent();
+    @Override
+    public double calculateLogP() {
+        if (profiler == null) {
+            return computeLogP();
         }
-        if (parent == null) {
-            return parent;
-        } else {
-            if (parent.isFake()) {
-                return parent;
-            } else if (parent.getChild(0) == node) {
-                return findAncestralRangeLastNode(parent);
-            } else {
-                return null;
-            }
+        structureNanos = nodeSumNanos = rangeSumNanos = 0;
+        structureRecomputed = false;
+        final long start = System.nanoTime();
+        final double result = computeLogP();
+        profiler.addEvaluation(System.nanoTime() - start, structureNanos, nodeSumNanos, rangeSumNanos, structureRecomputed);
+        return result;
+    }
+
+    private double computeLogP()
+    {
+        SRTree tree = (SRTree) combinedTree.getTree();
+        updateParameters();
+
+        final long start = profiler == null ? 0 : System.nanoTime();
+        SRangesStructure structure = updateStructure(tree);
+        if (profiler != null) {
+            structureNanos = System.nanoTime() - start;
         }
+
+        logP = logDensity(structure);
+        return logP;
     }
 
+    /**
+     * @return the classification of the current tree, classified again only if the tree or its
+     * offset changed
+     */
+    private SRangesStructure updateStructure(SRTree tree) {
+        final double offset = combinedTree.getOffset();
+        final long count = tree.getModificationCount();
+        if (!structureValid || structureCounts[currentStructure] != count
+                || structureOffsets[currentStructure] != offset) {
+            if (currentStructure == storedStructure) {
+                // keep the stored classification for restore()
+                currentStructure = 1 - currentStructure;
+            }
+            structures[currentStructure].update(tree, offset);
+            structureOffsets[currentStructure] = offset;
+            structureCounts[currentStructure] = count;
+            structureValid = true;
+            structureRecomputed = true;
+        }
+        return structures[currentStructure];
+    }
 
+    @Override
+    public void store() {
+        storedStructure = currentStructure;
+        storedStructureValid = structureValid;
+        super.store();
+    }
 
     @Override
-    public double calculateLogP()
+    public void restore() {
+        currentStructure = storedStructure;
+        structureValid = storedStructureValid;
+        super.restore();
+    }
+
+    /**
+     * Log-density of a tree with the given structure under the current rates of this model,
+     * as set by updateParameters() or setRates. While a profiler is attached, the sum over the
+     * node classes and the sum over the ranges are timed separately.
+     */
+    double logDensity(SRangesStructure structure)
     {
-        SRTree tree = (SRTree) combinedTree.getTree();
-        int nodeCount = tree.getNodeCount();
-        updateParameters();
         if (lambdaExceedsMu && lambda <= mu) {
             return Double.NEGATIVE_INFINITY;
         }
@@ -77,16 +150,17 @@ public class SRangesBirthDeathModel extends SABirthDeathModel {
         }
 
         double x0 = origin;
-        double x1 = combinedTree.getHeightOfNode(tree.getRoot().getNr());
+        double x1 = structure.rootHeight;
 
         if (x0 < x1 ) {
             return Double.NEGATIVE_INFINITY;
         }
 
+        double logP;
         if (!conditionOnRootInput.get()){
             logP = log_q(x0, c1, c2);
         } else {
-            if (tree.getRoot().isFake()){   //when conditioning on the root we assume the process
+            if (structure.rootIsFake){   //when conditioning on the root we assume the process
                 //starts at the time of the first branching event and
                 //that means that the root can not be a sampled ancestor
                 return Double.NEGATIVE_INFINITY;
@@ -107,57 +181,331 @@ public class SRangesBirthDeathModel extends SABirthDeathModel {
             }
         }
 
-        for (int i = 0; i < nodeCount; i++) {
-            Node node = tree.getNode(i);
-            if (node.isLeaf()) {
-                if  (!node.isDirectAncestor())  {
-                    Node fossilParent = node.getParent();
-                    if (combinedTree.getHeightOfNode(i) > 0.000000000005 || rho == 0.) {
-
-                        if (((SRTree)tree).belongToSameSRange(i, fossilParent.getNr())) {
-                            logP += Math.log(psi) - log_q_tilde(combinedTree.getHeightOfNode(i), c1, c2) + log_p0s(combinedTree.getHeightOfNode(i), c1, c2);
+        final boolean timed = profiler != null;
+        long start = timed ? System.nanoTime() : 0;
+        final byte[] nodeClasses = structure.nodeClasses;
+        final double[] heights = structure.heights;
+        for (int i = 0; i < structure.nodeCount; i++) {
+            final double height = heights[i];
+            switch (nodeClasses[i]) {
+                case SRangesStructure.SAMPLED_LEAF:
+                case SRangesStructure.RANGE_LEAF:
+                    if (height > 0.000000000005 || rho == 0.) {
+                        if (nodeClasses[i] == SRangesStructure.RANGE_LEAF) {
+                            logP += Math.log(psi) - log_q_tilde(height, c1, c2) + log_p0s(height, c1, c2);
                         } else {
-                            logP += Math.log(psi) - log_q(combinedTree.getHeightOfNode(i), c1, c2) + log_p0s(combinedTree.getHeightOfNode(i), c1, c2);
+                            logP += Math.log(psi) - log_q(height, c1, c2) + log_p0s(height, c1, c2);
                         }
                     } else {
                         logP += Math.log(rho);
                     }
-                }
-            } else {
-                if (node.isFake()) {
+                    break;
+                case SRangesStructure.FAKE:
+                case SRangesStructure.FAKE_ENTERING:
+                case SRangesStructure.FAKE_LEAVING:
+                case SRangesStructure.FAKE_ENTERING_LEAVING:
                     logP += Math.log(psi);
-                    Node parent = node.getParent();
-                    Node child = node.getNonDirectAncestorChild();
-                    Node DAchild = node.getDirectAncestorChild();
-                    if (parent != null && ((SRTree)tree).belongToSameSRange(parent.getNr(),DAchild.getNr())) {
-                        logP += - log_q_tilde(combinedTree.getHeightOfNode(i), c1, c2) + log_q(combinedTree.getHeightOfNode(i), c1, c2);
+                    if (nodeClasses[i] == SRangesStructure.FAKE_ENTERING || nodeClasses[i] == SRangesStructure.FAKE_ENTERING_LEAVING) {
+                        logP += - log_q_tilde(height, c1, c2) + log_q(height, c1, c2);
                     }
-                    if (child != null && ((SRTree)tree).belongToSameSRange(i,child.getNr())) {
-                        logP += - log_q(combinedTree.getHeightOfNode(i), c1, c2) +  log_q_tilde(combinedTree.getHeightOfNode(i), c1, c2);
+                    if (nodeClasses[i] == SRangesStructure.FAKE_LEAVING || nodeClasses[i] == SRangesStructure.FAKE_ENTERING_LEAVING) {
+                        logP += - log_q(height, c1, c2) +  log_q_tilde(height, c1, c2);
                     }
-                } else {
-                    logP += Math.log(lambda) + log_q(combinedTree.getHeightOfNode(i), c1, c2);
-                }
+                    break;
+                case SRangesStructure.SPECIATION:
+                    logP += Math.log(lambda) + log_q(height, c1, c2);
+                    break;
+                default:
+                    // direct ancestors are accounted for by their fake parent
             }
         }
 
+        if (timed) {
+            final long now = System.nanoTime();
+            nodeSumNanos = now - start;
+            start = now;
+        }
+
         // integrate over fossils in the range. This seems to suggest that we take out the psi in the previous equations
-        for (StratigraphicRange range:((SRTree)tree).getSRanges()) {
-            Node first =  tree.getNode(range.getNodeNrs().get(0));
-            if (!range.isSingleFossilRange()) {
-                double tFirst = combinedTree.getHeightOfNode(first.getNr());
-                double tLast = combinedTree.getHeightOfNode(range.getNodeNrs().get(range.getNodeNrs().size()-1));
+        for (int r = 0; r < structure.rangeCount; r++) {
+            double tFirst = structure.firstHeights[r];
+            double tLast = structure.lastHeights[r];
+            if (tFirst != tLast) {
                 logP += psi*(tFirst - tLast);
             }
-            Node ancestralLast = findAncestralRangeLastNode(first);
-            if (ancestralLast != null) {
-                double tOld = combinedTree.getHeightOfNode(ancestralLast.getNr());
-                double tYoung = combinedTree.getHeightOfNode(first.getNr());
+            double tOld = structure.ancestralLastHeights[r];
+            if (!Double.isNaN(tOld)) {
+                double tYoung = tFirst;
                 logP += Math.log(1-q(tYoung, c1, c2)/q_tilde(tYoung, c1, c2)*q_tilde(tOld, c1, c2)/q(tOld, c1, c2));
             }
         }
+        if (timed) {
+            rangeSumNanos = System.nanoTime() - start;
+        }
         return logP;
     }
 
-}
+    /**
+     * Gradient of calculateLogP() with respect to the birth rate, death rate, sampling rate, origin
+     * and every node height, in one pass over the classified tree. Rates are those of the untransformed
+     * parametrisation. Heights are treated as independent: a sampled ancestor and its fake parent
+     * share a height, so a sampler moving them together adds their two entries. Leaves sampled at
+     * present (rho) contribute nothing. All entries are NaN where the density is zero.
+     *
+     * @return derivatives at GRADIENT_BIRTH_RATE, GRADIENT_DEATH_RATE, GRADIENT_SAMPLING_RATE and
+     * GRADIENT_ORIGIN, then at GRADIENT_HEIGHTS + node number for every node
+     */
+    public double[] gradient() {
+        SRTree tree = (SRTree) combinedTree.getTree();
+        updateParameters();
+        SRangesStructure structure = updateStructure(tree);
+        double[] gradient = new double[GRADIENT_HEIGHTS + structure.nodeCount];
+        gradient(structure, gradient);
+        return gradient;
+    }
+
+    /**
+     * Gradient of logDensity(structure) under the current rates, see gradient().
+     */
+    void gradient(SRangesStructure structure, double[] gradient)
+    {
+        Arrays.fill(gradient, 0, GRADIENT_HEIGHTS + structure.nodeCount, 0.0);
+        final double x0 = origin;
+        final double x1 = structure.rootHeight;
+        if ((lambdaExceedsMu && lambda <= mu) || lambda < 0 || mu < 0 || psi < 0 || x0 < x1 ||
+                (conditionOnRootInput.get() && structure.rootIsFake)) {
+            Arrays.fill(gradient, 0, GRADIENT_HEIGHTS + structure.nodeCount, Double.NaN);
+            return;
+        }
+
+        // derivatives of c1 and c2 by lambda, mu and psi
+        final double a = lambda - mu - psi;
+        final double[] dc1 = {(a + 2 * psi) / c1, -a / c1, (2 * lambda - a) / c1};
+        final double[] dB = {1 - 2 * rho, -1, -1};
+        final double[] dc2 = new double[3];
+        for (int k = 0; k < 3; k++) {
+            dc2[k] = (-dB[k] - c2 * dc1[k]) / c1;
+        }
+        // derivatives of a term by its time and by lambda, mu and psi
+        final double[] d = new double[4];
+        final double[] dTilde = new double[4];
+        final double[] dYoung = new double[4];
+
+        if (!conditionOnRootInput.get()) {
+            logQGradient(x0, dc1, dc2, d);
+            addTerm(gradient, GRADIENT_ORIGIN, d, 1.0);
+        } else {
+            logQGradient(x1, dc1, dc2, d);
+            addTerm(gradient, GRADIENT_HEIGHTS + structure.rootNr, d, 1.0);
+        }
 
+        if (conditionOnSamplingInput.get()) {
+            double p0 = p0Gradient(x0, dc1, dc2, d);
+            addTerm(gradient, GRADIENT_ORIGIN, d, 1.0 / (1 - p0));
+        }
+
+        if (conditionOnRhoSamplingInput.get()) {
+            if (conditionOnRootInput.get()) {
+                gradient[GRADIENT_BIRTH_RATE] -= 1 / lambda;
+                logOneMinusP0HatGradient(x1, d);
+                addTerm(gradient, GRADIENT_HEIGHTS + structure.rootNr, d, -2.0);
+            } else {
+                logOneMinusP0HatGradient(x0, d);
+                addTerm(gradient, GRADIENT_ORIGIN, d, -1.0);
+            }
+        }
+
+        final byte[] nodeClasses = structure.nodeClasses;
+        final double[] heights = structure.heights;
+        for (int i = 0; i < structure.nodeCount; i++) {
+            final double height = heights[i];
+            final int index = GRADIENT_HEIGHTS + i;
+            switch (nodeClasses[i]) {
+                case SRangesStructure.SAMPLED_LEAF:
+                case SRangesStructure.RANGE_LEAF:
+                    if (height > 0.000000000005 || rho == 0.) {
+                        gradient[GRADIENT_SAMPLING_RATE] += 1 / psi;
+                        if (nodeClasses[i] == SRangesStructure.RANGE_LEAF) {
+                            logQTildeGradient(height, dc1, dc2, d);
+                        } else {
+                            logQGradient(height, dc1, dc2, d);
+                        }
+                        addTerm(gradient, index, d, -1.0);
+                        double p0 = p0Gradient(height, dc1, dc2, d);
+                        addTerm(gradient, index, d, (1 - r) / (r + (1 - r) * p0));
+                    }
+                    break;
+                case SRangesStructure.FAKE:
+                case SRangesStructure.FAKE_ENTERING:
+                case SRangesStructure.FAKE_LEAVING:
+                case SRangesStructure.FAKE_ENTERING_LEAVING:
+                    gradient[GRADIENT_SAMPLING_RATE] += 1 / psi;
+                    final boolean entering = nodeClasses[i] == SRangesStructure.FAKE_ENTERING ||
+                            nodeClasses[i] == SRangesStructure.FAKE_ENTERING_LEAVING;
+                    final boolean leaving = nodeClasses[i] == SRangesStructure.FAKE_LEAVING ||
+                            nodeClasses[i] == SRangesStructure.FAKE_ENTERING_LEAVING;
+                    if (entering != leaving) {
+                        // log q - log q_tilde entering, the negative leaving; both cancel
+                        logQGradient(height, dc1, dc2, d);
+                        logQTildeGradient(height, dc1, dc2, dTilde);
+                        final double sign = entering ? 1.0 : -1.0;
+                        addTerm(gradient, index, d, sign);
+                        addTerm(gradient, index, dTilde, -sign);
+                    }
+                    break;
+                case SRangesStructure.SPECIATION:
+                    gradient[GRADIENT_BIRTH_RATE] += 1 / lambda;
+                    logQGradient(height, dc1, dc2, d);
+                    addTerm(gradient, index, d, 1.0);
+                    break;
+                default:
+                    // direct ancestors are accounted for by their fake parent
+            }
+        }
+
+        for (int r = 0; r < structure.rangeCount; r++) {
+            double tFirst = structure.firstHeights[r];
+            double tLast = structure.lastHeights[r];
+            if (tFirst != tLast) {
+                gradient[GRADIENT_SAMPLING_RATE] += tFirst - tLast;
+                gradient[GRADIENT_HEIGHTS + structure.firstNodes[r]] += psi;
+                gradient[GRADIENT_HEIGHTS + structure.lastNodes[r]] -= psi;
+            }
+            double tOld = structure.ancestralLastHeights[r];
+            if (!Double.isNaN(tOld)) {
+                double tYoung = tFirst;
+                // log(1 - R) with log R = f(tYoung) - f(tOld), f = log q - log q_tilde
+                double ratio = q(tYoung, c1, c2)/q_tilde(tYoung, c1, c2)*q_tilde(tOld, c1, c2)/q(tOld, c1, c2);
+                double weight = -ratio / (1 - ratio);
+                logQGradient(tYoung, dc1, dc2, d);
+                logQTildeGradient(tYoung, dc1, dc2, dTilde);
+                for (int k = 0; k < 4; k++) {
+                    dYoung[k] = d[k] - dTilde[k];
+                }
+                addTerm(gradient, GRADIENT_HEIGHTS + structure.firstNodes[r], dYoung, weight);
+                logQGradient(tOld, dc1, dc2, d);
+                logQTildeGradient(tOld, dc1, dc2, dTilde);
+                for (int k = 0; k < 4; k++) {
+                    d[k] -= dTilde[k];
+                }
+                addTerm(gradient, GRADIENT_HEIGHTS + structure.ancestralLastNodes[r], d, -weight);
+            }
+        }
+    }
+
+    // adds factor times the derivatives d of a term by its time and the rates
+    private static void addTerm(double[] gradient, int timeIndex, double[] d, double factor) {
+        gradient[timeIndex] += factor * d[0];
+        gradient[GRADIENT_BIRTH_RATE] += factor * d[1];
+        gradient[GRADIENT_DEATH_RATE] += factor * d[2];
+        gradient[GRADIENT_SAMPLING_RATE] += factor * d[3];
+    }
+
+    // derivatives of log q(t) by t, lambda, mu and psi
+    private void logQGradient(double t, double[] dc1, double[] dc2, double[] d) {
+        final double v = Math.exp(-c1 * t);
+        final double denominator = v * (1 - c2) + 1 + c2;
+        final double byC1 = -t + 2 * t * v * (1 - c2) / denominator;
+        final double byC2 = -2 * (1 - v) / denominator;
+        d[0] = -c1 + 2 * c1 * v * (1 - c2) / denominator;
+        for (int k = 0; k < 3; k++) {
+            d[k + 1] = byC1 * dc1[k] + byC2 * dc2[k];
+        }
+    }
+
+    // derivatives of log q_tilde(t) by t, lambda, mu and psi
+    private void logQTildeGradient(double t, double[] dc1, double[] dc2, double[] d) {
+        logQGradient(t, dc1, dc2, d);
+        d[0] = 0.5 * (-(lambda + mu + psi) + d[0]);
+        for (int k = 1; k < 4; k++) {
+            d[k] = 0.5 * (-t + d[k]);
+        }
+    }
+
+    /**
+     * Derivatives of p0(t) by t, lambda, mu and psi into d.
+     *
+     * @return p0(t)
+     */
+    private double p0Gradient(double t, double[] dc1, double[] dc2, double[] d) {
+        final double v = Math.exp(-c1 * t);
+        final double numerator = (1 + c2) - v * (1 - c2);
+        final double denominator = (1 + c2) + v * (1 - c2);
+        final double g = numerator / denominator;
+        final double byV = -2 * (1 - c2) * (1 + c2) / (denominator * denominator);
+        final double byC2 = 4 * v / (denominator * denominator);
+        final double p0 = (lambda + mu + psi - c1 * g) / (2 * lambda);
+        d[0] = -c1 * byV * (-c1 * v) / (2 * lambda);
+        for (int k = 0; k < 3; k++) {
+            final double dg = byV * (-t * v) * dc1[k] + byC2 * dc2[k];
+            d[k + 1] = (1 - dc1[k] * g - c1 * dg) / (2 * lambda);
+        }
+        d[1] -= p0 / lambda;
+        return p0;
+    }
+
+    // derivatives of log(1 - p0_hat(t)) by t, lambda, mu and psi
+    private void logOneMinusP0HatGradient(double t, double[] d) {
+        final double e = Math.exp((mu - lambda) * t);
+        final double k = lambda * (1 - rho) - mu;
+        final double denominator = lambda * rho + k * e;
+        d[0] = -k * e * (mu - lambda) / denominator;
+        d[1] = 1 / (lambda - mu) - (rho + (1 - rho) * e - k * t * e) / denominator;
+        d[2] = -1 / (lambda - mu) - (-e + k * t * e) / denominator;
+        d[3] = 0.0;
+    }
+
+    /**
+     * Sets the rates used by logDensity directly, bypassing the parameter inputs. Only for
+     * evaluators created by newEvaluator().
+     */
+    void setRates(double lambda, double mu, double psi, double r, double rho, double origin) {
+        this.lambda = lambda;
+        this.mu = mu;
+        this.psi = psi;
+        this.r = r;
+        this.rho = rho;
+        this.origin = origin;
+        c1 = Math.sqrt((lambda - mu - psi) * (lambda - mu - psi) + 4 * lambda * psi);
+        c2 = -(lambda - mu - 2 * lambda * rho - psi) / c1;
+    }
+
+    /**
+     * @return a model that is not connected to any tree or parameter, with the conditioning
+     * settings of this one, to evaluate logDensity under rates given by setRates on another
+     * thread
+     */
+    SRangesBirthDeathModel newEvaluator() {
+        SRangesBirthDeathModel evaluator = new SRangesBirthDeathModel();
+        evaluator.conditionOnRootInput.setValue(conditionOnRootInput.get(), evaluator);
+        evaluator.conditionOnSamplingInput.setValue(conditionOnSamplingInput.get(), evaluator);
+        evaluator.conditionOnRhoSamplingInput.setValue(conditionOnRhoSamplingInput.get(), evaluator);
+        evaluator.lambdaExceedsMu = lambdaExceedsMu;
+        return evaluator;
+    }
+
+    /**
+     * @return the current rates of this model in the layout of SRangesBatchLikelihood: lambda, mu,
+     * psi, rho, origin and r
+     */
+    double[] getRates() {
+        updateParameters();
+        return new double[] {lambda, mu, psi, rho, origin, r};
+    }
+
+    /**
+     * @return the current removal probability of this model
+     */
+    double getRemovalProbability() {
+        updateParameters();
+        return r;
+    }
+
+    /**
+     * @return the offset of the tree of this model, added to all node heights
+     */
+    double getOffset() {
+        return combinedTree.getOffset();
+    }
+
+}
@@ -0,0 +1,81 @@
+package sr.speciation;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+
+import java.io.PrintStream;
+
+/**
+ * Reports how much time an SRangesBirthDeathModel takes, per logging interval: the number of
+ * calculateLogP calls since the previous log line, their mean and maximum latency, the shares
+ * of that time spent classifying the tree (SRangesStructure), in the sum over the node classes
+ * and in the integration over the ranges, the share of calls that had to classify the tree again
+ * rather than reuse the classification of the previous state, and the share of the
+ * wall-clock time of the interval spent in the model. A low wall-clock share means that other
+ * parts of the posterior, typically the tree likelihoods, dominate.
+ *
+ * The model is only timed while a profiler is attached to it, so analyses without one do
+ * not pay for the System.nanoTime calls.
+ */
+@Description("Logs the number of evaluations, latency and time split of an SRangesBirthDeathModel per logging interval.")
+public class SRangesLikelihoodProfiler extends BEASTObject implements Loggable {
+
+    final public Input<SRangesBirthDeathModel> modelInput = new Input<>("model",
+            "stratigraphic range birth-death model to profile", Input.Validate.REQUIRED);
+
+    private long evaluations, recomputations;
+    private long nanos, maxNanos, structureNanos, nodeSumNanos, rangeSumNanos;
+    private long intervalStart;
+
+    @Override
+    public void initAndValidate() {
+        modelInput.get().setProfiler(this);
+    }
+
+    void addEvaluation(long evaluationNanos, long structure, long nodeSum, long rangeSum, boolean recomputed) {
+        evaluations++;
+        if (recomputed)
+            recomputations++;
+        nanos += evaluationNanos;
+        if (evaluationNanos > maxNanos)
+            maxNanos = evaluationNanos;
+        structureNanos += structure;
+        nodeSumNanos += nodeSum;
+        rangeSumNanos += rangeSum;
+    }
+
+    private void startInterval() {
+        evaluations = recomputations = nanos = maxNanos = structureNanos = nodeSumNanos = rangeSumNanos = 0;
+        intervalStart = System.nanoTime();
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        String prefix = (getID() == null ? "profile" : getID()) + ".";
+        out.print(prefix + "evaluations\t" + prefix + "meanMicros\t" + prefix + "maxMicros\t" +
+                prefix + "structureFraction\t" + prefix + "nodeSumFraction\t" + prefix + "rangeSumFraction\t" +
+                prefix + "recomputedFraction\t" +
+                prefix + "wallFraction\t");
+        startInterval();
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        final long wallNanos = System.nanoTime() - intervalStart;
+        out.print(evaluations + "\t");
+        out.print((evaluations == 0 ? Double.NaN : nanos / 1e3 / evaluations) + "\t");
+        out.print(maxNanos / 1e3 + "\t");
+        out.print((nanos == 0 ? Double.NaN : (double) structureNanos / nanos) + "\t");
+        out.print((nanos == 0 ? Double.NaN : (double) nodeSumNanos / nanos) + "\t");
+        out.print((nanos == 0 ? Double.NaN : (double) rangeSumNanos / nanos) + "\t");
+        out.print((evaluations == 0 ? Double.NaN : (double) recomputations / evaluations) + "\t");
+        out.print((wallNanos == 0 ? Double.NaN : (double) nanos / wallNanos) + "\t");
+        startInterval();
+    }
+
+    @Override
+    public void close(PrintStream out) {
+    }
+}
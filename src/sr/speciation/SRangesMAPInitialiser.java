@@ -0,0 +1,411 @@
+package sr.speciation;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.inference.Distribution;
+import beast.base.inference.StateNode;
+import beast.base.inference.StateNodeInitialiser;
+import beast.base.inference.parameter.RealParameter;
+import sr.evolution.tree.SRTree;
+import sr.evolution.tree.SRTreeState;
+import sr.util.RandomSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Starting state near the mode of the posterior: the speciation times of the tree and, optionally,
+ * the birth, death and sampling rates and the origin are moved to a maximum of the
+ * SRangesBirthDeathModel density, plus an optional likelihood. Listed after RandomSRangeTree in
+ * the init element, it replaces the coalescent start by a state that needs far less burn-in.
+ *
+ * Leaves and sampled ancestors keep their heights, so the first and last occurrences of every
+ * range stay where the data put them, and so does the topology with all ranges. Speciation times
+ * are kept above their children and below their parents, the origin above the root.
+ *
+ * The optimiser is sign-based gradient ascent (Rprop) with a step size per coordinate, which
+ * copes with times and rates on different scales. Rates are moved on the log scale. Steps follow
+ * the analytic gradient of the birth-death density; a step is kept only if it increases the
+ * objective, so a supplied likelihood, e.g. the tree likelihood, is taken into account but its
+ * gradient is not used. Several restarts, the first from the current state and the others from
+ * random times and rates around it, run concurrently on flat copies of the tree; the likelihood
+ * is evaluated on the tree itself, one restart at a time. The best restart is kept.
+ */
+@Description("Initialises an SR tree and birth-death rates by maximising the stratigraphic range birth-death " +
+        "density, plus an optional likelihood, with gradient ascent from several restarts.")
+public class SRangesMAPInitialiser extends BEASTObject implements StateNodeInitialiser {
+
+    final public Input<SRangesBirthDeathModel> modelInput = new Input<>("model",
+            "stratigraphic range birth-death model to maximise", Input.Validate.REQUIRED);
+    final public Input<SRTree> treeInput = new Input<>("tree",
+            "tree of the model; its speciation times are optimised", Input.Validate.REQUIRED);
+    final public Input<List<RealParameter>> parameterInput = new Input<>("parameter",
+            "birth rate, death rate, sampling rate or origin of the model to optimise as well; " +
+            "parameters that are not listed keep their values", new ArrayList<>());
+    final public Input<Distribution> likelihoodInput = new Input<>("likelihood",
+            "log-density of the tree added to the objective, e.g. the tree likelihood; it may depend " +
+            "on the tree but not on the optimised parameters");
+    final public Input<Integer> restartsInput = new Input<>("restarts",
+            "number of starting points, the first being the current state", 4);
+    final public Input<Integer> threadsInput = new Input<>("threads",
+            "number of restarts optimised concurrently, default one per restart", 0);
+    final public Input<Integer> iterationsInput = new Input<>("iterations",
+            "maximum number of steps per restart", 1000);
+    final public Input<Double> toleranceInput = new Input<>("tolerance",
+            "a restart stops after 20 steps in a row improving the objective by less than this", 1e-8);
+    final public Input<RandomSource> rngInput = new Input<>("rng", "random number stream for the starting points " +
+            "of the restarts. If not set, the stream of the running thread is used, which is the global Randomizer " +
+            "unless a chain runner sets its own.");
+
+    // optimised rates, indices into the gradient and into the rates in SRangesBatchLikelihood layout
+    private static final int[] GRADIENT_INDICES = {SRangesBirthDeathModel.GRADIENT_BIRTH_RATE,
+            SRangesBirthDeathModel.GRADIENT_DEATH_RATE, SRangesBirthDeathModel.GRADIENT_SAMPLING_RATE,
+            SRangesBirthDeathModel.GRADIENT_ORIGIN};
+    private static final int[] RATE_INDICES = {SRangesBatchLikelihood.LAMBDA, SRangesBatchLikelihood.MU,
+            SRangesBatchLikelihood.PSI, SRangesBatchLikelihood.ORIGIN};
+    private static final int ORIGIN = 3;
+    private static final int MAX_NON_IMPROVING = 20;
+
+    // parameter per optimised rate, null if that rate is fixed
+    private final RealParameter[] parameters = new RealParameter[4];
+
+    // set up per run of initStateNodes, read only while the restarts run
+    private double offset;
+    // the model may hold the origin shifted by the tree offset: model origin minus parameter value
+    private double originShift;
+    private double[] initialRates;
+    private double margin;
+    private int[] freeNodes;
+    private double[] floors;
+
+    private final Object likelihoodLock = new Object();
+
+    @Override
+    public void initAndValidate() {
+        SRangesBirthDeathModel model = modelInput.get();
+        RealParameter[] modelParameters = {model.birthRateInput.get(), model.deathRateInput.get(),
+                model.samplingRateInput.get(), model.originInput.get()};
+        Arrays.fill(parameters, null);
+        for (RealParameter parameter : parameterInput.get()) {
+            int k = 0;
+            while (k < modelParameters.length && modelParameters[k] != parameter)
+                k++;
+            if (k == modelParameters.length)
+                throw new IllegalArgumentException("Parameter " + parameter.getID() + " is not the birth rate, " +
+                        "death rate, sampling rate or origin of " + model.getID());
+            parameters[k] = parameter;
+        }
+        if (restartsInput.get() < 1)
+            throw new IllegalArgumentException("At least one restart is needed, not " + restartsInput.get());
+        if (threadsInput.get() < 0)
+            throw new IllegalArgumentException("Number of threads must not be negative, not " + threadsInput.get());
+    }
+
+    /**
+     * State of one restart: a flat copy of the tree, the rates and the classification of the copy.
+     */
+    private class Restart {
+        final SRTreeState state = new SRTreeState();
+        final SRangesStructure structure = new SRangesStructure();
+        final SRangesBirthDeathModel evaluator = modelInput.get().newEvaluator();
+        double[] rates;
+        double objective;
+        int steps;
+
+        // classifies the copy and passes the rates to the evaluator
+        void update() {
+            structure.update(state, offset);
+            evaluator.setRates(rates[SRangesBatchLikelihood.LAMBDA], rates[SRangesBatchLikelihood.MU],
+                    rates[SRangesBatchLikelihood.PSI], rates[SRangesBatchLikelihood.REMOVAL_PROBABILITY],
+                    rates[SRangesBatchLikelihood.RHO], rates[SRangesBatchLikelihood.ORIGIN]);
+        }
+
+        double evaluate() {
+            update();
+            double logP = evaluator.logDensity(structure);
+            if (likelihoodInput.get() != null && logP > Double.NEGATIVE_INFINITY) {
+                synchronized (likelihoodLock) {
+                    treeInput.get().importState(state);
+                    logP += likelihoodInput.get().calculateLogP();
+                }
+            }
+            return Double.isNaN(logP) ? Double.NEGATIVE_INFINITY : logP;
+        }
+    }
+
+    @Override
+    public void initStateNodes() {
+        SRTree tree = treeInput.get();
+        SRangesBirthDeathModel model = modelInput.get();
+        final double[] rates = model.getRates();
+        initialRates = rates.clone();
+        offset = model.getOffset();
+        if (parameters[ORIGIN] != null)
+            originShift = rates[SRangesBatchLikelihood.ORIGIN] - parameters[ORIGIN].getValue();
+
+        SRTreeState start = new SRTreeState();
+        tree.exportState(start);
+        SRangesStructure structure = new SRangesStructure();
+        structure.update(start, offset);
+        setUp(start, structure);
+
+        boolean anyRate = false;
+        for (RealParameter parameter : parameters)
+            anyRate |= parameter != null;
+        if (freeNodes.length == 0 && !anyRate) {
+            Log.warning(getID() + ": no speciation times or parameters to optimise.");
+            return;
+        }
+
+        final int restarts = restartsInput.get();
+        final int threads = threadsInput.get() > 0 ? threadsInput.get() : restarts;
+        RandomSource rng = RandomSource.orCurrent(rngInput.get());
+        final long seed = ((long) rng.nextInt(Integer.MAX_VALUE) << 31) ^ rng.nextInt(Integer.MAX_VALUE);
+
+        List<Restart> runs = new ArrayList<>();
+        for (int i = 0; i < restarts; i++) {
+            Restart run = new Restart();
+            tree.exportState(run.state);
+            run.rates = rates.clone();
+            runs.add(run);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, restarts));
+        List<Future<Restart>> futures = new ArrayList<>();
+        for (int i = 0; i < restarts; i++) {
+            final Restart run = runs.get(i);
+            final RandomSource stream = i == 0 ? null : RandomSource.forChain(seed, i);
+            futures.add(pool.submit(() -> optimise(run, stream)));
+        }
+        pool.shutdown();
+
+        Restart best = null;
+        for (int i = 0; i < restarts; i++) {
+            Restart run;
+            try {
+                run = futures.get(i).get();
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(getID() + " was interrupted", e);
+            } catch (ExecutionException e) {
+                pool.shutdownNow();
+                throw new RuntimeException("Restart " + i + " of " + getID() + " failed: " + e.getCause().getMessage(), e.getCause());
+            }
+            Log.info(getID() + ": restart " + i + " reached " + run.objective + " after " + run.steps + " steps");
+            if (best == null || run.objective > best.objective)
+                best = run;
+        }
+
+        if (best.objective == Double.NEGATIVE_INFINITY) {
+            Log.warning(getID() + ": no restart reached a state with positive density, the state is left unchanged.");
+            tree.importState(start);
+            return;
+        }
+        tree.importState(best.state);
+        for (int k = 0; k < parameters.length; k++) {
+            if (parameters[k] == null)
+                continue;
+            double value = best.rates[RATE_INDICES[k]];
+            parameters[k].setValue(k == ORIGIN ? value - originShift : value);
+        }
+    }
+
+    /**
+     * Finds the optimised nodes, speciation events, an order with children before parents and,
+     * per node, the highest fixed height in its subtree, below which no speciation time may go.
+     */
+    private void setUp(SRTreeState state, SRangesStructure structure) {
+        final int n = state.getNodeCount();
+        int[] postOrder = state.postOrderNrs();
+
+        List<Integer> free = new ArrayList<>();
+        floors = new double[n];
+        for (int node : postOrder) {
+            if (structure.nodeClasses[node] == SRangesStructure.SPECIATION) {
+                free.add(node);
+                floors[node] = Math.max(floors[state.getLeftChild(node)], floors[state.getRightChild(node)]);
+            } else {
+                floors[node] = state.getHeight(node);
+            }
+        }
+        // in post order, so projecting front to back raises children before their parents
+        freeNodes = free.stream().mapToInt(Integer::intValue).toArray();
+        margin = 1e-6 * Math.max(state.getHeight(state.getRootNr()), 1e-3);
+    }
+
+    private Restart optimise(Restart run, RandomSource stream) {
+        final SRTreeState state = run.state;
+        if (stream != null) {
+            randomise(run, stream);
+        }
+        project(run);
+        run.objective = run.evaluate();
+        if (run.objective == Double.NEGATIVE_INFINITY && stream != null) {
+            // random rates outside the support of the model, e.g. a death rate above the birth rate
+            run.rates = initialRates.clone();
+            project(run);
+            run.objective = run.evaluate();
+        }
+        if (run.objective == Double.NEGATIVE_INFINITY) {
+            return run;
+        }
+
+        final int h = freeNodes.length;
+        final double height = state.getHeight(state.getRootNr());
+        double[] steps = new double[h + 4];
+        double[] maxSteps = new double[h + 4];
+        double[] previousSigns = new double[h + 4];
+        double[] previous = new double[h + 4];
+        Arrays.fill(steps, 0, h, 0.01 * height);
+        Arrays.fill(maxSteps, 0, h, 0.1 * height);
+        for (int k = 0; k < 4; k++) {
+            steps[h + k] = k == ORIGIN ? 0.01 * height : 0.1;
+            maxSteps[h + k] = k == ORIGIN ? 0.1 * height : 1.0;
+        }
+        double[] gradient = new double[SRangesBirthDeathModel.GRADIENT_HEIGHTS + state.getNodeCount()];
+
+        int nonImproving = 0;
+        while (run.steps < iterationsInput.get() && nonImproving < MAX_NON_IMPROVING) {
+            run.steps++;
+            run.update();
+            run.evaluator.gradient(run.structure, gradient);
+
+            for (int j = 0; j < h + 4; j++) {
+                double g;
+                if (j < h) {
+                    g = gradient[SRangesBirthDeathModel.GRADIENT_HEIGHTS + freeNodes[j]];
+                    previous[j] = state.getHeight(freeNodes[j]);
+                } else if (parameters[j - h] != null) {
+                    g = gradient[GRADIENT_INDICES[j - h]];
+                    previous[j] = run.rates[RATE_INDICES[j - h]];
+                    if (j - h != ORIGIN)
+                        g *= previous[j];
+                } else {
+                    continue;
+                }
+                double sign = Double.isNaN(g) ? 0.0 : Math.signum(g);
+                if (sign * previousSigns[j] > 0) {
+                    steps[j] = Math.min(1.2 * steps[j], maxSteps[j]);
+                } else if (sign * previousSigns[j] < 0) {
+                    // overshot, take a smaller step next time and none now
+                    steps[j] *= 0.5;
+                    sign = 0.0;
+                }
+                previousSigns[j] = sign;
+                if (j < h) {
+                    state.setHeight(freeNodes[j], previous[j] + sign * steps[j]);
+                } else if (j - h == ORIGIN) {
+                    run.rates[RATE_INDICES[j - h]] = previous[j] + sign * steps[j];
+                } else {
+                    run.rates[RATE_INDICES[j - h]] = previous[j] * Math.exp(sign * steps[j]);
+                }
+            }
+            project(run);
+
+            double objective = run.evaluate();
+            if (!(objective >= run.objective)) {
+                for (int j = 0; j < h + 4; j++) {
+                    if (j < h) {
+                        state.setHeight(freeNodes[j], previous[j]);
+                    } else if (parameters[j - h] != null) {
+                        run.rates[RATE_INDICES[j - h]] = previous[j];
+                    }
+                    steps[j] *= 0.5;
+                    previousSigns[j] = 0.0;
+                }
+                nonImproving++;
+            } else {
+                nonImproving = objective - run.objective < toleranceInput.get() ? nonImproving + 1 : 0;
+                run.objective = objective;
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Draws speciation times top down, each uniformly between the highest fixed height below it and
+     * its parent, the root within twice its current distance to that height, and scales free rates by
+     * random factors between 1/e and e.
+     */
+    private void randomise(Restart run, RandomSource stream) {
+        final SRTreeState state = run.state;
+        final int root = state.getRootNr();
+        final double originRate = run.rates[SRangesBatchLikelihood.ORIGIN];
+        for (int j = freeNodes.length - 1; j >= 0; j--) {
+            int node = freeNodes[j];
+            int parent = state.getParent(node);
+            double lower = floors[node];
+            double upper;
+            if (parent >= 0) {
+                upper = state.getHeight(parent);
+            } else {
+                upper = lower + 2 * (state.getHeight(node) - lower);
+                if (parameters[ORIGIN] == null)
+                    upper = Math.min(upper, originRate - offset);
+            }
+            state.setHeight(node, lower + (upper - lower) * (0.05 + 0.9 * stream.nextDouble()));
+        }
+        for (int k = 0; k < ORIGIN; k++) {
+            if (parameters[k] != null)
+                run.rates[RATE_INDICES[k]] *= Math.exp(2 * stream.nextDouble() - 1);
+        }
+        if (parameters[ORIGIN] != null) {
+            double excess = originRate - (state.getHeight(root) + offset);
+            run.rates[SRangesBatchLikelihood.ORIGIN] = state.getHeight(root) + offset +
+                    excess * Math.exp(2 * stream.nextDouble() - 1);
+        }
+    }
+
+    /**
+     * Moves speciation times below their parents, then above their children, and the origin above
+     * the root. Rates are kept within the bounds of their parameters.
+     */
+    private void project(Restart run) {
+        final SRTreeState state = run.state;
+        for (int j = freeNodes.length - 1; j >= 0; j--) {
+            int node = freeNodes[j];
+            int parent = state.getParent(node);
+            double upper = parent >= 0 ? state.getHeight(parent) - margin
+                    : (parameters[ORIGIN] == null ? run.rates[SRangesBatchLikelihood.ORIGIN] - offset - margin
+                    : Double.POSITIVE_INFINITY);
+            if (state.getHeight(node) > upper)
+                state.setHeight(node, upper);
+        }
+        for (int node : freeNodes) {
+            double lower = Math.max(state.getHeight(state.getLeftChild(node)),
+                    state.getHeight(state.getRightChild(node))) + margin;
+            if (state.getHeight(node) < lower)
+                state.setHeight(node, lower);
+        }
+        for (int k = 0; k < parameters.length; k++) {
+            if (parameters[k] == null)
+                continue;
+            int index = RATE_INDICES[k];
+            double shift = k == ORIGIN ? originShift : 0.0;
+            run.rates[index] = Math.max(parameters[k].getLower() + shift,
+                    Math.min(parameters[k].getUpper() + shift, run.rates[index]));
+        }
+        if (parameters[ORIGIN] != null) {
+            double lowest = state.getHeight(state.getRootNr()) + offset + margin;
+            if (run.rates[SRangesBatchLikelihood.ORIGIN] < lowest)
+                run.rates[SRangesBatchLikelihood.ORIGIN] = lowest;
+        }
+    }
+
+    @Override
+    public void getInitialisedStateNodes(List<StateNode> stateNodes) {
+        stateNodes.add(treeInput.get());
+        for (RealParameter parameter : parameters) {
+            if (parameter != null)
+                stateNodes.add(parameter);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package sr.speciation;
+
+import sr.evolution.tree.SRTree;
+import sr.evolution.tree.SRTreeState;
+
+import java.util.Arrays;
+
+/**
+ * The part of the SRangesBirthDeathModel density that depends only on the tree: the class of
+ * every node (sampled leaf, leaf continuing a range, sampled ancestor entering or leaving a
+ * range, speciation) and, per range, the heights and numbers of its first and last occurrence
+ * and of the last node of the ancestral range, in primitive arrays. Given these, the density
+ * under any rates is a closed-form sum, see SRangesBirthDeathModel.logDensity(SRangesStructure).
+ *
+ * Node classes are kept in node number order so that the sum is taken in the same order as
+ * a pass over the tree. Heights include the offset of the tree. The arrays are reused, so a
+ * structure kept per tree or per thread is updated without allocation.
+ */
+public class SRangesStructure {
+
+    // node classes; direct ancestors contribute through their fake parent
+    static final byte DIRECT_ANCESTOR = 0;
+    static final byte SAMPLED_LEAF = 1;
+    // leaf that is the last occurrence of the range of its parent
+    static final byte RANGE_LEAF = 2;
+    // sampled ancestor, flags for the range entering from the parent and continuing to the child
+    static final byte FAKE = 3;
+    static final byte FAKE_ENTERING = 4;
+    static final byte FAKE_LEAVING = 5;
+    static final byte FAKE_ENTERING_LEAVING = 6;
+    static final byte SPECIATION = 7;
+
+    int nodeCount = 0;
+    byte[] nodeClasses = new byte[0];
+    double[] heights = new double[0];
+    int rootNr;
+    double rootHeight;
+    boolean rootIsFake;
+
+    int rangeCount = 0;
+    // heights of the first and last node of a range, equal for single fossil ranges
+    double[] firstHeights = new double[0];
+    double[] lastHeights = new double[0];
+    // height of the last node of the ancestral range, NaN if the range has none
+    double[] ancestralLastHeights = new double[0];
+    // numbers of these nodes, -1 where there is none
+    int[] firstNodes = new int[0];
+    int[] lastNodes = new int[0];
+    int[] ancestralLastNodes = new int[0];
+
+    private int[] rangeOfNode = new int[0];
+    private SRTreeState buffer;
+
+    /**
+     * Classifies the current state of a tree.
+     *
+     * @param offset added to all heights, the offset of the TreeWOffset holding the tree
+     */
+    public void update(SRTree tree, double offset) {
+        if (buffer == null)
+            buffer = new SRTreeState();
+        tree.exportState(buffer);
+        update(buffer, offset);
+    }
+
+    /**
+     * Classifies a flat tree state.
+     *
+     * @param offset added to all heights
+     */
+    public void update(SRTreeState state, double offset) {
+        final int n = state.getNodeCount();
+        if (nodeClasses.length < n) {
+            nodeClasses = new byte[n];
+            heights = new double[n];
+            rangeOfNode = new int[n];
+        }
+        final int ranges = state.getRangeCount();
+        if (firstHeights.length < ranges) {
+            firstHeights = new double[ranges];
+            lastHeights = new double[ranges];
+            ancestralLastHeights = new double[ranges];
+            firstNodes = new int[ranges];
+            lastNodes = new int[ranges];
+            ancestralLastNodes = new int[ranges];
+        }
+        nodeCount = n;
+        rangeCount = ranges;
+
+        Arrays.fill(rangeOfNode, 0, n, -1);
+        for (int r = 0; r < ranges; r++) {
+            for (int k = 0; k < state.getRangeSize(r); k++) {
+                int nr = state.getRangeNodeNr(r, k);
+                if (nr >= 0)
+                    rangeOfNode[nr] = r;
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            heights[i] = state.getHeight(i) + offset;
+            nodeClasses[i] = classify(state, i);
+        }
+        rootNr = state.getRootNr();
+        rootHeight = state.getHeight(rootNr) + offset;
+        rootIsFake = isFake(state, state.getRootNr());
+
+        for (int r = 0; r < ranges; r++) {
+            int size = state.getRangeSize(r);
+            int first = size == 0 ? -1 : state.getRangeNodeNr(r, 0);
+            int last = size == 0 ? -1 : state.getRangeNodeNr(r, size - 1);
+            if (first < 0) {
+                // the range is not placed on the tree and contributes nothing
+                firstHeights[r] = lastHeights[r] = 0.0;
+                ancestralLastHeights[r] = Double.NaN;
+                firstNodes[r] = lastNodes[r] = ancestralLastNodes[r] = -1;
+                continue;
+            }
+            if (last < 0)
+                last = first;
+            firstNodes[r] = first;
+            lastNodes[r] = last;
+            firstHeights[r] = heights[first];
+            lastHeights[r] = heights[last];
+            int ancestralLast = findAncestralRangeLastNode(state, first);
+            ancestralLastNodes[r] = ancestralLast;
+            ancestralLastHeights[r] = ancestralLast < 0 ? Double.NaN : heights[ancestralLast];
+        }
+    }
+
+    private byte classify(SRTreeState state, int i) {
+        final int parent = state.getParent(i);
+        if (state.getLeftChild(i) < 0) {
+            if (isDirectAncestor(state, i))
+                return DIRECT_ANCESTOR;
+            return parent >= 0 && sameRange(state, i, parent) ? RANGE_LEAF : SAMPLED_LEAF;
+        }
+        if (!isFake(state, i))
+            return SPECIATION;
+        int directAncestor = directAncestorChild(state, i);
+        int child = state.getLeftChild(i) == directAncestor ? state.getRightChild(i) : state.getLeftChild(i);
+        boolean entering = parent >= 0 && sameRange(state, parent, directAncestor);
+        boolean leaving = child >= 0 && sameRange(state, i, child);
+        if (entering)
+            return leaving ? FAKE_ENTERING_LEAVING : FAKE_ENTERING;
+        return leaving ? FAKE_LEAVING : FAKE;
+    }
+
+    private static boolean isDirectAncestor(SRTreeState state, int i) {
+        final int parent = state.getParent(i);
+        return state.getLeftChild(i) < 0 && parent >= 0 && state.getHeight(parent) == state.getHeight(i);
+    }
+
+    private static boolean isFake(SRTreeState state, int i) {
+        final int left = state.getLeftChild(i), right = state.getRightChild(i);
+        return left >= 0 && (isDirectAncestor(state, left) || (right >= 0 && isDirectAncestor(state, right)));
+    }
+
+    private static int directAncestorChild(SRTreeState state, int i) {
+        return isDirectAncestor(state, state.getLeftChild(i)) ? state.getLeftChild(i) : state.getRightChild(i);
+    }
+
+    // range of a node, of the direct ancestor child for a fake node, as SRTree.getSharedRange
+    private int rangeOf(SRTreeState state, int i) {
+        return rangeOfNode[isFake(state, i) ? directAncestorChild(state, i) : i];
+    }
+
+    private boolean sameRange(SRTreeState state, int i, int j) {
+        int r = rangeOf(state, i);
+        return r >= 0 && r == rangeOf(state, j);
+    }
+
+    /**
+     * @return the fake node at the end of the chain of left (ancestral) children above node, the
+     * last node of the ancestral range, or -1 if the chain reaches the root or a right child
+     */
+    private static int findAncestralRangeLastNode(SRTreeState state, int node) {
+        int parent = state.getParent(node);
+        if (isDirectAncestor(state, node)) {
+            node = parent;
+            parent = state.getParent(parent);
+        }
+        while (parent >= 0) {
+            if (isFake(state, parent))
+                return parent;
+            if (state.getLeftChild(parent) != node)
+                return -1;
+            node = parent;
+            parent = state.getParent(parent);
+        }
+        return -1;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getRangeCount() {
+        return rangeCount;
+    }
+}
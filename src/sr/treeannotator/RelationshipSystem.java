@@ -5,6 +5,7 @@ import beast.base.util.DiscreteStatistics;
 import beast.base.util.HeapSort;
 import sr.evolution.sranges.StratigraphicRange;
 import sr.evolution.tree.SRTree;
+import sr.util.TreeTraversal;
 
 import java.util.*;
 
@@ -82,6 +83,8 @@ public class RelationshipSystem {
 
     /**
      * Implementation of relationship collection with optional height tracking.
+     * Nodes are visited in post-order; the taxa below each child are kept on a stack
+     * until the parent is processed.
      *
      * @param node The current node being processed
      * @param tree The SR tree
@@ -89,6 +92,19 @@ public class RelationshipSystem {
      * @return Set of taxon names descending from this node
      */
     private Set<String> collectRelationshipsImpl(Node node, SRTree tree, boolean collectHeights) {
+        Deque<Set<String>> taxaStack = new ArrayDeque<>();
+        for (Node n : TreeTraversal.postOrder(node)) {
+            taxaStack.push(collectRelationshipsAtNode(n, tree, collectHeights, taxaStack));
+        }
+        return taxaStack.pop();
+    }
+
+    /**
+     * Extracts the relationship at a single node, given the taxa below its children
+     * on top of the stack (right child topmost).
+     */
+    private Set<String> collectRelationshipsAtNode(Node node, SRTree tree, boolean collectHeights,
+                                                   Deque<Set<String>> taxaStack) {
         Set<String> taxa = new TreeSet<>();
 
         if (node.isLeaf()) {
@@ -100,8 +116,8 @@ public class RelationshipSystem {
         Node rightChild = node.getRight();
 
         if (leftChild != null && rightChild != null) {
-            Set<String> leftTaxa = collectRelationshipsImpl(leftChild, tree, collectHeights);
-            Set<String> rightTaxa = collectRelationshipsImpl(rightChild, tree, collectHeights);
+            Set<String> rightTaxa = taxaStack.pop();
+            Set<String> leftTaxa = taxaStack.pop();
 
             boolean leftIsDirectAncestor = leftChild.isDirectAncestor();
             boolean rightIsDirectAncestor = rightChild.isDirectAncestor();
@@ -150,7 +166,7 @@ public class RelationshipSystem {
             taxa.addAll(rightTaxa);
 
         } else if (leftChild != null) {
-            taxa = collectRelationshipsImpl(leftChild, tree, collectHeights);
+            taxa = taxaStack.pop();
         }
 
         return taxa;
@@ -337,17 +353,14 @@ public class RelationshipSystem {
      *
      * @param node The node to process
      */
-    private void processMetaDataForNewick(Node node) {
-        // First process children recursively
-        if (!node.isLeaf()) {
-            if (node.getLeft() != null) {
-                processMetaDataForNewick(node.getLeft());
-            }
-            if (node.getRight() != null) {
-                processMetaDataForNewick(node.getRight());
-            }
+    private void processMetaDataForNewick(Node root) {
+        // Children are processed before their parents
+        for (Node node : TreeTraversal.postOrder(root)) {
+            processMetaDataForNewickAtNode(node);
         }
+    }
 
+    private void processMetaDataForNewickAtNode(Node node) {
         // Build metaDataString from metadata map
         Set<String> metaDataNames = node.getMetaDataNames();
         if (metaDataNames != null && !metaDataNames.isEmpty()) {
@@ -382,32 +395,44 @@ public class RelationshipSystem {
     }
 
     /**
-     * Recursively annotates nodes with relationship probabilities and statistics.
+     * Annotates nodes with relationship probabilities and statistics, visiting them in
+     * post-order. The taxa below each child are kept on a stack until the parent is annotated.
      *
-     * @param node The current node
+     * @param root The root of the subtree to annotate
      * @param tree The SR tree
      * @param includeRelationshipDetails If true, include ancestral/descendant taxa annotations
      */
-    private void annotateNode(Node node, SRTree tree, boolean includeRelationshipDetails) {
+    private void annotateNode(Node root, SRTree tree, boolean includeRelationshipDetails) {
+        Deque<Set<String>> taxaStack = new ArrayDeque<>();
+        for (Node node : TreeTraversal.postOrder(root)) {
+            taxaStack.push(annotateSingleNode(node, tree, includeRelationshipDetails, taxaStack));
+        }
+    }
+
+    /**
+     * Annotates a single node, given the taxa below its children on top of the stack.
+     *
+     * @return Set of taxon names descending from the node
+     */
+    private Set<String> annotateSingleNode(Node node, SRTree tree, boolean includeRelationshipDetails,
+                                           Deque<Set<String>> taxaStack) {
         if (node.isLeaf()) {
             // Annotate tips with their own info
-            node.setMetaData("taxon", getTaxonBaseName(node.getID()));
-            return;
+            String taxon = getTaxonBaseName(node.getID());
+            node.setMetaData("taxon", taxon);
+            Set<String> taxa = new TreeSet<>();
+            taxa.add(taxon);
+            return taxa;
         }
 
         Node leftChild = node.getLeft();
         Node rightChild = node.getRight();
 
-        // First, recursively annotate children
-        if (leftChild != null) {
-            annotateNode(leftChild, tree, includeRelationshipDetails);
-        }
-        if (rightChild != null) {
-            annotateNode(rightChild, tree, includeRelationshipDetails);
-        }
-
-        // Collect taxa from this node
-        Set<String> taxa = collectTaxaFromNode(node);
+        // Children have already been annotated; collect taxa from this node
+        Set<String> rightTaxa = rightChild != null ? taxaStack.pop() : Collections.emptySet();
+        Set<String> leftTaxa = leftChild != null ? taxaStack.pop() : Collections.emptySet();
+        Set<String> taxa = new TreeSet<>(leftTaxa);
+        taxa.addAll(rightTaxa);
 
         // Check if this is a bifurcation
         if (leftChild != null && rightChild != null) {
@@ -419,7 +444,6 @@ public class RelationshipSystem {
             if (leftIsDirectAncestor || rightIsDirectAncestor) {
                 // This is a fake node with a sampled ancestor child
                 Node sampledAncestor = leftIsDirectAncestor ? leftChild : rightChild;
-                Node descendantSubtree = leftIsDirectAncestor ? rightChild : leftChild;
                 String nodeId = sampledAncestor.getID();
 
                 // Only annotate ancestry relationship for FIRST occurrences or singletons
@@ -433,7 +457,7 @@ public class RelationshipSystem {
 
                 if (!isLastOccurrence) {
                     String ancestorTaxon = getTaxonBaseName(nodeId);
-                    Set<String> descendantTaxa = collectTaxaFromNode(descendantSubtree);
+                    Set<String> descendantTaxa = leftIsDirectAncestor ? rightTaxa : leftTaxa;
 
                     if (!descendantTaxa.isEmpty()) {
                         AncestryRelationship ancRel = new AncestryRelationship(ancestorTaxon, descendantTaxa);
@@ -461,8 +485,8 @@ public class RelationshipSystem {
                 // For last occurrences, we don't annotate this fake node
             } else {
                 // Normal bifurcation - orientation relationship
-                Set<String> ancestralTaxa = collectTaxaFromNode(leftChild);
-                Set<String> descendantTaxa = collectTaxaFromNode(rightChild);
+                Set<String> ancestralTaxa = leftTaxa;
+                Set<String> descendantTaxa = rightTaxa;
 
                 OrientationRelationship orientRel = new OrientationRelationship(ancestralTaxa, descendantTaxa);
                 OrientationRelationship existing = orientationMap.get(orientRel);
@@ -486,6 +510,7 @@ public class RelationshipSystem {
                 }
             }
         }
+        return taxa;
     }
 
     /**
@@ -498,31 +523,6 @@ public class RelationshipSystem {
         return "{" + String.join(",", taxa) + "}";
     }
 
-    /**
-     * Collects all taxon names descending from a node (for annotation purposes).
-     *
-     * @param node The node
-     * @return Set of taxon names
-     */
-    private Set<String> collectTaxaFromNode(Node node) {
-        Set<String> taxa = new TreeSet<>();
-        collectTaxaRecursive(node, taxa);
-        return taxa;
-    }
-
-    private void collectTaxaRecursive(Node node, Set<String> taxa) {
-        if (node.isLeaf()) {
-            taxa.add(getTaxonBaseName(node.getID()));
-        } else {
-            if (node.getLeft() != null) {
-                collectTaxaRecursive(node.getLeft(), taxa);
-            }
-            if (node.getRight() != null) {
-                collectTaxaRecursive(node.getRight(), taxa);
-            }
-        }
-    }
-
     /**
      * Annotates a node with height statistics (mean, median, 95% HPD).
      *
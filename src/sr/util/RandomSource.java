@@ -0,0 +1,108 @@
+package sr.util;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.util.MersenneTwisterFast;
+import beast.base.util.Randomizer;
+
+/**
+ * Random number stream for the sRanges operators and tree initialiser. Without a seed it
+ * draws from the global Randomizer, so analyses that do not use it sample exactly as
+ * before. With a seed it owns a generator, so that several chains run on separate
+ * threads in one JVM each have their own reproducible stream.
+ *
+ * Components take the stream from their rng input if set, else the stream of the current
+ * thread (see {@link #current()}), which is the global Randomizer unless a chain runner
+ * has set another one with {@link #setCurrent(RandomSource)}.
+ *
+ * A seeded stream is not synchronised and has to stay on one thread.
+ */
+@Description("Random number stream, with an own seeded generator or drawing from the global Randomizer.")
+public class RandomSource extends BEASTObject {
+
+	final public Input<Long> seedInput = new Input<>("seed",
+			"seed of an own generator for this stream; draws from the global Randomizer if not set");
+
+	/** stream drawing from the global Randomizer **/
+	public static final RandomSource GLOBAL = new RandomSource();
+
+	private static final ThreadLocal<RandomSource> CURRENT = ThreadLocal.withInitial(() -> GLOBAL);
+
+	private MersenneTwisterFast generator;
+
+	public RandomSource() {
+	}
+
+	public RandomSource(long seed) {
+		initByName("seed", seed);
+	}
+
+	@Override
+	public void initAndValidate() {
+		generator = seedInput.get() == null ? null : new MersenneTwisterFast(seedInput.get());
+	}
+
+	/**
+	 * @return stream of the calling thread, the global Randomizer by default
+	 */
+	public static RandomSource current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Sets the stream of the calling thread, or resets it to the global Randomizer if null.
+	 */
+	public static void setCurrent(RandomSource source) {
+		CURRENT.set(source == null ? GLOBAL : source);
+	}
+
+	/**
+	 * @return the given stream, or the stream of the calling thread if null
+	 */
+	public static RandomSource orCurrent(RandomSource source) {
+		return source == null ? current() : source;
+	}
+
+	/**
+	 * Independent stream for one of several chains started from a single seed. Chain seeds
+	 * are derived with a SplitMix64 step, so neighbouring chain numbers give unrelated streams.
+	 */
+	public static RandomSource forChain(long seed, int chain) {
+		long z = seed + (chain + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return new RandomSource(z ^ (z >>> 31));
+	}
+
+	public boolean isGlobal() {
+		return generator == null;
+	}
+
+	/**
+	 * @return uniform integer in [0, n)
+	 */
+	public int nextInt(int n) {
+		return generator == null ? Randomizer.nextInt(n) : generator.nextInt(n);
+	}
+
+	/**
+	 * @return uniform double in [0, 1)
+	 */
+	public double nextDouble() {
+		return generator == null ? Randomizer.nextDouble() : generator.nextDouble();
+	}
+
+	public boolean nextBoolean() {
+		return generator == null ? Randomizer.nextBoolean() : generator.nextBoolean();
+	}
+
+	/**
+	 * @return exponential draw with the given rate, as Randomizer.nextExponential
+	 */
+	public double nextExponential(double lambda) {
+		if (generator == null)
+			return Randomizer.nextExponential(lambda);
+		return -1.0 * Math.log(1 - generator.nextDouble()) / lambda;
+	}
+}
@@ -30,26 +30,28 @@ public class Tools {
 	 * @param subtreeRootNr the none number
 	 */
 	public static void orientateNodeChildren(int subtreeRootNr, Tree tree) {
-		Node subTreeRoot = tree.getNode(subtreeRootNr);
-		if (!subTreeRoot.isLeaf()) {
-//			if(subTreeRoot.getChild(0).metaDataString == null){
-//				return;
-			if ((!subTreeRoot.isFake() && subTreeRoot.getChild(0).metaDataString != null && !subTreeRoot.getChild(0).metaDataString.contains("orientation=ancestor"))
-					|| (subTreeRoot.isFake() && subTreeRoot.getChild(1).getHeight() != subTreeRoot.getHeight())) {
-				Node left = subTreeRoot.getChild(1);
-				Node right = subTreeRoot.getChild(0);
-
-				subTreeRoot.removeAllChildren(false);
-
-//                subTreeRoot.setLeft(left);
-//                subTreeRoot.setRight(right);
-				subTreeRoot.addChild(left);
-				subTreeRoot.addChild(right);
+		// children are swapped on entering a node, before the walk descends into them
+		TreeTraversal.walk(tree.getNode(subtreeRootNr), new TreeTraversal.Visitor() {
+			@Override
+			public void enter(Node subTreeRoot) {
+				if (subTreeRoot.isLeaf())
+					return;
+//				if(subTreeRoot.getChild(0).metaDataString == null){
+//					return;
+				if ((!subTreeRoot.isFake() && subTreeRoot.getChild(0).metaDataString != null && !subTreeRoot.getChild(0).metaDataString.contains("orientation=ancestor"))
+						|| (subTreeRoot.isFake() && subTreeRoot.getChild(1).getHeight() != subTreeRoot.getHeight())) {
+					Node left = subTreeRoot.getChild(1);
+					Node right = subTreeRoot.getChild(0);
+
+					subTreeRoot.removeAllChildren(false);
+
+//					subTreeRoot.setLeft(left);
+//					subTreeRoot.setRight(right);
+					subTreeRoot.addChild(left);
+					subTreeRoot.addChild(right);
+				}
 			}
-
-			orientateNodeChildren(subTreeRoot.getChild(0).getNr(), tree);
-			orientateNodeChildren(subTreeRoot.getChild(1).getNr(), tree);
-		}
+		});
 	}
 
 	public static boolean equalHeightWithPrecision(Node n1, Node n2) {
@@ -0,0 +1,219 @@
+package sr.util;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+import java.util.Arrays;
+
+/**
+ * Iterative pre-order and post-order traversals shared by the tree loggers, parsers and
+ * summarisers. The walk keeps its own stack in flat arrays, so deep (caterpillar-like)
+ * sRange trees do not overflow the call stack and no per-node objects are allocated.
+ *
+ * Children are read lazily, i.e. when the walk first needs them. A visitor may therefore
+ * reorder the children of a node in {@link Visitor#enter(Node)}, as Tools.orientateNodeChildren does.
+ */
+public class TreeTraversal {
+
+	/**
+	 * Supplies the children of a node in the order they are to be visited.
+	 */
+	public interface ChildOrder {
+		int getChildCount(Node node);
+
+		Node getChild(Node node, int i);
+	}
+
+	/**
+	 * Children in the order they are stored in the node.
+	 */
+	public static final ChildOrder STORED_ORDER = new ChildOrder() {
+		@Override
+		public int getChildCount(Node node) {
+			return node.getChildCount();
+		}
+
+		@Override
+		public Node getChild(Node node, int i) {
+			return node.getChild(i);
+		}
+	};
+
+	/**
+	 * Callbacks of a depth-first walk. enter is called in pre-order, exit in post-order
+	 * and between once between each pair of consecutive children.
+	 */
+	public interface Visitor {
+		default void enter(Node node) {
+		}
+
+		default void between(Node node) {
+		}
+
+		default void exit(Node node) {
+		}
+	}
+
+	/**
+	 * Depth-first walk over the subtree below root, children in stored order.
+	 */
+	public static void walk(Node root, Visitor visitor) {
+		walk(root, STORED_ORDER, visitor);
+	}
+
+	/**
+	 * Depth-first walk over the subtree below root.
+	 */
+	public static void walk(Node root, ChildOrder order, Visitor visitor) {
+		Node[] stack = new Node[32];
+		int[] nextChild = new int[32];
+		int top = 0;
+		stack[top] = root;
+		nextChild[top] = 0;
+		top++;
+		visitor.enter(root);
+		while (top > 0) {
+			Node node = stack[top - 1];
+			int i = nextChild[top - 1];
+			if (i < order.getChildCount(node)) {
+				if (i > 0)
+					visitor.between(node);
+				nextChild[top - 1] = i + 1;
+				Node child = order.getChild(node, i);
+				if (top == stack.length) {
+					stack = Arrays.copyOf(stack, 2 * top);
+					nextChild = Arrays.copyOf(nextChild, 2 * top);
+				}
+				stack[top] = child;
+				nextChild[top] = 0;
+				top++;
+				visitor.enter(child);
+			} else {
+				top--;
+				visitor.exit(node);
+			}
+		}
+	}
+
+	/**
+	 * @return nodes of the subtree below root in pre-order. Works for trees whose
+	 * nodes are not numbered, e.g. trees straight from the parser.
+	 */
+	public static Node[] preOrder(Node root) {
+		NodeList order = new NodeList();
+		walk(root, new Visitor() {
+			@Override
+			public void enter(Node node) {
+				order.add(node);
+			}
+		});
+		return order.toArray();
+	}
+
+	/**
+	 * @return nodes of the subtree below root in post-order, with the children of a node
+	 * in stored order, exactly as a recursive post-order walk would visit them.
+	 */
+	public static Node[] postOrder(Node root) {
+		NodeList order = new NodeList();
+		walk(root, new Visitor() {
+			@Override
+			public void exit(Node node) {
+				order.add(node);
+			}
+		});
+		return order.toArray();
+	}
+
+	/**
+	 * @return node numbers of the tree in pre-order
+	 */
+	public static int[] preOrderNrs(Tree tree) {
+		return toNrs(preOrder(tree.getRoot()));
+	}
+
+	/**
+	 * @return node numbers of the tree in post-order
+	 */
+	public static int[] postOrderNrs(Tree tree) {
+		return toNrs(postOrder(tree.getRoot()));
+	}
+
+	/**
+	 * Pre-order over a flat child index array, as kept by SRRelogEngine snapshots.
+	 *
+	 * @param rootNr root node number
+	 * @param left   left child number of each node, or -1
+	 * @param right  right child number of each node, or -1
+	 * @return node numbers in pre-order, left subtree before right subtree
+	 */
+	public static int[] preOrderNrs(int rootNr, int[] left, int[] right) {
+		int n = left.length;
+		int[] order = new int[n];
+		int[] stack = new int[n];
+		int top = 0, size = 0;
+		stack[top++] = rootNr;
+		while (top > 0) {
+			int nr = stack[--top];
+			order[size++] = nr;
+			if (right[nr] >= 0)
+				stack[top++] = right[nr];
+			if (left[nr] >= 0)
+				stack[top++] = left[nr];
+		}
+		return size == n ? order : Arrays.copyOf(order, size);
+	}
+
+	/**
+	 * Post-order over a flat child index array, as kept by SRTreeState.
+	 *
+	 * @param rootNr root node number
+	 * @param left   left child number of each node, or -1
+	 * @param right  right child number of each node, or -1
+	 * @return node numbers in post-order, left subtree before right subtree
+	 */
+	public static int[] postOrderNrs(int rootNr, int[] left, int[] right) {
+		int n = left.length;
+		int[] order = new int[n];
+		int[] stack = new int[n];
+		// the stack holds node numbers, negated (minus one) once their children are pushed
+		int top = 0, size = 0;
+		stack[top++] = rootNr;
+		while (top > 0) {
+			int nr = stack[--top];
+			if (nr < 0) {
+				order[size++] = -nr - 1;
+				continue;
+			}
+			stack[top++] = -nr - 1;
+			if (right[nr] >= 0)
+				stack[top++] = right[nr];
+			if (left[nr] >= 0)
+				stack[top++] = left[nr];
+		}
+		return size == n ? order : Arrays.copyOf(order, size);
+	}
+
+	// Node.getNodeCount() is itself recursive, so the result array grows as needed
+	private static class NodeList {
+		Node[] nodes = new Node[64];
+		int size = 0;
+
+		void add(Node node) {
+			if (size == nodes.length)
+				nodes = Arrays.copyOf(nodes, 2 * size);
+			nodes[size++] = node;
+		}
+
+		Node[] toArray() {
+			return Arrays.copyOf(nodes, size);
+		}
+	}
+
+	private static int[] toNrs(Node[] nodes) {
+		int[] nrs = new int[nodes.length];
+		for (int i = 0; i < nodes.length; i++)
+			nrs[i] = nodes[i].getNr();
+		return nrs;
+	}
+}
@@ -0,0 +1,143 @@
+package sr.util.loggers;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Two-dimensional histograms of the clade comparison: clade support in both tree sets and
+ * mean clade height in both tree sets, each scaled to [0,1]. Clades are only counted into
+ * primitive arrays; drawing and writing visit the non-empty cells, so the size of the SVG,
+ * PNG and CSV output and the time to produce it depend on the number of bins only, not on
+ * the number of clades.
+ */
+public class CladeDensityGrid {
+
+    public static final int SUPPORT = 0;
+    public static final int HEIGHT = 1;
+    static final String[] LAYER_NAMES = {"support", "height"};
+
+    private final int bins;
+    // per layer, cell x + bins * y
+    private final int[][] counts;
+    private final double[][] weights;
+
+    public CladeDensityGrid(int bins) {
+        if (bins < 1)
+            throw new IllegalArgumentException("Number of bins must be positive, not " + bins);
+        this.bins = bins;
+        counts = new int[2][bins * bins];
+        weights = new double[2][bins * bins];
+    }
+
+    public int getBins() {
+        return bins;
+    }
+
+    /**
+     * Adds a clade at (x, y), both in [0,1]; values outside are put in the border cells.
+     *
+     * @param weight summed per cell next to the clade count, e.g. the total support of the clade
+     */
+    public void add(int layer, double x, double y, double weight) {
+        int cell = bin(x) + bins * bin(y);
+        counts[layer][cell]++;
+        weights[layer][cell] += weight;
+    }
+
+    private int bin(double v) {
+        if (!(v > 0))
+            return 0;
+        return Math.min(bins - 1, (int) (v * bins));
+    }
+
+    public int getCount(int layer, int xBin, int yBin) {
+        return counts[layer][xBin + bins * yBin];
+    }
+
+    public double getWeight(int layer, int xBin, int yBin) {
+        return weights[layer][xBin + bins * yBin];
+    }
+
+    private int maxCount(int layer) {
+        int max = 0;
+        for (int c : counts[layer])
+            max = Math.max(max, c);
+        return max;
+    }
+
+    // opacity grows with the log of the count, so single clades remain visible next to dense cells
+    private static float opacity(int count, int maxCount) {
+        return (float) (0.1 + 0.9 * Math.log1p(count) / Math.log1p(maxCount));
+    }
+
+    /**
+     * Writes one rectangle per non-empty cell, in the coordinates of the comparator SVG
+     * (plot area from x=90 to 1090 and y=1010 to 10).
+     */
+    public void writeSVG(PrintStream svg) {
+        String[] colours = {"#a00000", "#0000a0"};
+        double size = 1000.0 / bins;
+        for (int layer = 0; layer < 2; layer++) {
+            int max = maxCount(layer);
+            for (int y = 0; y < bins; y++) {
+                for (int x = 0; x < bins; x++) {
+                    int count = counts[layer][x + bins * y];
+                    if (count == 0)
+                        continue;
+                    svg.println(String.format(Locale.US, "  <rect x=\"%.2f\" y=\"%.2f\" width=\"%.2f\" height=\"%.2f\" " +
+                                    "style=\"fill:%s;opacity:%.3f\" data-layer=\"%s\" data-count=\"%d\"></rect>",
+                            90 + x * size, 1010 - (y + 1) * size, size, size,
+                            colours[layer], opacity(count, max), LAYER_NAMES[layer], count));
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills one rectangle per non-empty cell, in the coordinates of the comparator PNG
+     * (plot area from x=100 to 1100 and y=1100 to 100).
+     */
+    public void draw(Graphics2D g) {
+        Color[] colours = {Color.red, Color.blue};
+        for (int layer = 0; layer < 2; layer++) {
+            int max = maxCount(layer);
+            g.setColor(colours[layer]);
+            for (int y = 0; y < bins; y++) {
+                for (int x = 0; x < bins; x++) {
+                    int count = counts[layer][x + bins * y];
+                    if (count == 0)
+                        continue;
+                    int x1 = 100 + x * 1000 / bins;
+                    int x2 = 100 + (x + 1) * 1000 / bins;
+                    int y1 = 1100 - (y + 1) * 1000 / bins;
+                    int y2 = 1100 - y * 1000 / bins;
+                    g.setComposite(AlphaComposite.SrcOver.derive(opacity(count, max)));
+                    g.fillRect(x1, y1, Math.max(1, x2 - x1), Math.max(1, y2 - y1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the non-empty cells as CSV, one line per cell with its bounds, clade count and weight.
+     */
+    public void writeCSV(PrintStream out) {
+        out.println("layer,x_bin,y_bin,x_lower,x_upper,y_lower,y_upper,count,weight");
+        for (int layer = 0; layer < 2; layer++) {
+            for (int y = 0; y < bins; y++) {
+                for (int x = 0; x < bins; x++) {
+                    int count = counts[layer][x + bins * y];
+                    if (count == 0)
+                        continue;
+                    out.println(LAYER_NAMES[layer] + "," + x + "," + y + "," +
+                            (double) x / bins + "," + (double) (x + 1) / bins + "," +
+                            (double) y / bins + "," + (double) (y + 1) / bins + "," +
+                            count + "," + weights[layer][x + bins * y]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package sr.util.loggers;
+
+import java.util.Arrays;
+
+/**
+ * Collects the heights observed for one clade in a growable primitive buffer.
+ * Adding a height is amortised constant time; count, sum, minimum and maximum are kept
+ * up to date as heights are added. Quantiles need the individual heights, which are
+ * sorted in place the first time a quantile is asked for and only again if heights are
+ * added afterwards.
+ */
+public class HeightAccumulator {
+
+    private double[] heights;
+    private int size = 0;
+    private double sum = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private boolean sorted = true;
+
+    public HeightAccumulator() {
+        this(8);
+    }
+
+    public HeightAccumulator(int initialCapacity) {
+        heights = new double[Math.max(1, initialCapacity)];
+    }
+
+    public void add(double height) {
+        if (size == heights.length)
+            heights = Arrays.copyOf(heights, 2 * size);
+        if (size > 0 && height < heights[size - 1])
+            sorted = false;
+        heights[size++] = height;
+        sum += height;
+        min = Math.min(min, height);
+        max = Math.max(max, height);
+    }
+
+    /**
+     * Adds all heights of another accumulator.
+     */
+    public void addAll(HeightAccumulator other) {
+        for (int i = 0; i < other.size; i++)
+            add(other.heights[i]);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getMean() {
+        return sum / size;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * @return the height at index (int)(size * p) of the sorted heights, as used for the
+     * 2.5% and 97.5% bounds of the comparator output
+     */
+    public double getQuantile(double p) {
+        if (!sorted) {
+            Arrays.sort(heights, 0, size);
+            sorted = true;
+        }
+        return heights[(int) (size * p)];
+    }
+
+    public double getLower95() {
+        return getQuantile(0.025);
+    }
+
+    public double getUpper95() {
+        return getQuantile(0.975);
+    }
+
+    /**
+     * @return copy of the heights in their current order
+     */
+    public double[] toArray() {
+        return Arrays.copyOf(heights, size);
+    }
+}
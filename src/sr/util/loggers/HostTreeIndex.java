@@ -0,0 +1,294 @@
+package sr.util.loggers;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import sr.util.TreeTraversal;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Flat view of a host-annotated transmission tree for SpeciationAnalyser. Host labels are
+ * parsed once per node into int IDs, and the parent, child count, orientation flags and
+ * height of every node are stored in arrays indexed by the node's position in pre-order.
+ * The upward walks then compare ints instead of splitting metadata strings, and are
+ * resolved for all nodes in a single pass when the tree is indexed, so that the answer
+ * for each leaf is a lookup. The results are written into primitive rows.
+ *
+ * Host IDs below the number of hosts are indices into the host list the index was created
+ * with. Hosts not in that list get IDs above it, so that host comparisons stay exact while
+ * matrix lookups treat them as missing, as List.indexOf would.
+ *
+ * The arrays are reused between trees; an index is not safe for use by several threads.
+ */
+public class HostTreeIndex {
+
+    private final int hostCount;
+    private final HashMap<String, Integer> hostIds = new HashMap<>();
+    private final int[] timeIndexOfHost;
+    private int nextUnlistedHostId;
+
+    int size = 0;
+    int[] parent = new int[0];
+    int[] host = new int[0];
+    int[] childCount = new int[0];
+    boolean[] fake = new boolean[0];
+    boolean[] unsampled = new boolean[0];
+    boolean[] right = new boolean[0];
+    boolean[] donor = new boolean[0];
+    double[] height = new double[0];
+    // positions of the leaves, in the order Tree.getExternalNodes() returns them
+    int[] leaves = new int[0];
+    int leafCount = 0;
+    private int[] leafNrs = new int[0];
+
+    // results of the walk up from each node, filled by resolveWalks()
+    private int[] sameHostCount = new int[0];
+    private int[] sameHostEnd = new int[0];
+    private int[] unsampledCount = new int[0];
+    private int[] unsampledEnd = new int[0];
+    private int[] unsampledLastChild = new int[0];
+    private double[] speciationTime = new double[0];
+
+    /**
+     * @param hostsList            hosts indexing the transmission matrix, "unsampled" included
+     * @param hostsListNoUnsampled hosts indexing the speciation times
+     */
+    public HostTreeIndex(List<String> hostsList, List<String> hostsListNoUnsampled) {
+        hostCount = hostsList.size();
+        nextUnlistedHostId = hostCount;
+        timeIndexOfHost = new int[hostCount];
+        for (int i = 0; i < hostCount; i++) {
+            hostIds.putIfAbsent(hostsList.get(i), i);
+            timeIndexOfHost[i] = hostsListNoUnsampled.indexOf(hostsList.get(i));
+        }
+    }
+
+    public int getHostCount() {
+        return hostCount;
+    }
+
+    /**
+     * Reads the host metadata and structure of the tree. Host metadata has to be present,
+     * see SpeciationAnalyser.addHostMetadata.
+     */
+    public void index(Tree tree) {
+        ensureCapacity(tree.getNodeCount());
+        size = 0;
+        leafCount = 0;
+        int[] openNodes = new int[16];
+        int[] openCount = {0};
+        TreeTraversal.walk(tree.getRoot(), new TreeTraversal.Visitor() {
+            int[] stack = openNodes;
+
+            @Override
+            public void enter(Node node) {
+                if (size == parent.length)
+                    ensureCapacity(Math.max(16, 2 * size));
+                int pos = size++;
+                parent[pos] = openCount[0] == 0 ? -1 : stack[openCount[0] - 1];
+                childCount[pos] = node.getChildCount();
+                fake[pos] = node.isFake();
+                height[pos] = node.getHeight();
+                right[pos] = node.metaDataString != null && node.metaDataString.contains("right");
+                donor[pos] = node.metaDataString != null && node.metaDataString.contains("donor");
+                String label = String.valueOf(node.getMetaData("host"));
+                unsampled[pos] = label.contains("unsampled");
+                host[pos] = getHostId(label.split("\\.")[0]);
+                if (node.isLeaf()) {
+                    if (leafCount == leaves.length) {
+                        leaves = Arrays.copyOf(leaves, Math.max(16, 2 * leafCount));
+                        leafNrs = Arrays.copyOf(leafNrs, leaves.length);
+                    }
+                    leafNrs[leafCount] = node.getNr();
+                    leaves[leafCount++] = pos;
+                }
+                if (openCount[0] == stack.length)
+                    stack = Arrays.copyOf(stack, 2 * stack.length);
+                stack[openCount[0]++] = pos;
+            }
+
+            @Override
+            public void exit(Node node) {
+                openCount[0]--;
+            }
+        });
+        sortLeavesByNr();
+        resolveWalks();
+    }
+
+    // Tree.getExternalNodes() lists leaves by node number, and later leaves overwrite earlier
+    // ones in the transmission matrix, so that order is kept
+    private void sortLeavesByNr() {
+        long[] keyed = new long[leafCount];
+        for (int k = 0; k < leafCount; k++)
+            keyed[k] = ((long) leafNrs[k] << 32) | leaves[k];
+        Arrays.sort(keyed);
+        for (int k = 0; k < leafCount; k++)
+            leaves[k] = (int) keyed[k];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (parent.length >= capacity)
+            return;
+        parent = Arrays.copyOf(parent, capacity);
+        host = Arrays.copyOf(host, capacity);
+        childCount = Arrays.copyOf(childCount, capacity);
+        fake = Arrays.copyOf(fake, capacity);
+        unsampled = Arrays.copyOf(unsampled, capacity);
+        right = Arrays.copyOf(right, capacity);
+        donor = Arrays.copyOf(donor, capacity);
+        height = Arrays.copyOf(height, capacity);
+        sameHostCount = Arrays.copyOf(sameHostCount, capacity);
+        sameHostEnd = Arrays.copyOf(sameHostEnd, capacity);
+        unsampledCount = Arrays.copyOf(unsampledCount, capacity);
+        unsampledEnd = Arrays.copyOf(unsampledEnd, capacity);
+        unsampledLastChild = Arrays.copyOf(unsampledLastChild, capacity);
+        speciationTime = Arrays.copyOf(speciationTime, capacity);
+    }
+
+    /** transmissions counted when the walk steps from child to its parent p **/
+    private int step(int child, int p) {
+        return childCount[p] == 1 || (!fake[p] && right[child]) ? 1 : 0;
+    }
+
+    /**
+     * Resolves the upward walks of all nodes in one pass over the pre-order positions, so
+     * that every parent is done before its children and each walk reuses its parent's.
+     *
+     * The transmission walk from a node continues through unsampled ancestors whatever the
+     * host, and through ancestors with the node's own host. The first part is kept per node
+     * (unsampledCount/End/LastChild); where it stops at an ancestor q with the node's host,
+     * the walk goes on exactly as the walk from q, so the same-host result of q is added.
+     * sameHostEnd is then the nearest ancestor with a different host, the donor.
+     */
+    private void resolveWalks() {
+        for (int u = 1; u < size; u++) {
+            int p = parent[u];
+
+            if (parent[p] != -1 && unsampled[p]) {
+                unsampledCount[u] = step(u, p) + unsampledCount[p];
+                unsampledEnd[u] = unsampledEnd[p];
+                unsampledLastChild[u] = unsampledLastChild[p];
+            } else {
+                unsampledCount[u] = 0;
+                unsampledEnd[u] = p;
+                unsampledLastChild[u] = u;
+            }
+
+            int q = unsampledEnd[u];
+            if (parent[q] != -1 && host[q] == host[u]) {
+                sameHostCount[u] = unsampledCount[u] + step(unsampledLastChild[u], q) + sameHostCount[q];
+                sameHostEnd[u] = sameHostEnd[q];
+            } else {
+                sameHostCount[u] = unsampledCount[u];
+                sameHostEnd[u] = q;
+            }
+
+            if (fake[p] || (childCount[p] > 1 && donor[u]))
+                speciationTime[u] = parent[p] == -1 ? Double.NaN : speciationTime[p];
+            else
+                speciationTime[u] = height[p];
+        }
+    }
+
+    int getHostId(String hostName) {
+        Integer id = hostIds.get(hostName);
+        if (id == null) {
+            id = nextUnlistedHostId++;
+            hostIds.put(hostName, id);
+        }
+        return id;
+    }
+
+    /** matrix row or column of a host, -1 for hosts not in the host list **/
+    private int matrixIndex(int hostId) {
+        return hostId < hostCount ? hostId : -1;
+    }
+
+    /**
+     * Fills the transmissions of all leaves from the resolved walks, in constant time per leaf.
+     *
+     * @param transmissions hostCount x hostCount matrix, donor major
+     */
+    public void fillTransmissions(int[] transmissions) {
+        for (int k = 0; k < leafCount; k++) {
+            int leaf = leaves[k];
+            int p = parent[leaf];
+            int nTransmissions = (!fake[p] && right[leaf] ? 1 : 0) + sameHostCount[leaf];
+            nTransmissions = nTransmissions == 0 ? 1 : nTransmissions;
+            transmissions[matrixIndex(host[sameHostEnd[leaf]]) * hostCount + matrixIndex(host[leaf])] = nTransmissions;
+        }
+    }
+
+    /**
+     * Fills the speciation times of all leaves from the resolved walks.
+     *
+     * @param speciationTimes one entry per sampled host
+     */
+    public void fillSpeciationTimes(double[] speciationTimes) {
+        for (int k = 0; k < leafCount; k++) {
+            int leaf = leaves[k];
+            int idx = host[leaf] < hostCount ? timeIndexOfHost[host[leaf]] : -1;
+            speciationTimes[idx] = speciationTime[leaf];
+        }
+    }
+
+    /**
+     * Same walk as SpeciationAnalyser.fillTransmissions, for every leaf: up from the leaf while
+     * the host is unsampled or the leaf's own, counting transmissions on the way. Takes time
+     * proportional to the summed path lengths; kept as reference for fillTransmissions.
+     *
+     * @param transmissions hostCount x hostCount matrix, donor major
+     */
+    public void walkTransmissions(int[] transmissions) {
+        for (int k = 0; k < leafCount; k++) {
+            int leaf = leaves[k];
+            int recipient = host[leaf];
+            int child = leaf;
+            int p = parent[leaf];
+            int nTransmissions = 0;
+            if (!fake[p] && right[child])
+                nTransmissions += 1;
+            while (parent[p] != -1 && (unsampled[p] || host[p] == recipient)) {
+                if (childCount[p] == 1 || (!fake[p] && right[child]))
+                    nTransmissions += 1;
+                child = p;
+                p = parent[p];
+            }
+            int donorHost = host[p];
+            nTransmissions = nTransmissions == 0 ? 1 : nTransmissions;
+            transmissions[matrixIndex(donorHost) * hostCount + matrixIndex(recipient)] = nTransmissions;
+        }
+    }
+
+    /**
+     * Same walk as SpeciationAnalyser.fillInfectionTimes, for every leaf; kept as reference
+     * for fillSpeciationTimes.
+     *
+     * @param speciationTimes one entry per sampled host
+     */
+    public void walkSpeciationTimes(double[] speciationTimes) {
+        for (int k = 0; k < leafCount; k++) {
+            int leaf = leaves[k];
+            int recipient = host[leaf];
+            int child = leaf;
+            int p = parent[leaf];
+            double speciationTime = Double.NaN;
+            while (fake[p] || (childCount[p] > 1 && donor[child])) {
+                child = p;
+                p = parent[p];
+                if (p == -1) {
+                    speciationTime = Double.NaN;
+                    break;
+                }
+                speciationTime = height[p];
+            }
+            if (p != -1)
+                speciationTime = height[p];
+            int idx = recipient < hostCount ? timeIndexOfHost[recipient] : -1;
+            speciationTimes[idx] = speciationTime;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package sr.util.loggers;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Byte offsets of the data lines of a tab-separated BEAST trace log, collected in a
+ * single scan. Values of any row can then be read by seeking to the row, without reading
+ * the lines before it, so burn-in and thinned samples cost nothing.
+ *
+ * Comment lines starting with '#' and empty lines are ignored, the first remaining line is
+ * the column header. The first column is expected to hold the sample number; rows can be
+ * looked up by it with {@link #findRow(long)}.
+ */
+public class LogFileIndex implements Closeable {
+
+    private final File file;
+    private String[] columns;
+    private long[] offsets = new long[1024];
+    private long[] samples = new long[1024];
+    private int rowCount = 0;
+    private boolean samplesIncreasing = true;
+    private RandomAccessFile in;
+
+    public LogFileIndex(File file) throws IOException {
+        this.file = file;
+        scan();
+    }
+
+    private void scan() throws IOException {
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+            long position = 0;
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                long start = position;
+                line.setLength(0);
+                int c;
+                while ((c = stream.read()) != -1) {
+                    position++;
+                    if (c == '\n')
+                        break;
+                    // only the start of data lines is needed, for the sample number
+                    if (line.length() < 64 || columns == null)
+                        line.append((char) c);
+                }
+                if (c == -1 && line.length() == 0)
+                    break;
+                addLine(line, start);
+                if (c == -1)
+                    break;
+            }
+        }
+        if (columns == null)
+            throw new IOException("No column header found in " + file);
+    }
+
+    private void addLine(StringBuilder line, long start) {
+        int length = line.length();
+        while (length > 0 && Character.isWhitespace(line.charAt(length - 1)))
+            length--;
+        if (length == 0 || line.charAt(0) == '#')
+            return;
+        if (columns == null) {
+            columns = line.substring(0, length).split("\t");
+            return;
+        }
+        if (rowCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * rowCount);
+            samples = Arrays.copyOf(samples, 2 * rowCount);
+        }
+        offsets[rowCount] = start;
+        int end = 0;
+        while (end < length && line.charAt(end) != '\t')
+            end++;
+        long sample;
+        try {
+            sample = Long.parseLong(line.substring(0, end).trim());
+        } catch (NumberFormatException e) {
+            sample = -1;
+        }
+        if (rowCount > 0 && sample <= samples[rowCount - 1])
+            samplesIncreasing = false;
+        samples[rowCount] = sample;
+        rowCount++;
+    }
+
+    public String[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return index of the column with the given name, or -1
+     */
+    public int getColumnIndex(String name) {
+        for (int i = 0; i < columns.length; i++)
+            if (columns[i].equals(name))
+                return i;
+        return -1;
+    }
+
+    /**
+     * @return number of data lines
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return row holding the given sample number, or -1 if there is none
+     */
+    public int findRow(long sample) {
+        if (samplesIncreasing) {
+            int row = Arrays.binarySearch(samples, 0, rowCount, sample);
+            return row < 0 ? -1 : row;
+        }
+        for (int row = 0; row < rowCount; row++)
+            if (samples[row] == sample)
+                return row;
+        return -1;
+    }
+
+    /**
+     * Reads a single value by seeking to its row.
+     */
+    public double getValue(int row, int column) throws IOException {
+        if (row < 0 || row >= rowCount)
+            throw new IOException("Row " + row + " out of range, " + file + " has " + rowCount + " data lines");
+        if (in == null)
+            in = new RandomAccessFile(file, "r");
+        in.seek(offsets[row]);
+        String line = readLine();
+        String[] fields = line.split("\t");
+        return Double.parseDouble(fields[column]);
+    }
+
+    private String readLine() throws IOException {
+        byte[] line = new byte[4096];
+        int length = 0;
+        while (true) {
+            if (length == line.length)
+                line = Arrays.copyOf(line, 2 * length);
+            int read = in.read(line, length, line.length - length);
+            if (read <= 0)
+                break;
+            int end = length + read;
+            for (int i = length; i < end; i++) {
+                if (line[i] == '\n')
+                    return new String(line, 0, i, StandardCharsets.UTF_8).trim();
+            }
+            length = end;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8).trim();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+    }
+}
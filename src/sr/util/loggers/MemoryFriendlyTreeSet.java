@@ -4,15 +4,17 @@ package sr.util.loggers;
  */
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 
+import beast.base.core.Log;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 
-public class MemoryFriendlyTreeSet extends TreeFileParser {
+public class MemoryFriendlyTreeSet extends TreeFileParser implements Closeable {
     //	Tree [] trees;
 //	int current = 0;
     int lineNr;
@@ -24,6 +26,9 @@ public class MemoryFriendlyTreeSet extends TreeFileParser {
 
     BufferedReader fin;
 
+    // sample number of the tree last returned or skipped, -1 if the tree line has no STATE_ label
+    long lastSample = -1;
+
     public MemoryFriendlyTreeSet(String inputFileName, int burninPercentage) throws IOException  {
         super(inputFileName, burninPercentage);
         countTrees(inputFileName, burninPercentage);
@@ -34,6 +39,7 @@ public class MemoryFriendlyTreeSet extends TreeFileParser {
     @Override
     public void reset() throws FileNotFoundException  {
         currentTree = 0;
+        closeReader();
         fin = new BufferedReader(new FileReader(new File(fileName)));
         lineNr = 0;
         try {
@@ -43,7 +49,7 @@ public class MemoryFriendlyTreeSet extends TreeFileParser {
                     if (str == null) {
                         return;
                     }
-                    if (str.trim().toLowerCase().startsWith("tree ")) {
+                    if (isTreeLine(str)) {
                         currentTree++;
                     }
                 }
@@ -53,7 +59,7 @@ public class MemoryFriendlyTreeSet extends TreeFileParser {
                     if (str == null) {
                         return;
                     }
-                    if (str.trim().length() > 2 && !str.trim().startsWith("#")) {
+                    if (isTreeLine(str)) {
                         currentTree++;
                     }
                 }
@@ -64,6 +70,26 @@ public class MemoryFriendlyTreeSet extends TreeFileParser {
         }
     } // parseFile
 
+    /**
+     * Closes the file. The set can be read again after reset().
+     */
+    @Override
+    public void close() throws IOException {
+        if (fin != null) {
+            fin.close();
+            fin = null;
+        }
+    }
+
+    private void closeReader() {
+        try {
+            close();
+        } catch (IOException e) {
+            // the reader is replaced, a failure to close the old one changes nothing for it
+            Log.warning("Could not close " + fileName + ": " + e.getMessage());
+        }
+    }
+
     /**
      * read next line from Nexus file that is not a comment and not empty
      * @throws IOException *
@@ -114,24 +140,101 @@ public class MemoryFriendlyTreeSet extends TreeFileParser {
             return null;
         }
         Node root = null;
-        if (isNexus) {
-            if (str.trim().toLowerCase().startsWith("tree ")) {
-                root = parseNewick(str);
-            }
-        } else {
-            if (str.trim().length() > 2 && !str.trim().startsWith("#")) {
-                root = parseNewick(str);
-            }
+        if (isTreeLine(str)) {
+            root = parseNewick(str);
         }
         if (root != null) {
             double h = getMaxHeight(root);
             normalise(root, h);
             Tree tree = new Tree(root);
             tree.m_taxonset.setValue(taxonset, tree);
+            lastSample = getSample(str);
             currentTree++;
             return tree;
         }
 
         return next();
     }
-} // class MemoryFriendlyTreeSet
\ No newline at end of file
+
+    /**
+     * Moves past the next tree without parsing it; only the line is scanned.
+     *
+     * @return false if there are no more trees
+     */
+    public boolean skip() throws IOException {
+        String str;
+        while ((str = nextLine()) != null) {
+            if (isTreeLine(str)) {
+                lastSample = getSample(str);
+                currentTree++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves past up to n trees without parsing them.
+     *
+     * @return number of trees skipped
+     */
+    public int skip(int n) throws IOException {
+        int skipped = 0;
+        while (skipped < n && hasNext() && skip()) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    /**
+     * @return index in the file (burn-in included) of the next tree
+     */
+    public int getTreeIndex() {
+        return currentTree;
+    }
+
+    /**
+     * @return sample number of the tree last returned by next() or passed by skip(),
+     * taken from its STATE_ label, or -1 if the label is missing
+     */
+    public long getLastSample() {
+        return lastSample;
+    }
+
+    /**
+     * Same test as next() uses, without copying the (possibly very long) line.
+     */
+    private boolean isTreeLine(String str) {
+        int start = 0;
+        while (start < str.length() && Character.isWhitespace(str.charAt(start))) {
+            start++;
+        }
+        if (isNexus) {
+            return str.regionMatches(true, start, "tree ", 0, 5);
+        }
+        int end = str.length();
+        while (end > start && Character.isWhitespace(str.charAt(end - 1))) {
+            end--;
+        }
+        return end - start > 2 && str.charAt(start) != '#';
+    }
+
+    private static long getSample(String str) {
+        // the label is near the start of the line, do not scan the whole tree
+        int limit = Math.min(str.length(), 64);
+        int i = -1;
+        for (int k = 0; k + 6 <= limit && i < 0; k++) {
+            if (str.startsWith("STATE_", k)) {
+                i = k + 6;
+            }
+        }
+        if (i < 0) {
+            return -1;
+        }
+        int end = i;
+        while (end < str.length() && Character.isDigit(str.charAt(end))) {
+            end++;
+        }
+        return end > i ? Long.parseLong(str.substring(i, end)) : -1;
+    }
+} // class MemoryFriendlyTreeSet
@@ -10,6 +10,12 @@ import java.awt.image.BufferedImage;
 import java.io.*;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
 
@@ -25,6 +31,7 @@ import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.util.FrequencySet;
 import beast.base.util.Randomizer;
+import sr.util.TreeTraversal;
 
 import static sr.util.Tools.*;
 
@@ -72,11 +79,23 @@ public class SRangesAndSACladeSetComparator extends Runnable {
             "comma separated taxa in sRanges tree that the figure and log file should be produced for " +
                     "Use only if not all taxa in the sRanges tree should be compared.");
 
+    final public Input<String> renderInput = new Input<>("render",
+            "how clades are drawn in the SVG and PNG output: 'points' draws a mark for every clade, " +
+                    "'density' aggregates clades into a bins x bins grid first, so that output size and " +
+                    "render time do not depend on the number of clades. Default points.", "points");
+    final public Input<Integer> binsInput = new Input<>("bins", "number of bins per axis for density rendering. Default 100.", 100);
+    final public Input<OutFile> densityOutputInput = new Input<>("densityCSV", "CSV output file for the density grid of " +
+            "clade supports and heights. If not specified, no grid is written.",
+            new OutFile("[[none]]"));
+
+    final public Input<Integer> threadsInput = new Input<>("threads",
+            "number of threads used for clade counting in each tree file. With more than one thread " +
+                    "the SA and sRanges tree files are also processed concurrently. Default 1.", 1);
+
     final public Input<Double> scalingInput = new Input<>("scaling",
             "scaling factor for clade ages " +
                     "If not specified the highest tree in both trees is used as scaling factor.");
 
-    private double n;
     private boolean verbose;
     private double threshold = 0;
 
@@ -132,6 +151,10 @@ public class SRangesAndSACladeSetComparator extends Runnable {
 
     HashMap<String, String> SAtoSRangesTaxonMap = new HashMap<>();
 
+    boolean densityRendering = false;
+    // clades aggregated for density rendering and the CSV grid, null if neither is requested
+    CladeDensityGrid densityGrid = null;
+
 
     @Override
     public void run() throws Exception {
@@ -156,10 +179,29 @@ public class SRangesAndSACladeSetComparator extends Runnable {
 
         verbose = verboseInput.get();
         threshold = thresholdInput.get();
-        CladeSetWithHeights cladeSet1 = getCladeSet(src1Input.get().getPath(), false);
-        double n1 = n;
-        CladeSetWithHeights cladeSet2 = getCladeSet(src2Input.get().getPath(), true);
-        double n2 = n;
+        String render = renderInput.get().trim().toLowerCase();
+        if (!render.equals("points") && !render.equals("density")) {
+            throw new IllegalArgumentException("render must be either points or density, not " + renderInput.get());
+        }
+        densityRendering = render.equals("density");
+        CladeSetWithHeights cladeSet1, cladeSet2;
+        if (threadsInput.get() > 1) {
+            // the two tree files are independent, read them side by side
+            ExecutorService files = Executors.newFixedThreadPool(2);
+            try {
+                Future<CladeSetWithHeights> future1 = files.submit(() -> getCladeSet(src1Input.get().getPath(), false));
+                Future<CladeSetWithHeights> future2 = files.submit(() -> getCladeSet(src2Input.get().getPath(), true));
+                cladeSet1 = getResult(future1);
+                cladeSet2 = getResult(future2);
+            } finally {
+                files.shutdownNow();
+            }
+        } else {
+            cladeSet1 = getCladeSet(src1Input.get().getPath(), false);
+            cladeSet2 = getCladeSet(src2Input.get().getPath(), true);
+        }
+        double n1 = cladeSet1.totalTrees;
+        double n2 = cladeSet2.totalTrees;
         process(src1Input.get(), src2Input.get(), "", cladeSet1, n1, cladeSet2, n2);
     }
 
@@ -189,6 +231,12 @@ public class SRangesAndSACladeSetComparator extends Runnable {
             initPNG(g, tree1, tree2);
         }
 
+        densityGrid = null;
+        boolean densityCSV = densityOutputInput.get() != null && !densityOutputInput.get().getName().equals("[[none]]");
+        if (densityRendering || densityCSV) {
+            densityGrid = new CladeDensityGrid(binsInput.get());
+        }
+
 //		CladeSetWithHeights cladeSet1 = getCladeSet(tree1.getPath());
 //		double n1 = n;
 
@@ -238,17 +286,15 @@ public class SRangesAndSACladeSetComparator extends Runnable {
             if (cladeMap.containsKey(clade)) {
                 // clade is also in set1
                 double h1 = cladeHeightMap.get(clade);
-                double [] heights1 = cladeSet1.nodeHeights.get(cladeSet1.get(cladeToIndexMap.get(clade)));
-                Arrays.sort(heights1);
-                double lo1 = heights1[(int)(heights1.length * 0.025)];
-                double hi1 = heights1[(int)(heights1.length * 0.975)];
-                double max1 = heights1[heights1.length-1];
-
-                double [] heights2 = cladeSet2.nodeHeights.get(cladeSet2.get(i));
-                Arrays.sort(heights2);
-                double lo2 = heights2[(int)(heights2.length * 0.025)];
-                double hi2 = heights2[(int)(heights2.length * 0.975)];
-                double max2 = heights2[heights2.length-1];
+                HeightAccumulator heights1 = cladeSet1.nodeHeights.get(cladeSet1.get(cladeToIndexMap.get(clade)));
+                double lo1 = heights1.getLower95();
+                double hi1 = heights1.getUpper95();
+                double max1 = heights1.getMax();
+
+                HeightAccumulator heights2 = cladeSet2.nodeHeights.get(cladeSet2.get(i));
+                double lo2 = heights2.getLower95();
+                double hi2 = heights2.getUpper95();
+                double max2 = heights2.getMax();
 
                 double support1 = cladeMap.get(clade);
                 output(out, svg, clade,support1, support2, g, h1, h2,
@@ -289,11 +335,10 @@ public class SRangesAndSACladeSetComparator extends Runnable {
                 }
             } else {
                 // clade is not in set1
-                double [] heights2 = cladeSet2.nodeHeights.get(cladeSet2.get(i));
-                Arrays.sort(heights2);
-                double lo2 = heights2[(int)(heights2.length * 0.025)];
-                double hi2 = heights2[(int)(heights2.length * 0.975)];
-                double max2 = heights2[heights2.length-1];
+                HeightAccumulator heights2 = cladeSet2.nodeHeights.get(cladeSet2.get(i));
+                double lo2 = heights2.getLower95();
+                double hi2 = heights2.getUpper95();
+                double max2 = heights2.getMax();
                 output(out, svg, clade, 0.0, support2, g, 0, h2, 0, lo2, 0, hi2, 0, max2);
                 maxDiff = Math.max(maxDiff, support2);
                 if (support2> 0.01) {
@@ -310,11 +355,10 @@ public class SRangesAndSACladeSetComparator extends Runnable {
         // process left-overs of clades in set1 that are not in set2
         for (String clade : cladeMap.keySet()) {
             double h1 = cladeHeightMap.get(clade);
-            double [] heights1 = cladeSet1.nodeHeights.get(cladeSet1.get(cladeToIndexMap.get(clade)));
-            Arrays.sort(heights1);
-            double lo1 = heights1[(int)(heights1.length * 0.025)];
-            double hi1 = heights1[(int)(heights1.length * 0.975)];
-            double max1 = heights1[heights1.length-1];
+            HeightAccumulator heights1 = cladeSet1.nodeHeights.get(cladeSet1.get(cladeToIndexMap.get(clade)));
+            double lo1 = heights1.getLower95();
+            double hi1 = heights1.getUpper95();
+            double max1 = heights1.getMax();
             output(out, svg, clade, cladeMap.get(clade), 0.0, g, h1, 0.0, lo1, 0, hi1, 0, max1, 0.0);
             double s = cladeMap.get(clade);
             maxDiff = Math.max(maxDiff, s);
@@ -338,9 +382,23 @@ public class SRangesAndSACladeSetComparator extends Runnable {
             svg.println("<text x='110' y='65'>" + measure3String + formatter.format(sqrtMeanSumSquared)+ "%</text>");
             svg.println("<text x='110' y='85'>" + interestCount + " clades >25% difference "+ problemCount + " problematic</text>");
             svg.println("<text x='110' y='105'>" + inconsistentHeightIntervals + " inconsistent height intervals " + formatter.format(100.0*meanHeightsDifference/meanDiffCount) + " average % mean height diff</text>");
+            if (densityRendering) {
+                densityGrid.writeSVG(svg);
+            }
             svg.println(footer);
         }
+        if (densityCSV) {
+            String str = normalise(densityOutputInput.get().getPath(), suffix);
+            Log.warning("Writing to file " + str);
+            PrintStream csv = new PrintStream(str);
+            densityGrid.writeCSV(csv);
+            csv.close();
+        }
         if (bi != null) {
+            if (densityRendering) {
+                densityGrid.draw(g);
+                g.setColor(Color.black);
+            }
             // draw histogram of 95%HPD interval fractions
             double max = 0;
             for (double d : hist) {
@@ -479,6 +537,15 @@ public class SRangesAndSACladeSetComparator extends Runnable {
             interestCount++;
         }
 
+        if (densityGrid != null && threshold <= support1 + support2) {
+            densityGrid.add(CladeDensityGrid.SUPPORT, support1, support2, support1 + support2);
+            densityGrid.add(CladeDensityGrid.HEIGHT, h1 / maxHeight, h2 / maxHeight, Math.max(support1, support2));
+        }
+        if (densityRendering) {
+            // drawn from the grid once all clades are counted
+            return;
+        }
+
         if (svg != null && threshold <= support1 + support2) {
             svg.println("  <circle style=\"opacity:0.25;fill:#a00000\" cx=\""+ (90 +1000* support1 + Randomizer.nextInt(10) - 5) +
                     "\" cy=\""+ (10 + 1000 - 1000 * support2 + Randomizer.nextInt(10) - 5) +"\" "
@@ -534,74 +601,192 @@ public class SRangesAndSACladeSetComparator extends Runnable {
         }
     }
 
-    private CladeSetWithHeights getCladeSet(String path, boolean rangesTree) throws IOException {
+    private CladeSetWithHeights getCladeSet(String path, boolean rangesTree) throws Exception {
         Log.warning("Processing " + path);
         MemoryFriendlyTreeSet srcTreeSet = new MemoryFriendlyTreeSet(path, burnInPercentageInput.get());
-        BufferedReader offsetFile = null;
-        int offsetIndex = 0;
+        OffsetLog offsets = null;
         if (!rangesTree && SATreeOffsetInput.get()!=null){
-            offsetFile = new BufferedReader(new FileReader(SATreeOffsetInput.get()));
-            String line = offsetFile.readLine();
-            int n = -1;
-            while(line != null && !line.startsWith("#")){
-                n+=1;
-                line = offsetFile.readLine();
-            }
-            offsetFile = new BufferedReader(new FileReader(SATreeOffsetInput.get()));
-            line = offsetFile.readLine();
-            while(line.startsWith("#"))
-                line = offsetFile.readLine();
-            String[] params = line.split("\t");
-            offsetIndex = findIndexOf(params, "offset");
-            for (int i=0; i<Math.max(0, (burnInPercentageInput.get() * n)/100); i++){
-                line = offsetFile.readLine();
-            }
-            line = offsetFile.readLine();
-            params = line.split("\t");
-            offset = Double.parseDouble(params[offsetIndex]);
-        }
-        else {
-            offset =0.;
+            offsets = new OffsetLog(SATreeOffsetInput.get());
         }
 
         srcTreeSet.reset();
         Tree tree = srcTreeSet.next();
-        CladeSetWithHeights cladeSet1 = new CladeSetWithHeights(tree, rangesTree);
-        n = 1;
+        double offset = offsets == null ? 0. : offsets.get(srcTreeSet);
+        CladeCounter counter = new CladeCounter(tree.getTaxonset(), rangesTree, threadsInput.get());
+        counter.add(tree, offset);
+        double rootHeight = tree.getRoot().getHeight();
         int thin = thinningInput.get();
-        if (scalingInput.get()==null) {
-            maxHeight = Math.max(maxHeight, tree.getRoot().getHeight());
-        }
 
         while (srcTreeSet.hasNext()) {
             // System.out.println(n);
-            if (!rangesTree && SATreeOffsetInput.get()!=null){
-                String line = offsetFile.readLine();
-                String[] params = line.split("\t");
-                offset = Double.parseDouble(params[offsetIndex]);
-            } else{
-                offset = 0.;
-            }
             tree = srcTreeSet.next();
-            cladeSet1.add(tree, rangesTree);
-            n++;
-            if (scalingInput.get()==null) {
-                maxHeight = Math.max(maxHeight, tree.getRoot().getHeight());
-            }
-            int j = 1;
-            while (j < thin && srcTreeSet.hasNext()) {
-                tree = srcTreeSet.next();
-                j++;
-            }
+            offset = offsets == null ? 0. : offsets.get(srcTreeSet);
+            counter.add(tree, offset);
+            rootHeight = Math.max(rootHeight, tree.getRoot().getHeight());
+            // thinned trees are only scanned for, not parsed
+            srcTreeSet.skip(thin - 1);
+        }
+        srcTreeSet.close();
+        if (offsets != null)
+            offsets.close();
+        if (scalingInput.get()==null) {
+            updateMaxHeight(rootHeight);
         }
 
-        if (n==1) {
+        CladeSetWithHeights cladeSet1 = counter.finish();
+        if (cladeSet1.totalTrees==1) {
             // might be a summary tree
-            cladeSet1 = new SummaryCladeSetWithHeights(tree, rangesTree);
+            cladeSet1 = new SummaryCladeSetWithHeights(tree, tree.getTaxonset(), rangesTree, offset);
         }
         return cladeSet1;
     }
 
+    private synchronized void updateMaxHeight(double height) {
+        maxHeight = Math.max(maxHeight, height);
+    }
+
+    private static <T> T getResult(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Offsets of the SA trees. The log is indexed once and the offset of a tree is read from
+     * the log line with the tree's sample number, or, if the tree has no STATE_ label or the
+     * sample is not logged, from the line with the tree's index in the file. Burn-in and
+     * thinned trees therefore never misalign the offsets.
+     */
+    private class OffsetLog {
+        final LogFileIndex index;
+        final int offsetIndex;
+
+        OffsetLog(File file) throws IOException {
+            index = new LogFileIndex(file);
+            offsetIndex = index.getColumnIndex("offset");
+            if (offsetIndex < 0)
+                throw new IllegalArgumentException("No offset column found in " + file);
+        }
+
+        /** offset of the tree last returned by the tree set **/
+        double get(MemoryFriendlyTreeSet treeSet) throws IOException {
+            int row = treeSet.getLastSample() >= 0 ? index.findRow(treeSet.getLastSample()) : -1;
+            if (row < 0)
+                row = treeSet.getTreeIndex() - 1;
+            return index.getValue(row, offsetIndex);
+        }
+
+        void close() throws IOException {
+            index.close();
+        }
+    }
+
+    /**
+     * Counts the clades of trees handed to it in file order. With a single thread the trees
+     * go straight into one clade set. Otherwise they are cut into batches and batch b goes to
+     * worker b % threads, which counts into a clade set of its own. Each tree carries the
+     * offset read for it, so the SA offsets stay aligned however the trees are partitioned.
+     * The partial clade sets are merged in worker order by finish().
+     */
+    private class CladeCounter {
+        static final int BATCH_SIZE = 64;
+
+        final boolean rangesTree;
+        final CladeSetWithHeights[] partials;
+        final List<ArrayBlockingQueue<Batch>> queues = new ArrayList<>();
+        final List<Future<CladeSetWithHeights>> workers = new ArrayList<>();
+        ExecutorService pool;
+        Batch batch;
+        int batchCount = 0;
+
+        CladeCounter(TaxonSet taxonSet, boolean rangesTree, int threads) {
+            this.rangesTree = rangesTree;
+            partials = new CladeSetWithHeights[Math.max(1, threads)];
+            for (int w = 0; w < partials.length; w++)
+                partials[w] = new CladeSetWithHeights(taxonSet, rangesTree);
+            if (partials.length == 1)
+                return;
+
+            pool = Executors.newFixedThreadPool(partials.length);
+            for (CladeSetWithHeights partial : partials) {
+                ArrayBlockingQueue<Batch> queue = new ArrayBlockingQueue<>(2);
+                queues.add(queue);
+                workers.add(pool.submit(() -> {
+                    while (true) {
+                        Batch b = queue.take();
+                        if (b.size == 0)
+                            return partial;
+                        for (int k = 0; k < b.size; k++) {
+                            partial.offset = b.offsets[k];
+                            partial.add(b.trees[k], rangesTree);
+                        }
+                    }
+                }));
+            }
+            batch = new Batch(BATCH_SIZE);
+        }
+
+        void add(Tree tree, double offset) throws Exception {
+            if (pool == null) {
+                partials[0].offset = offset;
+                partials[0].add(tree, rangesTree);
+                return;
+            }
+            batch.trees[batch.size] = tree;
+            batch.offsets[batch.size] = offset;
+            batch.size++;
+            if (batch.size == BATCH_SIZE) {
+                send(batchCount % partials.length, batch);
+                batchCount++;
+                batch = new Batch(BATCH_SIZE);
+            }
+        }
+
+        private void send(int worker, Batch b) throws Exception {
+            while (!queues.get(worker).offer(b, 100, TimeUnit.MILLISECONDS)) {
+                // a worker that stopped early will not take any more batches
+                if (workers.get(worker).isDone()) {
+                    getResult(workers.get(worker));
+                    throw new IllegalStateException("Clade counting worker stopped unexpectedly");
+                }
+            }
+        }
+
+        CladeSetWithHeights finish() throws Exception {
+            if (pool == null)
+                return partials[0];
+            try {
+                if (batch.size > 0) {
+                    send(batchCount % partials.length, batch);
+                    batchCount++;
+                }
+                for (int w = 0; w < partials.length; w++)
+                    send(w, new Batch(0));
+                CladeSetWithHeights cladeSet = getResult(workers.get(0));
+                for (int w = 1; w < partials.length; w++)
+                    cladeSet.merge(getResult(workers.get(w)));
+                return cladeSet;
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private static class Batch {
+        final Tree[] trees;
+        final double[] offsets;
+        int size = 0;
+
+        Batch(int capacity) {
+            trees = new Tree[capacity];
+            offsets = new double[capacity];
+        }
+    }
+
     public class SummaryCladeSetWithHeights extends CladeSetWithHeights {
 
         public SummaryCladeSetWithHeights(Tree tree, boolean rangesTree) {
@@ -609,6 +794,14 @@ public class SRangesAndSACladeSetComparator extends Runnable {
         }
 
         public SummaryCladeSetWithHeights(Tree tree, TaxonSet taxonSet, boolean rangesTree) {
+            this(tree, taxonSet, rangesTree, 0.);
+        }
+
+        /**
+         * @param offset added to the node heights, e.g. the offset of an SA tree
+         */
+        public SummaryCladeSetWithHeights(Tree tree, TaxonSet taxonSet, boolean rangesTree, double offset) {
+            this.offset = offset;
             this.taxonSet = taxonSet;
             this.taxonNames = this.taxonSet.getTaxaNames();
             if (rangesTree)
@@ -656,7 +849,11 @@ public class SRangesAndSACladeSetComparator extends Runnable {
 
         void addNodeHeight(BitSet bits, double height, double lo, double hi) {
             totalNodeHeight.put(bits, (getTotalNodeHeight(bits) + (height+offset)));
-            nodeHeights.put(bits, new double[]{lo+offset, height+offset, hi+offset});
+            HeightAccumulator heights = new HeightAccumulator(3);
+            heights.add(lo+offset);
+            heights.add(height+offset);
+            heights.add(hi+offset);
+            nodeHeights.put(bits, heights);
         }
 
         Map<BitSet, Double> posteriors = new HashMap<>();
@@ -687,6 +884,30 @@ public class SRangesAndSACladeSetComparator extends Runnable {
             add(tree, rangesTree);
         }
 
+        /**
+         * Empty clade set over the given taxa, to be filled with add or merge.
+         */
+        public CladeSetWithHeights(TaxonSet taxonSet, boolean rangesTree) {
+            this.taxonSet = taxonSet;
+            this.taxonNames = taxonSet.getTaxaNames();
+            if (rangesTree)
+                this.taxonNames = taxaNamesToSpeciesNames(this.taxonNames, sepStringInput.get());
+        }
+
+        /**
+         * Adds the clades, frequencies and node heights of another clade set over the same taxa,
+         * e.g. one counted from a different part of the same tree file.
+         */
+        public void merge(CladeSetWithHeights other) {
+            for (int i = 0; i < other.getCladeCount(); i++) {
+                BitSet bits = other.get(i);
+                add(bits, other.getFrequency(i));
+                totalNodeHeight.put(bits, getTotalNodeHeight(bits) + other.getTotalNodeHeight(bits));
+                nodeHeights.computeIfAbsent(bits, k -> new HeightAccumulator()).addAll(other.nodeHeights.get(bits));
+            }
+            totalTrees += other.totalTrees;
+        }
+
         /** get number of unique clades */
         public int getCladeCount()
         {
@@ -745,41 +966,101 @@ public class SRangesAndSACladeSetComparator extends Runnable {
 
             totalTrees += 1;
 
-            // Recurse over the tree and add all the clades (or increment their
-            // frequency if already present). The root clade is not added.
-            addClades(tree.getRoot(), null, rangesTree);
-            addedForThisTree = new HashSet<>();
+            // Walk the tree once and add all the clades (or increment their
+            // frequency if already present).
+            addClades(tree.getRoot(), rangesTree);
+            addedForThisTree.clear();
         }
 
-        void addClades(Node node, BitSet bits, Boolean rangesTree) {
-
-            if (node.isLeaf()) {
-                if (taxonSet != null) {
-                    String id = node.getID();
-                    int index = taxonSet.getTaxonIndex(id);
-                    if (wholeRangeInput.get() && id.contains("last"))
-                        return;
-                    if (rangesTree){
-                        id = removeLastSubstring(sepStringInput.get(), id);
-                        index = getSpeciesNumber(this.taxonNames, id);
-                    }
+        /**
+         * Maps every leaf ID of the taxon set to its bit index once: the taxon index, or for
+         * ranges trees the index of the species name (ID without its last substring). IDs of
+         * last occurrences map to SKIP_LEAF when the whole range is required.
+         */
+        private void buildLeafIndex(Boolean rangesTree) {
+            leafIndex = new HashMap<>();
+            HashMap<String, Integer> speciesIndex = new HashMap<>();
+            if (rangesTree) {
+                for (String species : taxonNames)
+                    speciesIndex.put(species, speciesIndex.size());
+                bitCount = taxonNames.size();
+            } else {
+                bitCount = taxonSet.getTaxonCount();
+            }
+            List<String> ids = taxonSet.asStringList();
+            for (int i = 0; i < ids.size(); i++) {
+                String id = ids.get(i);
+                int index = i;
+                if (wholeRangeInput.get() && id.contains("last")) {
+                    index = SKIP_LEAF;
+                } else if (rangesTree) {
+                    Integer species = speciesIndex.get(removeLastSubstring(sepStringInput.get(), id));
+                    index = species == null ? -1 : species;
+                }
+                leafIndex.putIfAbsent(id, index);
+            }
+        }
 
+        private int getLeafIndex(Node leaf, Boolean rangesTree) {
+            if (taxonSet == null)
+                return leaf.getNr();
+            if (leafIndex == null)
+                buildLeafIndex(rangesTree);
+            String id = leaf.getID();
+            Integer index = leafIndex.get(id);
+            if (index == null && wholeRangeInput.get() && id.contains("last"))
+                return SKIP_LEAF;
+            if (index == null || index == -1) {
+                if (rangesTree)
+                    id = removeLastSubstring(sepStringInput.get(), id);
+                throw new RuntimeException("Taxon " + id + " not found in taxonset");
+            }
+            return index;
+        }
 
-                    if (index == -1) {
-                        throw new RuntimeException("Taxon " + id + " not found in taxonset");
-                    }
-                    bits.set(index);
-                } else {
-                    bits.set(node.getNr());
+        /**
+         * Adds the clades below root in a single post-order pass. The clade of each subtree is
+         * kept as a row of words on a value stack in bitPool, which is reused between trees, so
+         * BitSets are only created for the keys of the frequency set.
+         */
+        void addClades(Node root, Boolean rangesTree) {
+            Node[] order = TreeTraversal.postOrder(root);
+            if (taxonSet == null)
+                bitCount = Math.max(bitCount, order.length);
+            int words = Math.max(1, (bitCount + 63) >>> 6);
+            if (bitPool.length < order.length * words)
+                bitPool = new long[order.length * words];
+
+            int top = 0;
+            for (Node node : order) {
+                if (node.isLeaf()) {
+                    int row = top * words;
+                    Arrays.fill(bitPool, row, row + words, 0L);
+                    int index = getLeafIndex(node, rangesTree);
+                    if (index != SKIP_LEAF)
+                        bitPool[row + (index >>> 6)] |= 1L << index;
+                    top++;
+                    continue;
                 }
-            } else {
 
-                BitSet bits2 = new BitSet();
-                for (Node child : node.getChildren()) {
-                    addClades(child, bits2, rangesTree);
+                // the rows of the children are on top of the stack, merge them into the first one
+                int childCount = node.getChildCount();
+                int first = top - childCount;
+                int row = first * words;
+                for (int c = first + 1; c < top; c++) {
+                    int childRow = c * words;
+                    for (int w = 0; w < words; w++)
+                        bitPool[row + w] |= bitPool[childRow + w];
                 }
-
-                if (bits2.cardinality()==1 || this.addedForThisTree.contains(bits2)){ //&& node.getHeight()<this.nodeHeights.get(bits2)[this.nodeHeights.get(bits2).length-1]) {
+                top = first + 1;
+
+                int cardinality = 0;
+                for (int w = 0; w < words; w++)
+                    cardinality += Long.bitCount(bitPool[row + w]);
+                if (cardinality == 1)
+                    continue;
+                BitSet bits2 = BitSet.valueOf(Arrays.copyOfRange(bitPool, row, row + words));
+                if (this.addedForThisTree.contains(bits2)){ //&& node.getHeight()<this.nodeHeights.get(bits2)[this.nodeHeights.get(bits2).length-1]) {
 //                    totalNodeHeight.put(bits, (getTotalNodeHeight(bits) + height));
 //                    this.nodeHeights.get(bits2)[this.nodeHeights.get(bits2).length-1] = node.getHeight();
 //                    System.out.println("Warning: clade " + bits2 + " already added for this tree");
@@ -788,10 +1069,6 @@ public class SRangesAndSACladeSetComparator extends Runnable {
                     addNodeHeight(bits2, node.getHeight());
                     this.addedForThisTree.add(bits2);
                 }
-
-                if (bits != null) {
-                    bits.or(bits2);
-                }
             }
         }
 
@@ -803,9 +1080,7 @@ public class SRangesAndSACladeSetComparator extends Runnable {
 
         public double getMaxNodeHeight(int i) {
             BitSet bits = get(i);
-            double[] d = nodeHeights.get(bits);
-            Arrays.sort(d);
-            return d[d.length-1];
+            return nodeHeights.get(bits).getMax();
         }
 
         double getTotalNodeHeight(BitSet bits) {
@@ -817,15 +1092,7 @@ public class SRangesAndSACladeSetComparator extends Runnable {
 
         private void addNodeHeight(BitSet bits, double height) {
             totalNodeHeight.put(bits, (getTotalNodeHeight(bits) + height));
-            if (!nodeHeights.containsKey(bits)) {
-                nodeHeights.put(bits, new double[]{height+offset});
-            } else {
-                double [] heights = nodeHeights.get(bits);
-                double [] newHeights = new double[heights.length + 1];
-                System.arraycopy(heights, 0, newHeights, 0, heights.length);
-                newHeights[heights.length] = height+offset;
-                nodeHeights.put(bits, newHeights);
-            }
+            nodeHeights.computeIfAbsent(bits, k -> new HeightAccumulator()).add(height+offset);
         }
 
         // Generifying found that this code was buggy. Luckily it is not used anymore.
@@ -927,13 +1194,20 @@ public class SRangesAndSACladeSetComparator extends Runnable {
         TaxonSet taxonSet = null;
         Set<String> taxonNames = null;
         Map<BitSet, Double> totalNodeHeight = new HashMap<>();
-        Map<BitSet, double[]> nodeHeights = new HashMap<>();
+        Map<BitSet, HeightAccumulator> nodeHeights = new HashMap<>();
 
         Set<BitSet> addedForThisTree = new HashSet<>();
         int totalTrees = 0;
+        // added to the heights of the tree being added, e.g. the offset of an SA tree
+        double offset = 0.;
+
+        // leaf ID -> bit index, built once from the taxon set
+        static final int SKIP_LEAF = -2;
+        HashMap<String, Integer> leafIndex = null;
+        int bitCount = 0;
+        long[] bitPool = new long[0];
     }
 
-    double offset = 0.;
     public static void main(String[] args) throws Exception {
         new Application(new SRangesAndSACladeSetComparator(), "Clade Set Comparator", args);
 
@@ -44,120 +44,173 @@ import static sr.util.Tools.removeLastSubstring;
  */
 
 public class SpeciationAnalyser extends TreeAnnotator {
-    private static class SpeciationAnalyserOptions extends TreeAnnotator {
+    static class SpeciationAnalyserOptions extends TreeAnnotator {
         File inTransmissionTreeFile;
         File outFile;
+        // speciation times table, next to the input file as name_speciationTimes.txt if not set
+        File speciationTimesFile;
         int burnIn;
+        SpeciationEventWriter.Format format = SpeciationEventWriter.Format.DENSE;
+        boolean indexedHosts = true;
 
         @Override
         public String toString() {
             return "Active options:\n" +
                     "Input transmission tree file: " + inTransmissionTreeFile + "\n" +
                     "Output file name: " + outFile + "\n" +
-                    "Burn in: " + burnIn + "\n";
+                    (speciationTimesFile == null ? "" : "Speciation times file: " + speciationTimesFile + "\n") +
+                    "Burn in: " + burnIn + "\n" +
+                    "Output format: " + format.name().toLowerCase() + "\n" +
+                    "Host lookup: " + (indexedHosts ? "indexed" : "legacy string walk") + "\n";
         }
     }
 
+    // number of trees analysed after burn-in
+    private int treeCount = 0;
+
     public SpeciationAnalyser(SpeciationAnalyser.SpeciationAnalyserOptions options) throws IOException {
+        this(options, true);
+    }
+
+    /**
+     * @param verbose whether to print the options and a final message, off when several
+     *                files are analysed at once, see SpeciationAnalyserBatch
+     */
+    SpeciationAnalyser(SpeciationAnalyser.SpeciationAnalyserOptions options, boolean verbose) throws IOException {
         // Display options:
-        System.out.println(options + "\n");
-
-        // Initialise reader
-        TreeSet treeSet = new MemoryFriendlyTreeSet(options.inTransmissionTreeFile.toString(), options.burnIn);
-        PrintStream ps = new PrintStream(options.outFile);
-
-        String outDir = options.inTransmissionTreeFile.getParent();
-        String logFile = options.inTransmissionTreeFile.getName();
-        int pos = logFile.lastIndexOf(".");
-        String justName = pos >= 0 ? logFile.substring(0, pos) : logFile;
-        File infectionTimesOut = new File(outDir, justName+"_speciationTimes.txt");
-
-        PrintStream psInfectionTimes = new PrintStream(infectionTimesOut);
-
-        boolean first = true;
-        List<String> hostsList = null;
-        List<Integer> skipIDs = new ArrayList<>();
-        treeSet.reset();
-        while (treeSet.hasNext()) {
-            Tree tree = treeSet.next();
+        if (verbose)
+            System.out.println(options + "\n");
+
+        boolean dense = options.format == SpeciationEventWriter.Format.DENSE;
+        long sampleNr = 0;
+
+        File infectionTimesOut = options.speciationTimesFile;
+        if (infectionTimesOut == null) {
+            String outDir = options.inTransmissionTreeFile.getParent();
+            String logFile = options.inTransmissionTreeFile.getName();
+            int pos = logFile.lastIndexOf(".");
+            String justName = pos >= 0 ? logFile.substring(0, pos) : logFile;
+            infectionTimesOut = new File(outDir, justName+"_speciationTimes.txt");
+        }
+
+        // all files are closed also when a tree fails, a batch run goes on with the next file
+        try (MemoryFriendlyTreeSet treeSet = new MemoryFriendlyTreeSet(options.inTransmissionTreeFile.toString(), options.burnIn);
+             PrintStream ps = dense ? new PrintStream(options.outFile) : null;
+             PrintStream psInfectionTimes = new PrintStream(infectionTimesOut)) {
+            treeSet.reset();
+            Tree tree = treeSet.hasNext() ? treeSet.next() : null;
+            if (tree == null) {
+                if (verbose)
+                    System.out.println("\nDone!");
+                return;
+            }
+
+            // the header comes from the hosts of the first tree
             Set<String> hosts = new HashSet<String>();
-            if (first) {
-                hosts.add("unsampled");
-                for (int i=0; i<tree.getLeafNodeCount(); i++) {
-                    String hostName = removeLastSubstring("_", tree.getNode(i).getID());
-                    hosts.add(hostName);
-                }
-                hostsList = new ArrayList<>(hosts);
-                for (int i = 0; i < hostsList.size(); i++) {
-                    if (i == hostsList.size() - 1 && !Objects.equals(hostsList.get(i), "unsampled"))
-                        psInfectionTimes.print(hostsList.get(i));
-                    else if(!Objects.equals(hostsList.get(i), "unsampled"))
-                        psInfectionTimes.print(hostsList.get(i) +"\t");
-
-                    for (int j = 0; j < hostsList.size(); j++) {
-                        if (i==j || Objects.equals(hostsList.get(j), "unsampled")){
-                            skipIDs.add(i * hostsList.size() + j);
-                            continue;
-                        }
-                        if (i == hostsList.size() - 1 && j == hostsList.size() - 2)
-                            ps.print(hostsList.get(i) + "_" + hostsList.get(j));
-                        else
-                            ps.print(hostsList.get(i) + "_" + hostsList.get(j) + "\t");
+            hosts.add("unsampled");
+            for (int i=0; i<tree.getLeafNodeCount(); i++) {
+                String hostName = removeLastSubstring("_", tree.getNode(i).getID());
+                hosts.add(hostName);
+            }
+            List<String> hostsList = new ArrayList<>(hosts);
+            boolean[] skip = new boolean[hostsList.size() * hostsList.size()];
+            for (int i = 0; i < hostsList.size(); i++) {
+                if (i == hostsList.size() - 1 && !Objects.equals(hostsList.get(i), "unsampled"))
+                    psInfectionTimes.print(hostsList.get(i));
+                else if(!Objects.equals(hostsList.get(i), "unsampled"))
+                    psInfectionTimes.print(hostsList.get(i) +"\t");
+
+                for (int j = 0; j < hostsList.size(); j++) {
+                    if (i==j || Objects.equals(hostsList.get(j), "unsampled")){
+                        skip[i * hostsList.size() + j] = true;
+                        continue;
                     }
+                    if (!dense)
+                        continue;
+                    if (i == hostsList.size() - 1 && j == hostsList.size() - 2)
+                        ps.print(hostsList.get(i) + "_" + hostsList.get(j));
+                    else
+                        ps.print(hostsList.get(i) + "_" + hostsList.get(j) + "\t");
                 }
-                ps.print("\n");
-                psInfectionTimes.print("\n");
             }
+            if (dense)
+                ps.print("\n");
+            psInfectionTimes.print("\n");
 
-            first = false;
-            Integer[] speciations = new Integer[hostsList.size() * hostsList.size()];
-            Arrays.fill(speciations, 0);
+            List<String> hostsListNoUnsampled = new ArrayList<>(hostsList);
+            hostsListNoUnsampled.remove("unsampled");
+            HostTreeIndex hostIndex = options.indexedHosts ? new HostTreeIndex(hostsList, hostsListNoUnsampled) : null;
 
-            Double[] speciationTimes = new Double[hostsList.size()-1];
-            Arrays.fill(speciationTimes, 0.0);
+            try (SpeciationEventWriter eventWriter = dense ? null
+                    : new SpeciationEventWriter(options.outFile, options.format, hostsList, "transmissions")) {
+                while (tree != null) {
+                    treeCount++;
+                    int[] speciations = new int[hostsList.size() * hostsList.size()];
+                    double[] speciationTimes = new double[hostsList.size()-1];
 
-            if(!tree.getRoot().metaDataString.contains("host")){
-                addHostMetadata(tree.getRoot());
-            }
+                    if(!tree.getRoot().metaDataString.contains("host")){
+                        addHostMetadata(tree.getRoot());
+                    }
 
-            List<String> hostsListNoUnsampled = new ArrayList<>(hostsList);
-            hostsListNoUnsampled.remove("unsampled");
+                    if (hostIndex != null) {
+                        // host labels are parsed once per node, the walks compare host IDs
+                        hostIndex.index(tree);
+                        hostIndex.fillTransmissions(speciations);
+                        hostIndex.fillSpeciationTimes(speciationTimes);
+                    } else {
+                        for (Node leaf : tree.getExternalNodes()) {
+                            fillTransmissions(leaf, speciations, hostsList);
+                            fillInfectionTimes(leaf, speciationTimes, hostsListNoUnsampled);
+                        }
+                    }
 
+                    if (dense) {
+                        for (int i = 0; i < hostsList.size() * hostsList.size(); i++) {
+                            if (skip[i])
+                                continue;
+                            if (i == hostsList.size() * hostsList.size() - 2) {
+                                ps.print(speciations[i]);
+                            } else {
+                                ps.print(speciations[i] + "\t");
+                            }
+                        }
+                        ps.print("\n");
+                    } else {
+                        eventWriter.startSample(sampleNr++);
+                        for (int i = 0; i < hostsList.size() * hostsList.size(); i++) {
+                            if (speciations[i] != 0 && !skip[i])
+                                eventWriter.addEvent(i / hostsList.size(), i % hostsList.size(), speciations[i]);
+                        }
+                        eventWriter.endSample();
+                    }
 
-            for (Node leaf : tree.getExternalNodes()){
-                fillTransmissions(leaf, speciations, hostsList);
-                if(hostsListNoUnsampled.size()==0)
-                    System.out.print("");
-                fillInfectionTimes(leaf, speciationTimes, hostsListNoUnsampled);
-            }
-            for (int i = 0; i < hostsList.size() * hostsList.size(); i++) {
-                if (skipIDs.contains(i))
-                    continue;
-                if (i == hostsList.size() * hostsList.size() - 2) {
-                    ps.print(speciations[i]);
-                } else {
-                    ps.print(speciations[i] + "\t");
-                }
-            }
+                    for (int i=0; i<hostsListNoUnsampled.size();i++){
+                        if(i == hostsListNoUnsampled.size()-1){
+                            psInfectionTimes.print(speciationTimes[i]);
+                        } else {
+                            psInfectionTimes.print(speciationTimes[i]+"\t");
+                        }
+                    }
 
-            for (int i=0; i<hostsListNoUnsampled.size();i++){
-                if(i == hostsListNoUnsampled.size()-1){
-                    psInfectionTimes.print(speciationTimes[i]);
-                } else {
-                    psInfectionTimes.print(speciationTimes[i]+"\t");
+                    psInfectionTimes.print("\n");
+                    tree = treeSet.hasNext() ? treeSet.next() : null;
                 }
             }
-
-            ps.print("\n");
-            psInfectionTimes.print("\n");
         }
-        
-        ps.close();
-        psInfectionTimes.close();
-        System.out.println("\nDone!");
+        if (verbose)
+            System.out.println("\nDone!");
+    }
+
+    int getTreeCount() {
+        return treeCount;
     }
 
-    private void fillTransmissions(Node leaf, Integer[] transmissions,
+    /**
+     * Walks up from the leaf while the host is unsampled or the leaf's own and records the
+     * number of transmissions from the donor host. Host labels are split at every step;
+     * HostTreeIndex gives the same result from int host IDs.
+     */
+    public static void fillTransmissions(Node leaf, int[] transmissions,
                                    List<String> hostsList){
         String recipient= leaf.getMetaData("host").toString().split("\\.")[0];
         Node child = leaf;
@@ -185,7 +238,11 @@ public class SpeciationAnalyser extends TreeAnnotator {
         idx = idx * hostsList.size() + hostsList.indexOf(recipient);
         transmissions[idx] = nTransmissions;
     }
-    private void fillInfectionTimes(Node leaf, Double[] infectionTimes,
+    /**
+     * Records the time at which the leaf's host was infected: the height of the first
+     * ancestor that is not a sampled-ancestor node and is not entered from the donor side.
+     */
+    public static void fillInfectionTimes(Node leaf, double[] infectionTimes,
                                    List<String> hostsListNoUnsampled) {
         String recipient= leaf.getMetaData("host").toString().split("\\.")[0];
         Node child = leaf;
@@ -385,6 +442,12 @@ public class SpeciationAnalyser extends TreeAnnotator {
             + "Option                   Description\n"
             + "--------------------------------------------------------------\n"
             + "-help                    Display usage info.\n"
+            + "-format dense|sparse|binary\n"
+            + "                         Transmission output format (default dense). Sparse and binary\n"
+            + "                         only store observed events, see SpeciationEventReader.\n"
+            + "-legacyWalk              Look up hosts by splitting metadata strings on every step\n"
+            + "                         of the walk to the root, as in earlier versions. Output is\n"
+            + "                         the same, only slower.\n"
             + "\n"
             + "If no output file is specified, output is written to a file\n"
             + "named 'summary.tree'.";
@@ -461,6 +524,23 @@ public class SpeciationAnalyser extends TreeAnnotator {
                     i += 1;
                     break;
 
+                case "-format":
+                    if (args.length<=i+1) {
+                        printUsageAndError("-format must be followed by dense, sparse or binary.");
+                    }
+
+                    try {
+                        options.format = SpeciationEventWriter.Format.parse(args[i + 1]);
+                    } catch (IllegalArgumentException e) {
+                        printUsageAndError(e.getMessage());
+                    }
+
+                    i += 1;
+                    break;
+
+                case "-legacyWalk":
+                    options.indexedHosts = false;
+                    break;
 
                 default:
                     printUsageAndError("Unrecognised command line option '" + args[i] + "'.");
@@ -0,0 +1,277 @@
+package sr.util.loggers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs SpeciationAnalyser over many tree log files without a GUI, e.g. over the replicate
+ * logs of a simulation study on a headless server. Files are given as paths, glob patterns
+ * or list files and are analysed concurrently on a fixed number of threads, each streamed
+ * through MemoryFriendlyTreeSet as in a single run. A line is printed as each file finishes,
+ * and a timing summary once all are done.
+ *
+ * The transmission table of a file is written next to it as name_transmissions.txt and the
+ * speciation times as name_speciationTimes.txt, or both to the output directory.
+ */
+public class SpeciationAnalyserBatch {
+
+    private static class Result {
+        final File file;
+        int trees;
+        double seconds;
+        String error;
+
+        Result(File file) {
+            this.file = file;
+        }
+    }
+
+    private final List<File> files;
+    private final int threads;
+    private final File outDir;
+    private final int burnIn;
+    private final SpeciationEventWriter.Format format;
+    private final boolean indexedHosts;
+
+    SpeciationAnalyserBatch(List<File> files, int threads, File outDir, int burnIn,
+                            SpeciationEventWriter.Format format, boolean indexedHosts) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Number of threads must be positive, not " + threads);
+        this.files = files;
+        this.threads = threads;
+        this.outDir = outDir;
+        this.burnIn = burnIn;
+        this.format = format;
+        this.indexedHosts = indexedHosts;
+    }
+
+    /**
+     * @return true if all files were analysed without error
+     */
+    boolean run() throws InterruptedException {
+        long start = System.nanoTime();
+        System.out.println("Analysing " + files.size() + " tree files on " + threads + " threads.\n");
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AtomicInteger finished = new AtomicInteger();
+        List<Future<Result>> futures = new ArrayList<>();
+        for (File file : files)
+            futures.add(pool.submit(() -> analyse(file, finished)));
+        pool.shutdown();
+
+        List<Result> results = new ArrayList<>();
+        for (Future<Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                // analyse() reports its own failures, this is a bug
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        printSummary(results, (System.nanoTime() - start) / 1e9);
+
+        for (Result result : results)
+            if (result.error != null)
+                return false;
+        return true;
+    }
+
+    private Result analyse(File file, AtomicInteger finished) {
+        Result result = new Result(file);
+        long start = System.nanoTime();
+        try {
+            SpeciationAnalyser.SpeciationAnalyserOptions options = new SpeciationAnalyser.SpeciationAnalyserOptions();
+            options.inTransmissionTreeFile = file;
+            options.outFile = outputFile(file, "_transmissions.txt");
+            options.speciationTimesFile = outputFile(file, "_speciationTimes.txt");
+            options.burnIn = burnIn;
+            options.format = format;
+            options.indexedHosts = indexedHosts;
+            result.trees = new SpeciationAnalyser(options, false).getTreeCount();
+        } catch (Exception e) {
+            result.error = e.getMessage() == null ? e.toString() : e.getMessage();
+        }
+        result.seconds = (System.nanoTime() - start) / 1e9;
+
+        String status = result.error == null
+                ? String.format(Locale.US, "%d trees in %.1f s", result.trees, result.seconds)
+                : "failed: " + result.error;
+        synchronized (System.out) {
+            System.out.println("[" + finished.incrementAndGet() + "/" + files.size() + "] " + file + ": " + status);
+        }
+        return result;
+    }
+
+    private File outputFile(File file, String suffix) {
+        String name = file.getName();
+        int pos = name.lastIndexOf(".");
+        String justName = pos >= 0 ? name.substring(0, pos) : name;
+        File dir = outDir != null ? outDir : file.getAbsoluteFile().getParentFile();
+        return new File(dir, justName + suffix);
+    }
+
+    private void printSummary(List<Result> results, double wallSeconds) {
+        int trees = 0, failed = 0;
+        double seconds = 0;
+        Result slowest = null;
+        for (Result result : results) {
+            if (result.error != null) {
+                failed++;
+                continue;
+            }
+            trees += result.trees;
+            seconds += result.seconds;
+            if (slowest == null || result.seconds > slowest.seconds)
+                slowest = result;
+        }
+
+        System.out.println("\nSummary");
+        System.out.println("--------------------------------------------------------------");
+        System.out.println("Files analysed:          " + (results.size() - failed) + " of " + results.size());
+        System.out.println("Trees analysed:          " + trees);
+        System.out.println(String.format(Locale.US, "Wall time:               %.1f s", wallSeconds));
+        System.out.println(String.format(Locale.US, "Summed time per file:    %.1f s", seconds));
+        if (slowest != null)
+            System.out.println(String.format(Locale.US, "Slowest file:            %s (%.1f s)", slowest.file, slowest.seconds));
+        if (wallSeconds > 0 && trees > 0)
+            System.out.println(String.format(Locale.US, "Throughput:              %.1f trees/s", trees / wallSeconds));
+        if (failed > 0) {
+            System.out.println("\nFailed files:");
+            for (Result result : results)
+                if (result.error != null)
+                    System.out.println("  " + result.file + ": " + result.error);
+        }
+    }
+
+    /**
+     * Expands a command line argument into files: a glob pattern such as logs/run*.trees,
+     * a list file given as @list.txt with one path per line, or a plain path.
+     */
+    static List<File> expand(String arg) throws IOException {
+        List<File> files = new ArrayList<>();
+        if (arg.startsWith("@")) {
+            for (String line : Files.readAllLines(Paths.get(arg.substring(1)))) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                    files.addAll(expand(line));
+            }
+            return files;
+        }
+
+        int firstGlobChar = -1;
+        for (int i = 0; i < arg.length() && firstGlobChar < 0; i++)
+            if ("*?[{".indexOf(arg.charAt(i)) >= 0)
+                firstGlobChar = i;
+        if (firstGlobChar < 0) {
+            files.add(new File(arg));
+            return files;
+        }
+
+        int separator = arg.lastIndexOf(File.separatorChar, firstGlobChar);
+        Path base = Paths.get(separator < 0 ? "." : arg.substring(0, separator + 1));
+        String pattern = separator < 0 ? base.resolve(arg).toString() : arg;
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        try (Stream<Path> paths = Files.walk(base)) {
+            files.addAll(paths.filter(path -> Files.isRegularFile(path) && matcher.matches(path))
+                    .sorted()
+                    .map(Path::toFile)
+                    .collect(Collectors.toList()));
+        }
+        if (files.isEmpty())
+            throw new IOException("No files match " + arg);
+        return files;
+    }
+
+    public static String helpMessage = "Speciation analyser batch - runs the speciation analyser over many tree files without a GUI.\n"
+            + "\n"
+            + "Usage: appstore SpeciationAnalyserBatch [-help] | [options] file|glob|@list ...\n"
+            + "\n"
+            + "Option                   Description\n"
+            + "--------------------------------------------------------------\n"
+            + "-help                    Display usage info.\n"
+            + "-threads n               Number of files analysed at once (default: number of cores).\n"
+            + "-burnIn n                Burn-in percentage applied to every file (default 0).\n"
+            + "-format dense|sparse|binary\n"
+            + "                         Transmission output format (default dense).\n"
+            + "-outDir dir              Directory for the transmission and speciation time tables\n"
+            + "                         (default: next to each tree file).\n"
+            + "-legacyWalk              Look up hosts by splitting metadata strings, as in earlier\n"
+            + "                         versions.\n"
+            + "\n"
+            + "Glob patterns should be quoted so that the shell does not expand them. A list\n"
+            + "file, given as @file, holds one path or glob per line.";
+
+    private static void printUsageAndError(String errMsg) {
+        System.err.println(errMsg);
+        System.err.println(helpMessage);
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int burnIn = 0;
+        File outDir = null;
+        SpeciationEventWriter.Format format = SpeciationEventWriter.Format.DENSE;
+        boolean indexedHosts = true;
+
+        int i = 0;
+        while (i < args.length && args[i].startsWith("-")) {
+            String option = args[i];
+            if (!option.equals("-help") && !option.equals("-legacyWalk") && i + 1 >= args.length)
+                printUsageAndError(option + " must be followed by a value.");
+            try {
+                switch (option) {
+                    case "-help":
+                        System.out.println(helpMessage);
+                        return;
+                    case "-threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-burnIn":
+                        burnIn = Integer.parseInt(args[++i]);
+                        break;
+                    case "-format":
+                        format = SpeciationEventWriter.Format.parse(args[++i]);
+                        break;
+                    case "-outDir":
+                        outDir = new File(args[++i]);
+                        break;
+                    case "-legacyWalk":
+                        indexedHosts = false;
+                        break;
+                    default:
+                        printUsageAndError("Unrecognised command line option '" + option + "'.");
+                }
+            } catch (IllegalArgumentException e) {
+                printUsageAndError("Error parsing " + option + ": " + e.getMessage());
+            }
+            i++;
+        }
+        if (i >= args.length)
+            printUsageAndError("No tree files given.");
+        if (outDir != null && !outDir.isDirectory() && !outDir.mkdirs())
+            printUsageAndError("Cannot create output directory " + outDir);
+
+        List<File> files = new ArrayList<>();
+        for (; i < args.length; i++)
+            files.addAll(expand(args[i]));
+
+        boolean success = new SpeciationAnalyserBatch(files, threads, outDir, burnIn, format, indexedHosts).run();
+        System.exit(success ? 0 : 1);
+    }
+}
@@ -0,0 +1,291 @@
+package sr.util.loggers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams through speciation event files written by {@link SpeciationEventWriter}
+ * (sparse text or binary, detected from the file header) one sample at a time.
+ *
+ * The main method reconstructs posterior speciation probabilities, i.e. the fraction of
+ * samples in which each donor>recipient event is observed, together with the mean of
+ * each event value over the samples in which the event occurs.
+ */
+public class SpeciationEventReader {
+
+    /**
+     * Receives the events of one sample. The arrays are reused between samples and only the
+     * first eventCount entries are valid; values[k] holds the k-th value column.
+     */
+    public interface SampleHandler {
+        void handleSample(long sample, int eventCount, int[] donors, int[] recipients, double[][] values);
+    }
+
+    private final File file;
+    private List<String> names;
+    private List<String> valueNames;
+
+    public SpeciationEventReader(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return names that donor and recipient indices refer to, available once read has started
+     */
+    public List<String> getNames() {
+        return names;
+    }
+
+    public List<String> getValueNames() {
+        return valueNames;
+    }
+
+    /**
+     * Reads the whole file, passing each sample to the handler.
+     *
+     * @return number of samples read
+     */
+    public long read(SampleHandler handler) throws IOException {
+        if (isBinary())
+            return readBinary(handler);
+        return readSparse(handler);
+    }
+
+    private boolean isBinary() throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == SpeciationEventWriter.MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private long readBinary(SampleHandler handler) throws IOException {
+        long samples = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            in.readInt();
+            int version = in.readInt();
+            if (version != SpeciationEventWriter.VERSION)
+                throw new IOException("Unsupported speciation event file version " + version + " in " + file);
+            names = new ArrayList<>();
+            int nameCount = in.readInt();
+            for (int i = 0; i < nameCount; i++)
+                names.add(in.readUTF());
+            valueNames = new ArrayList<>();
+            int valueCount = in.readInt();
+            for (int i = 0; i < valueCount; i++)
+                valueNames.add(in.readUTF());
+
+            int[] donors = new int[16];
+            int[] recipients = new int[16];
+            double[][] values = new double[valueCount][16];
+            while (true) {
+                long sample;
+                try {
+                    sample = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                int n = in.readInt();
+                if (n > donors.length) {
+                    donors = new int[n];
+                    recipients = new int[n];
+                    values = new double[valueCount][n];
+                }
+                for (int i = 0; i < n; i++)
+                    donors[i] = in.readInt();
+                for (int i = 0; i < n; i++)
+                    recipients[i] = in.readInt();
+                for (int k = 0; k < valueCount; k++)
+                    for (int i = 0; i < n; i++)
+                        values[k][i] = in.readDouble();
+                handler.handleSample(sample, n, donors, recipients, values);
+                samples++;
+            }
+        }
+        return samples;
+    }
+
+    private long readSparse(SampleHandler handler) throws IOException {
+        long samples = 0;
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            names = new ArrayList<>();
+            valueNames = new ArrayList<>();
+            while ((line = in.readLine()) != null && line.startsWith("#")) {
+                String[] fields = line.split("\t");
+                if (fields[0].equals(SpeciationEventWriter.NAMES_HEADER))
+                    names.addAll(Arrays.asList(fields).subList(1, fields.length));
+                else if (fields[0].equals(SpeciationEventWriter.VALUES_HEADER))
+                    valueNames.addAll(Arrays.asList(fields).subList(1, fields.length));
+            }
+            // the line left over is the column header
+            int valueCount = valueNames.size();
+            int[] donors = new int[16];
+            int[] recipients = new int[16];
+            double[][] values = new double[valueCount][16];
+            int n = 0;
+            long current = -1;
+            boolean inSample = false;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+                String[] fields = line.split("\t");
+                long sample = Long.parseLong(fields[0]);
+                if (inSample && sample != current) {
+                    handler.handleSample(current, n, donors, recipients, values);
+                    samples++;
+                    n = 0;
+                }
+                current = sample;
+                inSample = true;
+                if (fields.length == 1)
+                    continue;
+                if (n == donors.length) {
+                    donors = Arrays.copyOf(donors, 2 * n);
+                    recipients = Arrays.copyOf(recipients, 2 * n);
+                    for (int k = 0; k < valueCount; k++)
+                        values[k] = Arrays.copyOf(values[k], 2 * n);
+                }
+                donors[n] = Integer.parseInt(fields[1]);
+                recipients[n] = Integer.parseInt(fields[2]);
+                for (int k = 0; k < valueCount; k++)
+                    values[k][n] = Double.parseDouble(fields[3 + k]);
+                n++;
+            }
+            if (inSample) {
+                handler.handleSample(current, n, donors, recipients, values);
+                samples++;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Accumulates posterior event probabilities and mean event values.
+     */
+    public static class PosteriorSummary implements SampleHandler {
+        final long burnin;
+        long seen = 0, used = 0;
+        final Map<Long, long[]> counts = new HashMap<>();
+        final Map<Long, double[]> sums = new HashMap<>();
+
+        /**
+         * @param burnin number of leading samples to ignore
+         */
+        public PosteriorSummary(long burnin) {
+            this.burnin = burnin;
+        }
+
+        @Override
+        public void handleSample(long sample, int eventCount, int[] donors, int[] recipients, double[][] values) {
+            if (seen++ < burnin)
+                return;
+            used++;
+            for (int i = 0; i < eventCount; i++) {
+                long key = ((long) donors[i] << 32) | (recipients[i] & 0xffffffffL);
+                long[] count = counts.computeIfAbsent(key, k -> new long[1]);
+                double[] sum = sums.computeIfAbsent(key, k -> new double[values.length]);
+                count[0]++;
+                for (int k = 0; k < values.length; k++)
+                    sum[k] += values[k][i];
+            }
+        }
+
+        public long getSampleCount() {
+            return used;
+        }
+
+        /**
+         * @return posterior probability of the donor>recipient event
+         */
+        public double getProbability(int donor, int recipient) {
+            long[] count = counts.get(((long) donor << 32) | (recipient & 0xffffffffL));
+            return count == null || used == 0 ? 0.0 : (double) count[0] / used;
+        }
+
+        /**
+         * Prints one line per observed event: donor, recipient, posterior probability and mean values.
+         */
+        public void print(PrintStream out, List<String> names, List<String> valueNames, String dir) {
+            StringBuilder header = new StringBuilder("event\tprobability");
+            for (String v : valueNames)
+                header.append("\tmean_").append(v);
+            out.println(header);
+            List<Long> keys = new ArrayList<>(counts.keySet());
+            keys.sort(null);
+            for (long key : keys) {
+                int donor = (int) (key >> 32);
+                int recipient = (int) key;
+                long count = counts.get(key)[0];
+                double[] sum = sums.get(key);
+                StringBuilder sb = new StringBuilder();
+                sb.append(names.get(donor)).append(dir).append(names.get(recipient));
+                sb.append('\t').append((double) count / used);
+                for (double s : sum)
+                    sb.append('\t').append(s / count);
+                out.println(sb);
+            }
+        }
+    }
+
+    public static String helpMessage = "Speciation event reader - summarises sparse or binary speciation event files.\n"
+            + "\n"
+            + "Usage: appstore SpeciationEventReader [-help] | [-burnin samples] [-dir string] eventFile [outputFile]\n"
+            + "\n"
+            + "Option                   Description\n"
+            + "--------------------------------------------------------------\n"
+            + "-help                    Display usage info.\n"
+            + "-burnin n                Number of leading samples to discard (default 0).\n"
+            + "-dir s                   String separating donor and recipient names (default '>').\n"
+            + "\n"
+            + "If no output file is specified, the summary is written to standard output.";
+
+    public static void main(String[] args) throws IOException {
+        long burnin = 0;
+        String dir = ">";
+        int i = 0;
+        while (i < args.length && args[i].startsWith("-")) {
+            switch (args[i]) {
+                case "-help":
+                    System.out.println(helpMessage);
+                    return;
+                case "-burnin":
+                    burnin = Long.parseLong(args[++i]);
+                    break;
+                case "-dir":
+                    dir = args[++i];
+                    break;
+                default:
+                    System.err.println("Unrecognised command line option '" + args[i] + "'.");
+                    System.err.println(helpMessage);
+                    System.exit(1);
+            }
+            i++;
+        }
+        if (i >= args.length) {
+            System.err.println(helpMessage);
+            System.exit(1);
+        }
+
+        SpeciationEventReader reader = new SpeciationEventReader(new File(args[i]));
+        PosteriorSummary summary = new PosteriorSummary(burnin);
+        reader.read(summary);
+
+        PrintStream out = i + 1 < args.length ? new PrintStream(new File(args[i + 1])) : System.out;
+        summary.print(out, reader.getNames(), reader.getValueNames(), dir);
+        if (out != System.out)
+            out.close();
+    }
+}
@@ -0,0 +1,181 @@
+package sr.util.loggers;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes speciation (or transmission) events as sparse records instead of a dense
+ * names x names matrix per sample. Only the events observed in a sample are written,
+ * so the output grows with the number of events rather than quadratically with the
+ * number of ranges.
+ *
+ * Two formats are supported:
+ * SPARSE - tab-separated triplets "sample donor recipient value..." with donor and
+ * recipient given as indices into the name table written in the header. A sample
+ * without events is written as a line holding only the sample number.
+ * BINARY - columnar blocks, one per sample: the sample number, the event count and
+ * then the donor column, the recipient column and one column per value.
+ *
+ * Files written by this class are read back by {@link SpeciationEventReader}.
+ */
+public class SpeciationEventWriter implements Closeable {
+
+    public enum Format {
+        DENSE, SPARSE, BINARY;
+
+        public static Format parse(String format) {
+            try {
+                return valueOf(format.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown speciation output format '" + format +
+                        "'. Use one of dense, sparse or binary.");
+            }
+        }
+    }
+
+    /** "SRSE" - marks binary speciation event files **/
+    static final int MAGIC = 0x53525345;
+    static final int VERSION = 1;
+    static final String NAMES_HEADER = "# names";
+    static final String VALUES_HEADER = "# values";
+
+    private final Format format;
+    private final int valueCount;
+    private final PrintStream text;
+    private final DataOutputStream binary;
+
+    private long sample;
+    private int eventCount;
+    private int[] donors = new int[16];
+    private int[] recipients = new int[16];
+    private double[] values;
+
+    /**
+     * @param file       output file
+     * @param format     SPARSE or BINARY
+     * @param names      names that donor and recipient indices refer to
+     * @param valueNames names of the values stored with each event
+     */
+    public SpeciationEventWriter(File file, Format format, List<String> names, String... valueNames) throws IOException {
+        if (format == Format.DENSE)
+            throw new IllegalArgumentException("Dense matrices are written by the loggers themselves, " +
+                    "SpeciationEventWriter only handles sparse and binary output.");
+        this.format = format;
+        this.valueCount = valueNames.length;
+        this.values = new double[16 * valueCount];
+
+        if (format == Format.SPARSE) {
+            text = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)));
+            binary = null;
+            text.println(NAMES_HEADER + "\t" + String.join("\t", names));
+            text.println(VALUES_HEADER + "\t" + String.join("\t", valueNames));
+            text.println("sample\tdonor\trecipient\t" + String.join("\t", valueNames));
+        } else {
+            text = null;
+            binary = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            binary.writeInt(MAGIC);
+            binary.writeInt(VERSION);
+            binary.writeInt(names.size());
+            for (String name : names)
+                binary.writeUTF(name);
+            binary.writeInt(valueCount);
+            for (String name : valueNames)
+                binary.writeUTF(name);
+        }
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Starts collecting the events of a new sample.
+     */
+    public void startSample(long sample) {
+        this.sample = sample;
+        eventCount = 0;
+    }
+
+    /**
+     * Adds an event with a single value to the current sample.
+     */
+    public void addEvent(int donor, int recipient, double value) {
+        ensureCapacity();
+        donors[eventCount] = donor;
+        recipients[eventCount] = recipient;
+        values[eventCount * valueCount] = value;
+        eventCount++;
+    }
+
+    /**
+     * Adds an event to the current sample. The values are copied, so the caller may reuse the array.
+     */
+    public void addEvent(int donor, int recipient, double[] eventValues) {
+        ensureCapacity();
+        donors[eventCount] = donor;
+        recipients[eventCount] = recipient;
+        System.arraycopy(eventValues, 0, values, eventCount * valueCount, valueCount);
+        eventCount++;
+    }
+
+    /**
+     * @return number of events added to the current sample so far
+     */
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Writes out the events collected since the last call to startSample.
+     */
+    public void endSample() throws IOException {
+        if (format == Format.SPARSE) {
+            if (eventCount == 0) {
+                text.println(sample);
+                return;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < eventCount; i++) {
+                sb.setLength(0);
+                sb.append(sample).append('\t').append(donors[i]).append('\t').append(recipients[i]);
+                for (int k = 0; k < valueCount; k++)
+                    sb.append('\t').append(values[i * valueCount + k]);
+                text.println(sb);
+            }
+        } else {
+            binary.writeLong(sample);
+            binary.writeInt(eventCount);
+            for (int i = 0; i < eventCount; i++)
+                binary.writeInt(donors[i]);
+            for (int i = 0; i < eventCount; i++)
+                binary.writeInt(recipients[i]);
+            for (int k = 0; k < valueCount; k++)
+                for (int i = 0; i < eventCount; i++)
+                    binary.writeDouble(values[i * valueCount + k]);
+        }
+    }
+
+    private void ensureCapacity() {
+        if (eventCount == donors.length) {
+            int capacity = donors.length * 2;
+            donors = Arrays.copyOf(donors, capacity);
+            recipients = Arrays.copyOf(recipients, capacity);
+            values = Arrays.copyOf(values, capacity * valueCount);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (text != null)
+            text.close();
+        if (binary != null)
+            binary.close();
+    }
+}
@@ -30,6 +30,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Vector;
 
 import beast.base.core.Log;
@@ -37,6 +38,7 @@ import beast.base.evolution.alignment.Taxon;
 import beast.base.evolution.alignment.TaxonSet;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
+import sr.util.TreeTraversal;
 
 
 public class TreeFileParser {
@@ -105,23 +107,31 @@ public class TreeFileParser {
         return trees;
     }
 
+    /**
+     * Converts parsed branch lengths to heights. Nodes are visited in pre-order, so the
+     * height of the parent is already set when a node is reached.
+     */
     protected void normalise(Node node, double h) {
-        double len = node.getHeight();
-        node.setHeight(h - len);
-        for (Node child : node.getChildren()) {
-            normalise(child, h - len);
+        for (Node n : TreeTraversal.preOrder(node)) {
+            double parentHeight = n == node ? h : n.getParent().getHeight();
+            n.setHeight(parentHeight - n.getHeight());
         }
-
     }
 
     protected double getMaxHeight(Node node) {
-        if (node.isLeaf()) {
-            return node.getHeight();
-        } else {
-            double h1 = getMaxHeight(node.getLeft());
-            double h2 = getMaxHeight(node.getRight());
-            return node.getHeight() + Math.max(h1, h2);
+        // post-order, each subtree's maximum is pushed once and popped by its parent
+        double[] stack = new double[64];
+        int top = 0;
+        for (Node n : TreeTraversal.postOrder(node)) {
+            double h = Double.NEGATIVE_INFINITY;
+            int childCount = n.getChildCount();
+            for (int i = 0; i < childCount; i++)
+                h = Math.max(h, stack[--top]);
+            if (top == stack.length)
+                stack = Arrays.copyOf(stack, 2 * top);
+            stack[top++] = n.isLeaf() ? n.getHeight() : n.getHeight() + h;
         }
+        return stack[0];
     }
 
     private Node [] parseFile2(String sFile) throws Exception {
@@ -446,6 +446,47 @@ public class OrientationTest {
 		Randomizer.setSeed(Randomizer.nextInt());
 //		Randomizer.setSeed(42);
 
+		assertSingleRangeTopologies(sampleSingleRangeTopologies(false));
+	}
+	
+	@Test
+	public void topologyDistributionLocalOperators() throws Exception{
+
+		Randomizer.setSeed(42);
+
+		assertSingleRangeTopologies(sampleSingleRangeTopologies(true));
+	}
+
+	/**
+	 * Compares the topology frequencies sampled by sampleSingleRangeTopologies with the
+	 * probabilities of the three non-oriented topologies.
+	 */
+	private void assertSingleRangeTopologies(int[][] frequencies) {
+		/*
+		 * There are three possible non-oriented topologies for three samples and one range between top two samples:
+		 *  4-((3,2)1); 5-(3,(2)1); 8-(((3)2)1)
+		 */
+
+		// probabilities calculated by separate python script: https://github.com/jugne/sRanges-material/blob/main/integrate_topologies.py
+		double[] probs = new double[] {0, 0, 0, 0.5390864435975525, 0.08012736035537182, 0, 0, 0.38078619604707575};
+
+		for (int nonOrientedTopologyNr = 0; nonOrientedTopologyNr < 8; nonOrientedTopologyNr++) {
+			int sumTopology = Arrays.stream(frequencies[nonOrientedTopologyNr]).sum();
+			double probTopology = (double) sumTopology / (double) statesLogged;
+			Assert.assertEquals(probs[nonOrientedTopologyNr], probTopology, tolerance);
+		}
+	}
+
+	/**
+	 * Samples the three sample analysis with a range from sample 1 to sample 2 and a single
+	 * fossil range for sample 3, shared by topologyDistribution_3 and
+	 * topologyDistributionLocalOperators.
+	 *
+	 * @param localOperators use SRNarrowExchange and SRSubtreeSlide in place of SRWilsonBalding
+	 * @return frequencies of the oriented topologies logged by OrientedThreeSampleTreeLogger
+	 */
+	private int[][] sampleSingleRangeTopologies(boolean localOperators) throws Exception {
+
 		// state
 
 		TaxonSet taxonSet = new TaxonSet();
@@ -549,9 +590,22 @@ public class OrientationTest {
 		distributions.add(prior);
 		posterior.initByName("distribution", distributions);
 
-		// SRWilsonBalding
-		SRWilsonBalding srWilsonBalding = new SRWilsonBalding();
-		srWilsonBalding.initByName("tree", tree, "weight", "20.0");
+		List<Operator> operators = new ArrayList<>();
+		if (localOperators) {
+			// local topology moves in place of SRWilsonBalding
+			SRNarrowExchange narrowExchange = new SRNarrowExchange();
+			narrowExchange.initByName("tree", tree, "weight", "10.0");
+			operators.add(narrowExchange);
+
+			SRSubtreeSlide subtreeSlide = new SRSubtreeSlide();
+			subtreeSlide.initByName("tree", tree, "weight", "20.0", "size", 1.0);
+			operators.add(subtreeSlide);
+		} else {
+			// SRWilsonBalding
+			SRWilsonBalding srWilsonBalding = new SRWilsonBalding();
+			srWilsonBalding.initByName("tree", tree, "weight", "20.0");
+			operators.add(srWilsonBalding);
+		}
 
 		// LeftRightChildSwap
 		LeftRightChildSwap leftRightChildSwap = new LeftRightChildSwap();
@@ -569,10 +623,6 @@ public class OrientationTest {
 		SAScaleOperator rootScaler = new SAScaleOperator();
 		rootScaler.initByName("rootOnly", "true", "tree", tree, "scaleFactor", "0.9", "weight","1.0");
 
-		Integer chainLength = 5000000;
-		Integer logEvery = 50;
-		int statesLogged = chainLength / logEvery;
-
 		// Set up logger:
 		OrientedThreeSampleTreeLogger treeReport = new OrientedThreeSampleTreeLogger();
 		treeReport.initByName("logEvery", logEvery.toString(),
@@ -583,50 +633,24 @@ public class OrientationTest {
 
 
 		// Set up MCMC:
+		operators.add(leftRightChildSwap);
+		operators.add(LeafToSampledAncestorJump);
+		operators.add(originScaler);
+		operators.add(rootScaler);
+
 		MCMC mcmc = new MCMC();
 		mcmc.initByName("chainLength", chainLength.toString(),
 				"state", state,
 				"distribution", posterior,
-				"operator", srWilsonBalding,
-				"operator", leftRightChildSwap,
-				"operator", LeafToSampledAncestorJump,
-				"operator", originScaler,
-				"operator", rootScaler,
+				"operator", operators,
 				"logger", treeReport);
 
 		// Run MCMC:
 		mcmc.run();
 
-		int[][] frequencies = treeReport.getAnalysis();
-
-		/*
-		 * There are three possible non-oriented topologies for three samples and one range between top two samples:
-		 *  4-((3,2)1); 5-(3,(2)1); 8-(((3)2)1)
-		 */
-
-		// probabilities calculated by separate python script: https://github.com/jugne/sRanges-material/blob/main/integrate_topologies.py
-		double[] probs = new double[] {0, 0, 0, 0.5390864435975525, 0.08012736035537182, 0, 0, 0.38078619604707575};
-
-		for (int nonOrientedTopologyNr = 0; nonOrientedTopologyNr < 8; nonOrientedTopologyNr++) {
-			int sumTopology = Arrays.stream(frequencies[nonOrientedTopologyNr]).sum();
-			double probTopology = (double) sumTopology / (double) statesLogged;
-			System.out.println("_____________________");
-			System.out.println(probs[nonOrientedTopologyNr]);
-			System.out.println("_____________________");
-			System.out.println(probTopology);
-			Assert.assertEquals(probs[nonOrientedTopologyNr], probTopology, tolerance);
-
-//			if (6+nonOrientedTopologyNr == 6) {
-//				for (int j = 0; j < 4; j += 2) {
-//					double frequency = (double) (frequencies[6+nonOrientedTopologyNr][j]
-//							+ frequencies[6+nonOrientedTopologyNr][j + 1]) / (double) sumTopology;
-//					Assert.assertEquals(frequency, orientedFrequency, toleranceOriented);
-//
-//				}
-//			}
-		}
+		return treeReport.getAnalysis();
 	}
-	
+
 	public static class OrientedThreeSampleTreeLogger extends Logger {
 		public Input<Integer> burninInput = new Input<>("burnin",
 				"Number of samples to skip (burn in)", Input.Validate.REQUIRED);
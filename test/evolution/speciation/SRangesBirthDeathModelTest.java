@@ -3,16 +3,21 @@ package evolution.speciation;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.evolution.alignment.Taxon;
 import sr.evolution.tree.SRTree;
+import sr.evolution.tree.SRTreeState;
+import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
 import junit.framework.TestCase;
 import sa.evolution.tree.TreeWOffset;
 
 import org.junit.Test;
+import sr.speciation.SRangesBatchLikelihood;
 import sr.speciation.SRangesBirthDeathModel;
 import sr.evolution.sranges.StratigraphicRange;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * Created by gavryusa on 24/07/17.
@@ -77,4 +82,132 @@ public class SRangesBirthDeathModelTest extends TestCase {
         model.initAndValidate();
         assertEquals(-40.85277951120076, model.calculateLogP(), 1e-14);
     }
+
+    @Test
+    public void testBatchLikelihood() throws Exception {
+
+        String newick = "(((((A:3.4,2_last:0.0):1.0,2_first:0.0):0.7,(B:3.5,(3_last:1.7,3_first:0.0):0.8):1.6):0.55,1_last:0.0):0.85,1_first:0.0):0.5";
+        ArrayList<StratigraphicRange> sranges = new ArrayList<>();
+        for (String name : new String[] {"1", "2", "3"}) {
+            StratigraphicRange sr = new StratigraphicRange();
+            sr.setInputValue("firstOccurrence", new Taxon(name + "_first"));
+            sr.setInputValue("lastOccurrence", new Taxon(name + "_last"));
+            sranges.add(sr);
+        }
+        SRTree tree = new SRTree();
+        tree.setInputValue("stratigraphicRange", sranges);
+        tree.assignFrom(new TreeParser(newick, false));
+
+        RealParameter origin = new RealParameter("7.0");
+        RealParameter birthRate = new RealParameter("1.5");
+        RealParameter deathRate = new RealParameter("0.5");
+        RealParameter samplingRate = new RealParameter("0.1");
+        RealParameter rho = new RealParameter("0.5");
+        SRangesBirthDeathModel model = new SRangesBirthDeathModel();
+        model.initByName("tree", tree, "origin", origin, "birthRate", birthRate, "deathRate", deathRate,
+                "samplingRate", samplingRate, "removalProbability", new RealParameter("0.0"), "rho", rho);
+
+        SRTreeState state = new SRTreeState();
+        tree.exportState(state);
+        double[][] parameters = {
+                {1.5, 0.5, 0.1, 0.5, 7.0},
+                {2.0, 1.0, 0.3, 0.2, 8.0, 0.0},
+                {0.5, 1.0, 0.1, 0.5, 7.0}
+        };
+        SRangesBatchLikelihood batch = new SRangesBatchLikelihood(model, 2);
+        double[][] densities = batch.logDensities(Stream.of(state, state, state), parameters);
+
+        assertEquals(3, densities.length);
+        for (double[] row : densities) {
+            assertEquals(-33.74668640318646, row[0], 1e-12);
+            for (int p = 0; p < parameters.length; p++) {
+                origin.setValue(parameters[p][SRangesBatchLikelihood.ORIGIN]);
+                birthRate.setValue(parameters[p][SRangesBatchLikelihood.LAMBDA]);
+                deathRate.setValue(parameters[p][SRangesBatchLikelihood.MU]);
+                samplingRate.setValue(parameters[p][SRangesBatchLikelihood.PSI]);
+                rho.setValue(parameters[p][SRangesBatchLikelihood.RHO]);
+                assertEquals(model.calculateLogP(), row[p], 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testGradient() throws Exception {
+        for (boolean conditionOnRoot : new boolean[] {false, true})
+            for (boolean conditionOnSampling : new boolean[] {false, true})
+                for (boolean conditionOnRhoSampling : new boolean[] {false, true})
+                    for (String removalProbability : new String[] {"0.0", "0.3"})
+                        checkGradient(conditionOnRoot, conditionOnSampling, conditionOnRhoSampling, removalProbability);
+    }
+
+    private void checkGradient(boolean conditionOnRoot, boolean conditionOnSampling, boolean conditionOnRhoSampling,
+                               String removalProbability) throws Exception {
+        // conditioning on the root needs a root that is not a sampled ancestor
+        String newick = conditionOnRoot
+                ? "(((A:3.4,2_last:0.0):1.0,2_first:0.0):0.7,(B:3.5,(3_last:1.7,3_first:0.0):0.8):1.6)"
+                : "(((((A:3.4,2_last:0.0):1.0,2_first:0.0):0.7,(B:3.5,(3_last:1.7,3_first:0.0):0.8):1.6):0.55,1_last:0.0):0.85,1_first:0.0):0.5";
+        ArrayList<StratigraphicRange> sranges = new ArrayList<>();
+        for (String name : conditionOnRoot ? new String[] {"2", "3"} : new String[] {"1", "2", "3"}) {
+            StratigraphicRange sr = new StratigraphicRange();
+            sr.setInputValue("firstOccurrence", new Taxon(name + "_first"));
+            sr.setInputValue("lastOccurrence", new Taxon(name + "_last"));
+            sranges.add(sr);
+        }
+        SRTree tree = new SRTree();
+        tree.setInputValue("stratigraphicRange", sranges);
+        tree.assignFrom(new TreeParser(newick, false));
+
+        RealParameter[] rates = {new RealParameter("1.5"), new RealParameter("0.5"),
+                new RealParameter("0.1"), new RealParameter("7.0")};
+        SRangesBirthDeathModel model = new SRangesBirthDeathModel();
+        model.initByName("tree", tree, "birthRate", rates[SRangesBirthDeathModel.GRADIENT_BIRTH_RATE],
+                "deathRate", rates[SRangesBirthDeathModel.GRADIENT_DEATH_RATE],
+                "samplingRate", rates[SRangesBirthDeathModel.GRADIENT_SAMPLING_RATE],
+                "origin", rates[SRangesBirthDeathModel.GRADIENT_ORIGIN],
+                "removalProbability", new RealParameter(removalProbability), "rho", new RealParameter("0.5"),
+                "conditionOnSampling", conditionOnSampling, "conditionOnRoot", conditionOnRoot,
+                "conditionOnRhoSampling", conditionOnRhoSampling);
+        String conditions = "conditionOnRoot=" + conditionOnRoot + " conditionOnSampling=" + conditionOnSampling +
+                " conditionOnRhoSampling=" + conditionOnRhoSampling + " r=" + removalProbability + ": ";
+
+        model.calculateLogP();
+        double[] gradient = model.gradient();
+        assertEquals(SRangesBirthDeathModel.GRADIENT_HEIGHTS + tree.getNodeCount(), gradient.length);
+        final double eps = 1e-6;
+
+        for (int k = 0; k < rates.length; k++) {
+            double value = rates[k].getValue();
+            rates[k].setValue(value + eps);
+            double up = model.calculateLogP();
+            rates[k].setValue(value - eps);
+            double down = model.calculateLogP();
+            rates[k].setValue(value);
+            assertEquals(conditions + "parameter " + k, (up - down) / (2 * eps), gradient[k], 1e-6);
+        }
+
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            Node node = tree.getNode(i);
+            // direct ancestors move with their fake parent, leaves sampled at present do not move
+            if (node.isDirectAncestor() || (node.isLeaf() && node.getHeight() < 1e-9))
+                continue;
+            List<Node> moved = new ArrayList<>();
+            moved.add(node);
+            if (node.isFake())
+                moved.add(node.getDirectAncestorChild());
+            double expected = 0.0;
+            for (Node n : moved)
+                expected += gradient[SRangesBirthDeathModel.GRADIENT_HEIGHTS + n.getNr()];
+
+            double height = node.getHeight();
+            for (Node n : moved)
+                n.setHeight(height + eps);
+            double up = model.calculateLogP();
+            for (Node n : moved)
+                n.setHeight(height - eps);
+            double down = model.calculateLogP();
+            for (Node n : moved)
+                n.setHeight(height);
+            assertEquals(conditions + "height of node " + i, (up - down) / (2 * eps), expected, 1e-6);
+        }
+    }
 }
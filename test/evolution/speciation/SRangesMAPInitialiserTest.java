@@ -0,0 +1,103 @@
+package evolution.speciation;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.parameter.RealParameter;
+import junit.framework.TestCase;
+import org.junit.Test;
+import sr.evolution.sranges.StratigraphicRange;
+import sr.evolution.tree.SRTree;
+import sr.speciation.SRangesBirthDeathModel;
+import sr.speciation.SRangesMAPInitialiser;
+import sr.util.RandomSource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that SRangesMAPInitialiser does not lower the density of the model and moves only
+ * speciation times and the listed parameters, within the constraints of the tree.
+ */
+public class SRangesMAPInitialiserTest extends TestCase {
+
+    @Test
+    public void testInitialiser() throws Exception {
+        String newick = "(((((A:3.4,2_last:0.0):1.0,2_first:0.0):0.7,(B:3.5,(3_last:1.7,3_first:0.0):0.8):1.6):0.55,1_last:0.0):0.85,1_first:0.0):0.5";
+        ArrayList<StratigraphicRange> sranges = new ArrayList<>();
+        for (String name : new String[] {"1", "2", "3"}) {
+            StratigraphicRange sr = new StratigraphicRange();
+            sr.setInputValue("firstOccurrence", new Taxon(name + "_first"));
+            sr.setInputValue("lastOccurrence", new Taxon(name + "_last"));
+            sranges.add(sr);
+        }
+        SRTree tree = new SRTree();
+        tree.setInputValue("stratigraphicRange", sranges);
+        tree.assignFrom(new TreeParser(newick, false));
+
+        RealParameter birthRate = new RealParameter("1.5");
+        RealParameter deathRate = new RealParameter("0.5");
+        RealParameter samplingRate = new RealParameter("0.1");
+        RealParameter origin = new RealParameter("7.0");
+        birthRate.initByName("lower", "0.0");
+        deathRate.initByName("lower", "0.0");
+        samplingRate.initByName("lower", "0.0");
+        origin.initByName("lower", "0.0");
+        SRangesBirthDeathModel model = new SRangesBirthDeathModel();
+        model.initByName("tree", tree, "origin", origin, "birthRate", birthRate, "deathRate", deathRate,
+                "samplingRate", samplingRate, "removalProbability", new RealParameter("0.0"),
+                "rho", new RealParameter("0.5"));
+
+        final int n = tree.getNodeCount();
+        double before = model.calculateLogP();
+        double[] heights = new double[n];
+        int[] parents = new int[n];
+        List<List<Integer>> children = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Node node = tree.getNode(i);
+            heights[i] = node.getHeight();
+            parents[i] = node.isRoot() ? -1 : node.getParent().getNr();
+            List<Integer> nrs = new ArrayList<>();
+            for (Node child : node.getChildren())
+                nrs.add(child.getNr());
+            children.add(nrs);
+        }
+        List<List<Integer>> ranges = new ArrayList<>();
+        for (StratigraphicRange range : tree.getSRanges())
+            ranges.add(new ArrayList<>(range.getNodeNrs()));
+
+        SRangesMAPInitialiser initialiser = new SRangesMAPInitialiser();
+        initialiser.initByName("model", model, "tree", tree, "parameter", birthRate, "parameter", deathRate,
+                "parameter", samplingRate, "parameter", origin, "restarts", 3, "iterations", 200,
+                "rng", new RandomSource(1L));
+        initialiser.initStateNodes();
+
+        double after = model.calculateLogP();
+        assertTrue("log-density lowered from " + before + " to " + after, after >= before);
+        assertTrue(after > before);
+
+        for (int i = 0; i < n; i++) {
+            Node node = tree.getNode(i);
+            // topology
+            assertEquals(parents[i], node.isRoot() ? -1 : node.getParent().getNr());
+            List<Integer> nrs = new ArrayList<>();
+            for (Node child : node.getChildren())
+                nrs.add(child.getNr());
+            assertEquals(children.get(i), nrs);
+            // leaves, sampled ancestors and their fake parents keep their heights
+            if (node.isLeaf() || node.isFake())
+                assertEquals("height of node " + i, heights[i], node.getHeight(), 0.0);
+            // speciation times lie between their children and parents
+            if (!node.isLeaf() && !node.isFake()) {
+                for (Node child : node.getChildren())
+                    assertTrue("node " + i + " below its child", node.getHeight() > child.getHeight());
+            }
+            if (!node.isRoot())
+                assertTrue("node " + i + " above its parent", node.getHeight() <= node.getParent().getHeight());
+        }
+        for (int r = 0; r < ranges.size(); r++)
+            assertEquals(ranges.get(r), tree.getSRanges().get(r).getNodeNrs());
+        assertTrue(origin.getValue() > tree.getRoot().getHeight());
+        assertTrue(deathRate.getValue() >= 0.0 && samplingRate.getValue() >= 0.0 && birthRate.getValue() >= 0.0);
+    }
+}
@@ -0,0 +1,255 @@
+package inference;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.operator.ScaleOperator;
+import beast.base.evolution.tree.TraitSet;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Distribution;
+import beast.base.inference.MCMC;
+import beast.base.inference.State;
+import beast.base.inference.distribution.Prior;
+import beast.base.inference.distribution.Uniform;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import evolution.operators.OrientationTest;
+import junit.framework.TestCase;
+import org.junit.Test;
+import sa.evolution.operators.SAScaleOperator;
+import sr.evolution.operators.LeftRightChildSwap;
+import sr.evolution.operators.SRLeafToSampledAncestorJump;
+import sr.evolution.operators.SRWilsonBalding;
+import sr.evolution.sranges.StratigraphicRange;
+import sr.evolution.tree.SRNode;
+import sr.evolution.tree.SRTree;
+import sr.evolution.tree.SRTreeState;
+import sr.inference.CoupledChainStatistics;
+import sr.inference.SRCoupledMCMC;
+import sr.speciation.SRangesBirthDeathModel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that a single chain SRCoupledMCMC samples exactly as MCMC, that a swap exchanges
+ * SR trees together with the node numbers of their ranges, and that the cold chain of a
+ * coupled run samples the topologies of OrientationTest.topologyDistribution_1.
+ */
+public class SRCoupledMCMCTest extends TestCase {
+
+    /**
+     * The three sample analysis of OrientationTest.topologyDistribution_1, for a short run.
+     */
+    private static class Analysis {
+        SRTree tree;
+        RealParameter origin;
+        State state;
+        Distribution posterior;
+        List<Object> operators = new ArrayList<>();
+        int chainLength = 20000;
+
+        Analysis() {
+            Taxon taxon1 = new Taxon("1");
+            Taxon taxon2 = new Taxon("2");
+            Taxon taxon3 = new Taxon("3");
+            TaxonSet taxonSet = new TaxonSet();
+            taxonSet.initByName("taxon", taxon1, "taxon", taxon2, "taxon", taxon3);
+
+            StratigraphicRange range1 = new StratigraphicRange();
+            range1.initByName("firstOccurrence", taxon2, "lastOccurrence", taxon3);
+            StratigraphicRange range2 = new StratigraphicRange();
+            range2.initByName("firstOccurrence", taxon1, "lastOccurrence", taxon1);
+
+            TraitSet trait = new TraitSet();
+            trait.initByName("traitname", "date-backward", "taxa", taxonSet, "value", "1=2,2=1,3=0");
+            tree = new SRTree();
+            tree.initByName("trait", trait, "taxonset", taxonSet, "nodetype", SRNode.class.getName(),
+                    "stratigraphicRange", range1, "stratigraphicRange", range2);
+            tree.setID("tree");
+
+            origin = new RealParameter("4.");
+            origin.initByName("lower", "2.0", "upper", "Infinity");
+            origin.setID("origin");
+            state = new State();
+            state.initByName("stateNode", tree, "stateNode", origin);
+
+            RealParameter removalProbability = new RealParameter("0.9");
+            SRangesBirthDeathModel model = new SRangesBirthDeathModel();
+            model.initByName("origin", origin, "tree", tree, "birthRate", new RealParameter("2.0"),
+                    "deathRate", new RealParameter("1.0"), "samplingRate", new RealParameter("0.5"),
+                    "removalProbability", removalProbability, "rho", new RealParameter("0.5"),
+                    "conditionOnSampling", true);
+            Uniform uniform = new Uniform();
+            uniform.initByName("upper", "10.0", "lower", "0.");
+            Prior originPrior = new Prior();
+            originPrior.initByName("x", origin, "distr", uniform);
+            posterior = new CompoundDistribution();
+            posterior.initByName("distribution", model, "distribution", originPrior);
+
+            SRWilsonBalding wilsonBalding = new SRWilsonBalding();
+            wilsonBalding.initByName("tree", tree, "weight", "20.0");
+            LeftRightChildSwap leftRightChildSwap = new LeftRightChildSwap();
+            leftRightChildSwap.initByName("tree", tree, "weight", "20.0");
+            SRLeafToSampledAncestorJump leafToSampledAncestorJump = new SRLeafToSampledAncestorJump();
+            leafToSampledAncestorJump.initByName("tree", tree, "weight", "20.0", "removalProbability", removalProbability);
+            ScaleOperator originScaler = new ScaleOperator();
+            originScaler.initByName("parameter", origin, "scaleFactor", "0.9", "weight", "3.0");
+            SAScaleOperator rootScaler = new SAScaleOperator();
+            rootScaler.initByName("rootOnly", "true", "tree", tree, "scaleFactor", "0.9", "weight", "1.0");
+            operators.add(wilsonBalding);
+            operators.add(leftRightChildSwap);
+            operators.add(leafToSampledAncestorJump);
+            operators.add(originScaler);
+            operators.add(rootScaler);
+        }
+
+        void run(MCMC mcmc, Object... inputs) throws Exception {
+            List<Object> args = new ArrayList<>();
+            args.add("chainLength");
+            args.add(Integer.toString(chainLength));
+            args.add("preBurnin");
+            args.add("100");
+            args.add("state");
+            args.add(state);
+            args.add("distribution");
+            args.add(posterior);
+            for (Object operator : operators) {
+                args.add("operator");
+                args.add(operator);
+            }
+            for (Object input : inputs)
+                args.add(input);
+            mcmc.initByName(args.toArray());
+            mcmc.run();
+        }
+    }
+
+    @Test
+    public void testSingleChainIsMCMC() throws Exception {
+        Randomizer.setSeed(42);
+        Analysis plain = new Analysis();
+        plain.run(new MCMC());
+
+        Randomizer.setSeed(42);
+        Analysis coupled = new Analysis();
+        coupled.run(new SRCoupledMCMC(), "chains", 1, "swapEvery", 500);
+
+        assertEquals(plain.tree.getRoot().toNewick(), coupled.tree.getRoot().toNewick());
+        assertEquals(plain.origin.getValue(), coupled.origin.getValue(), 0.0);
+        assertEquals(plain.posterior.getCurrentLogP(), coupled.posterior.getCurrentLogP(), 0.0);
+    }
+
+    @Test
+    public void testCoupledChainsSampleTopologies() throws Exception {
+        Randomizer.setSeed(42);
+        Analysis analysis = new Analysis();
+        analysis.chainLength = 2000000;
+        OrientationTest.OrientedThreeSampleTreeLogger treeReport = new OrientationTest.OrientedThreeSampleTreeLogger();
+        treeReport.initByName("logEvery", "50", "burnin", "0", "tree", analysis.tree, "log", analysis.tree,
+                "silent", true);
+        CoupledChainStatistics statistics = new CoupledChainStatistics();
+        SRCoupledMCMC mcmc = new SRCoupledMCMC();
+        analysis.run(mcmc, "chains", 3, "deltaTemperature", 0.2, "swapEvery", 100, "seed", 42L,
+                "statistics", statistics, "logger", treeReport);
+
+        assertSame(statistics, mcmc.getStatistics());
+        assertEquals(3, statistics.getChainCount());
+        for (int i = 0; i < 3; i++)
+            assertTrue("chain " + i + " made no proposals", statistics.getProposalCount(i) > 0);
+        for (int i = 0; i < 2; i++) {
+            assertTrue("no swaps proposed between chains " + i + " and " + (i + 1), statistics.getSwapCount(i) > 0);
+            assertTrue("no swaps accepted between chains " + i + " and " + (i + 1), statistics.getSwapRate(i) > 0.0);
+        }
+
+        // only the cold chain logs, so the frequencies are those of the posterior
+        int[][] frequencies = treeReport.getAnalysis();
+        int logged = 0;
+        for (int[] topology : frequencies)
+            logged += Arrays.stream(topology).sum();
+        // ((3)2,1) and (((3)2)1), as in OrientationTest.topologyDistribution_1
+        double[] probs = {0.6358071491891069, 0.36419285081089314};
+        for (int k = 0; k < probs.length; k++) {
+            double probTopology = (double) Arrays.stream(frequencies[6 + k]).sum() / logged;
+            assertEquals(probs[k], probTopology, 0.02);
+        }
+    }
+
+    private static SRTree srTree(String newick) {
+        ArrayList<StratigraphicRange> sranges = new ArrayList<>();
+        for (String name : new String[] {"1", "2", "3"}) {
+            StratigraphicRange sr = new StratigraphicRange();
+            sr.setInputValue("firstOccurrence", new Taxon(name + "_first"));
+            sr.setInputValue("lastOccurrence", new Taxon(name + "_last"));
+            sranges.add(sr);
+        }
+        SRTree tree = new SRTree();
+        tree.setInputValue("stratigraphicRange", sranges);
+        tree.assignFrom(new TreeParser(newick, false));
+        return tree;
+    }
+
+    private static double[] heights(SRTree tree) {
+        double[] heights = new double[tree.getNodeCount()];
+        for (int i = 0; i < heights.length; i++)
+            heights[i] = tree.getNode(i).getHeight();
+        return heights;
+    }
+
+    private static List<List<Integer>> rangeNodeNrs(SRTree tree) {
+        List<List<Integer>> nodeNrs = new ArrayList<>();
+        for (StratigraphicRange range : tree.getSRanges())
+            nodeNrs.add(new ArrayList<>(range.getNodeNrs()));
+        return nodeNrs;
+    }
+
+    private static void assertRangesIntact(SRTree tree) {
+        for (StratigraphicRange range : tree.getSRanges()) {
+            List<Integer> nodeNrs = range.getNodeNrs();
+            assertEquals(range.getFirstOccurrenceID(), tree.getNode(nodeNrs.get(0)).getID());
+            assertEquals(range.getLastOccurrenceID(), tree.getNode(nodeNrs.get(nodeNrs.size() - 1)).getID());
+        }
+    }
+
+    @Test
+    public void testSwapExchangesTreesAndRanges() {
+        SRTree treeA = srTree("(((((A:3.4,2_last:0.0):1.0,2_first:0.0):0.7,(B:3.5,(3_last:1.7,3_first:0.0):0.8):1.6):0.55,1_last:0.0):0.85,1_first:0.0):0.5");
+        SRTree treeB = srTree("((((B:3.5,(3_last:1.7,3_first:0.0):0.8):1.3,((A:3.1,2_last:0.0):1.2,2_first:0.0):0.9):0.75,1_last:0.0):0.6,1_first:0.0):0.5");
+        RealParameter originA = new RealParameter("7.0");
+        RealParameter originB = new RealParameter("8.0");
+        State stateA = new State();
+        stateA.initByName("stateNode", treeA, "stateNode", originA);
+        State stateB = new State();
+        stateB.initByName("stateNode", treeB, "stateNode", originB);
+
+        String newickA = treeA.getRoot().toNewick();
+        String newickB = treeB.getRoot().toNewick();
+        assertFalse(newickA.equals(newickB));
+        double[] heightsA = heights(treeA);
+        double[] heightsB = heights(treeB);
+        List<List<Integer>> rangesA = rangeNodeNrs(treeA);
+        List<List<Integer>> rangesB = rangeNodeNrs(treeB);
+
+        SRTreeState[] buffersA = new SRTreeState[2];
+        SRTreeState[] buffersB = new SRTreeState[2];
+        SRCoupledMCMC.exchangeStates(stateA, buffersA, stateB, buffersB);
+
+        assertEquals(newickB, treeA.getRoot().toNewick());
+        assertEquals(newickA, treeB.getRoot().toNewick());
+        assertTrue(Arrays.equals(heightsB, heights(treeA)));
+        assertTrue(Arrays.equals(heightsA, heights(treeB)));
+        assertEquals(rangesB, rangeNodeNrs(treeA));
+        assertEquals(rangesA, rangeNodeNrs(treeB));
+        assertRangesIntact(treeA);
+        assertRangesIntact(treeB);
+        assertEquals(8.0, originA.getValue(), 0.0);
+        assertEquals(7.0, originB.getValue(), 0.0);
+
+        // swapping back with the same buffers restores both states
+        SRCoupledMCMC.exchangeStates(stateA, buffersA, stateB, buffersB);
+        assertEquals(newickA, treeA.getRoot().toNewick());
+        assertEquals(rangesA, rangeNodeNrs(treeA));
+        assertEquals(7.0, originA.getValue(), 0.0);
+    }
+}
@@ -1,6 +1,7 @@
 package treeannotator;
 
 import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeParser;
 import junit.framework.TestCase;
@@ -267,6 +268,116 @@ public class RelationshipSystemTest extends TestCase {
         System.out.println("TEST 2 PASSED: First occurrence creates ancestry, last occurrence does NOT!\n");
     }
 
+    /**
+     * Test 3: MCC tree annotation with sampled ancestors. The expected annotations are those
+     * of the recursive implementation, which collected the taxa below every node again;
+     * the annotation pass now takes them from its post-order stack.
+     *
+     * Posterior sample: the five trees of test 2, with heights. The annotated trees are
+     * one of each shape:
+     *   (F_first:0.0,(F_last:0.0,(G:1.0,H:1.0):1.0):1.0):1.0
+     *     - root: ancestry (F, {F,G,H}), 5/5, height 3
+     *     - F_last fake node: last occurrence, not annotated
+     *     - (G,H): orientation ({G}, {H}), 3/5, height 1
+     *   (F_first:0.0,((F_last:1.0,G:1.0):1.0,H:1.0):1.0):1.0
+     *     - root: ancestry (F, {F,G,H}), 5/5, height 3
+     *     - ((F_last,G),H): orientation ({F,G}, {H}), 2/5, height 2
+     *     - (F_last,G): orientation ({F}, {G}), 2/5, height 1
+     */
+    @Test
+    public void testAnnotationWithSampledAncestors() throws Exception {
+        String newick_Flast_SA = "(F_first:0.0,(F_last:0.0,(G:1.0,H:1.0):1.0):1.0):1.0";
+        String newick_Flast_tip = "(F_first:0.0,((F_last:1.0,G:1.0):1.0,H:1.0):1.0):1.0";
+        RelationshipSystem system = new RelationshipSystem();
+        for (int i = 0; i < 3; i++)
+            system.add(createRangeTree(newick_Flast_SA, "F_first", "F_last"), true);
+        for (int i = 0; i < 2; i++)
+            system.add(createRangeTree(newick_Flast_tip, "F_first", "F_last"), true);
+        system.calculatePosteriorProbabilities(5);
+
+        SRTree tree = createRangeTree(newick_Flast_SA, "F_first", "F_last");
+        system.annotateMCCTree(tree, true);
+        assertLeafAnnotations(tree);
+        assertAnnotation(nodeWithLeaves(tree, "F_first", "F_last", "G", "H"),
+                "posterior", 1.0, "relationship_type", "ancestry", "ancestor_taxon", "F",
+                "descendant_taxa", "{F,G,H}", "height_mean", 3.0, "height_median", 3.0,
+                "height_95%_HPD", new Object[]{3.0, 3.0}, "height_range", new Object[]{3.0, 3.0});
+        assertAnnotation(nodeWithLeaves(tree, "F_last", "G", "H"));
+        assertAnnotation(nodeWithLeaves(tree, "G", "H"),
+                "posterior", 0.6, "relationship_type", "orientation", "ancestral_taxa", "{G}",
+                "descendant_taxa", "{H}", "height_mean", 1.0, "height_median", 1.0,
+                "height_95%_HPD", new Object[]{1.0, 1.0}, "height_range", new Object[]{1.0, 1.0});
+
+        tree = createRangeTree(newick_Flast_tip, "F_first", "F_last");
+        system.annotateMCCTree(tree, true);
+        assertLeafAnnotations(tree);
+        assertAnnotation(nodeWithLeaves(tree, "F_first", "F_last", "G", "H"),
+                "posterior", 1.0, "relationship_type", "ancestry", "ancestor_taxon", "F",
+                "descendant_taxa", "{F,G,H}", "height_mean", 3.0, "height_median", 3.0,
+                "height_95%_HPD", new Object[]{3.0, 3.0}, "height_range", new Object[]{3.0, 3.0});
+        assertAnnotation(nodeWithLeaves(tree, "F_last", "G", "H"),
+                "posterior", 0.4, "relationship_type", "orientation", "ancestral_taxa", "{F,G}",
+                "descendant_taxa", "{H}", "height_mean", 2.0, "height_median", 2.0,
+                "height_95%_HPD", new Object[]{2.0, 2.0}, "height_range", new Object[]{2.0, 2.0});
+        assertAnnotation(nodeWithLeaves(tree, "F_last", "G"),
+                "posterior", 0.4, "relationship_type", "orientation", "ancestral_taxa", "{F}",
+                "descendant_taxa", "{G}", "height_mean", 1.0, "height_median", 1.0,
+                "height_95%_HPD", new Object[]{1.0, 1.0}, "height_range", new Object[]{1.0, 1.0});
+
+        // without details only the posterior and the heights are annotated
+        tree = createRangeTree(newick_Flast_SA, "F_first", "F_last");
+        system.annotateMCCTree(tree, false);
+        assertAnnotation(nodeWithLeaves(tree, "G", "H"),
+                "posterior", 0.6, "height_mean", 1.0, "height_median", 1.0,
+                "height_95%_HPD", new Object[]{1.0, 1.0}, "height_range", new Object[]{1.0, 1.0});
+    }
+
+    /**
+     * Helper: The internal node with exactly the given leaves below it.
+     */
+    private Node nodeWithLeaves(SRTree tree, String... ids) {
+        Set<String> expected = new TreeSet<>(Arrays.asList(ids));
+        for (Node node : tree.getInternalNodes()) {
+            Set<String> leaves = new TreeSet<>();
+            for (Node leaf : node.getAllLeafNodes())
+                leaves.add(leaf.getID());
+            if (leaves.equals(expected))
+                return node;
+        }
+        fail("No node with leaves " + expected);
+        return null;
+    }
+
+    /**
+     * Helper: Tips are annotated with the name of their taxon, without _first or _last.
+     */
+    private void assertLeafAnnotations(SRTree tree) {
+        for (Node leaf : tree.getExternalNodes()) {
+            String taxon = leaf.getID().replace("_first", "").replace("_last", "");
+            assertAnnotation(leaf, "taxon", taxon);
+            assertEquals("taxon=" + taxon, leaf.metaDataString);
+        }
+    }
+
+    /**
+     * Helper: The node carries exactly the given metadata, as name, value pairs.
+     */
+    private void assertAnnotation(Node node, Object... namesAndValues) {
+        Set<String> names = new TreeSet<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            String name = (String) namesAndValues[i];
+            Object expected = namesAndValues[i + 1];
+            Object actual = node.getMetaData(name);
+            names.add(name);
+            if (expected instanceof Object[]) {
+                assertTrue(name + " of node " + node.getNr(), Arrays.equals((Object[]) expected, (Object[]) actual));
+            } else {
+                assertEquals(name + " of node " + node.getNr(), expected, actual);
+            }
+        }
+        assertEquals(names, new TreeSet<>(node.getMetaDataNames()));
+    }
+
     /**
      * Helper: Create an SRTree from Newick with singleton taxa (no ranges).
      * Each singleton taxon (A, B, C) needs to be registered as a single-fossil range.
@@ -0,0 +1,190 @@
+package util;
+
+import beast.base.evolution.tree.Node;
+import junit.framework.TestCase;
+import org.junit.Test;
+import sr.evolution.tree.SRNode;
+import sr.util.TreeTraversal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the iterative traversals against recursive ones. Run main to time both on
+ * balanced and caterpillar trees; the timings are not part of the tests.
+ */
+public class TreeTraversalTest extends TestCase {
+
+    private static final int TIPS = 5000;
+    private static final int REPEATS = 50;
+
+    private int nextNr;
+
+    private SRNode leaf(double height) {
+        SRNode node = new SRNode();
+        node.setNr(nextNr);
+        node.setID("t" + nextNr);
+        nextNr++;
+        node.setHeight(height);
+        return node;
+    }
+
+    private SRNode join(SRNode left, SRNode right, double height) {
+        SRNode node = new SRNode();
+        node.setHeight(height);
+        node.addChild(left);
+        node.addChild(right);
+        return node;
+    }
+
+    /**
+     * Each tip joins the tree one unit above the previous internal node, so the depth is linear in the tip count.
+     */
+    private SRNode caterpillar(int tips) {
+        nextNr = 0;
+        SRNode root = leaf(0.0);
+        for (int i = 1; i < tips; i++)
+            root = join(root, leaf(0.0), i);
+        numberInternalNodes(root, tips);
+        return root;
+    }
+
+    private SRNode balanced(int tips) {
+        nextNr = 0;
+        List<SRNode> level = new ArrayList<>();
+        for (int i = 0; i < tips; i++)
+            level.add(leaf(0.0));
+        double height = 1.0;
+        while (level.size() > 1) {
+            List<SRNode> next = new ArrayList<>();
+            for (int i = 0; i + 1 < level.size(); i += 2)
+                next.add(join(level.get(i), level.get(i + 1), height));
+            if (level.size() % 2 == 1)
+                next.add(level.get(level.size() - 1));
+            level = next;
+            height += 1.0;
+        }
+        numberInternalNodes(level.get(0), tips);
+        return level.get(0);
+    }
+
+    private void numberInternalNodes(Node root, int tips) {
+        int nr = tips;
+        for (Node node : TreeTraversal.postOrder(root))
+            if (!node.isLeaf())
+                node.setNr(nr++);
+    }
+
+    private void recursivePostOrder(Node node, List<Node> order) {
+        for (Node child : node.getChildren())
+            recursivePostOrder(child, order);
+        order.add(node);
+    }
+
+    private void recursivePreOrder(Node node, List<Node> order) {
+        order.add(node);
+        for (Node child : node.getChildren())
+            recursivePreOrder(child, order);
+    }
+
+    private void assertSameOrder(List<Node> expected, Node[] actual) {
+        assertEquals(expected.size(), actual.length);
+        for (int i = 0; i < actual.length; i++)
+            assertSame(expected.get(i), actual[i]);
+    }
+
+    @Test
+    public void testOrdersMatchRecursion() {
+        for (SRNode root : new SRNode[]{balanced(257), caterpillar(257)}) {
+            List<Node> post = new ArrayList<>();
+            recursivePostOrder(root, post);
+            assertSameOrder(post, TreeTraversal.postOrder(root));
+
+            List<Node> pre = new ArrayList<>();
+            recursivePreOrder(root, pre);
+            assertSameOrder(pre, TreeTraversal.preOrder(root));
+        }
+    }
+
+    @Test
+    public void testFlatIndexOrders() {
+        SRNode root = balanced(100);
+        Node[] nodes = TreeTraversal.preOrder(root);
+        int[] left = new int[nodes.length];
+        int[] right = new int[nodes.length];
+        for (Node node : nodes) {
+            left[node.getNr()] = node.isLeaf() ? -1 : node.getChild(0).getNr();
+            right[node.getNr()] = node.isLeaf() ? -1 : node.getChild(1).getNr();
+        }
+        int[] flat = TreeTraversal.postOrderNrs(root.getNr(), left, right);
+        Node[] post = TreeTraversal.postOrder(root);
+        assertEquals(post.length, flat.length);
+        for (int i = 0; i < flat.length; i++)
+            assertEquals(post[i].getNr(), flat[i]);
+
+        flat = TreeTraversal.preOrderNrs(root.getNr(), left, right);
+        assertEquals(nodes.length, flat.length);
+        for (int i = 0; i < flat.length; i++)
+            assertEquals(nodes[i].getNr(), flat[i]);
+    }
+
+    @Test
+    public void testShortNewick() {
+        nextNr = 0;
+        SRNode root = join(join(leaf(0.0), leaf(0.0), 1.0), leaf(0.0), 2.0);
+        numberInternalNodes(root, 3);
+        assertEquals("((1:1.0,2:1.0):1.0,3:2.0):0.0", root.toShortNewickForLog(false));
+        assertEquals("((1:1.0,2:1.0)4:1.0,3:2.0)5:0.0", root.toShortNewickForLog(true));
+    }
+
+    @Test
+    public void testDeepCaterpillarNewick() {
+        // deep enough to overflow the recursive writer on a default thread stack
+        SRNode root = caterpillar(100000);
+        String newick = root.toShortNewickForLog(false);
+        assertTrue(newick.startsWith("((((("));
+        assertTrue(newick.endsWith(":0.0"));
+    }
+
+    /**
+     * Times recursive and iterative post-order and the short Newick writer on 5000-tip trees.
+     */
+    public static void main(String[] args) {
+        TreeTraversalTest test = new TreeTraversalTest();
+        test.benchmark("balanced", test.balanced(TIPS));
+        test.benchmark("caterpillar", test.caterpillar(TIPS));
+    }
+
+    private void benchmark(String shape, SRNode root) {
+        // warm up both implementations
+        for (int r = 0; r < REPEATS; r++) {
+            recursivePostOrder(root, new ArrayList<>());
+            TreeTraversal.postOrder(root);
+        }
+
+        long start = System.nanoTime();
+        long visited = 0;
+        for (int r = 0; r < REPEATS; r++) {
+            List<Node> order = new ArrayList<>();
+            recursivePostOrder(root, order);
+            visited += order.size();
+        }
+        long recursive = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int r = 0; r < REPEATS; r++)
+            visited -= TreeTraversal.postOrder(root).length;
+        long iterative = System.nanoTime() - start;
+        if (visited != 0)
+            throw new IllegalStateException("The traversals visited different numbers of nodes");
+
+        start = System.nanoTime();
+        for (int r = 0; r < REPEATS; r++)
+            root.toShortNewickForLog(false);
+        long newick = System.nanoTime() - start;
+
+        System.out.printf("%s tree, %d tips: recursive post-order %.3f ms, iterative post-order %.3f ms, " +
+                        "short newick %.3f ms (per traversal)%n", shape, TIPS,
+                recursive / 1e6 / REPEATS, iterative / 1e6 / REPEATS, newick / 1e6 / REPEATS);
+    }
+}
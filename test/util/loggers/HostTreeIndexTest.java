@@ -0,0 +1,128 @@
+package util.loggers;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import junit.framework.TestCase;
+import org.junit.Test;
+import sr.util.loggers.HostTreeIndex;
+import sr.util.loggers.SpeciationAnalyser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the transmissions and speciation times from the resolved walks of
+ * HostTreeIndex equal those of the per-leaf walks, both on int host IDs and on the
+ * host strings as walked by SpeciationAnalyser.
+ */
+public class HostTreeIndexTest extends TestCase {
+
+    private static final String[] HOSTS = {"1", "2", "3", "4", "5"};
+    private static final String[] ORIENTATIONS = {"left", "right", "donor", "recipient"};
+
+    private Random random;
+    private List<Node> leaves;
+    private List<Node> internalNodes;
+
+    private String hostLabel() {
+        if (random.nextDouble() < 0.2)
+            return "unsampled";
+        String host = HOSTS[random.nextInt(HOSTS.length)];
+        // numeric hosts come back from the tree parser as doubles
+        return random.nextBoolean() ? host : host + ".0";
+    }
+
+    private void annotate(Node node, String host) {
+        node.setMetaData("host", host);
+        node.metaDataString = "orientation=" + ORIENTATIONS[random.nextInt(ORIENTATIONS.length)] + ",host=" + host;
+    }
+
+    private Node leaf(double height) {
+        Node node = new Node();
+        String host = HOSTS[random.nextInt(HOSTS.length)];
+        node.setID(host + "_" + leaves.size());
+        node.setHeight(height);
+        annotate(node, random.nextBoolean() ? host : host + ".0");
+        leaves.add(node);
+        return node;
+    }
+
+    private Node subtree(double height, int depth) {
+        if (depth > 12 || (depth > 1 && random.nextDouble() < 0.25))
+            return leaf(height);
+
+        Node node = new Node();
+        node.setHeight(height);
+        annotate(node, hostLabel());
+        internalNodes.add(node);
+        double r = random.nextDouble();
+        if (r < 0.15) {
+            // unobserved transmission
+            node.addChild(subtree(height - random.nextDouble(), depth + 1));
+        } else if (r < 0.35) {
+            // sampled ancestor
+            node.addChild(leaf(height));
+            node.addChild(subtree(height - random.nextDouble(), depth + 1));
+        } else {
+            node.addChild(subtree(height - random.nextDouble(), depth + 1));
+            node.addChild(subtree(height - random.nextDouble(), depth + 1));
+        }
+        return node;
+    }
+
+    private Tree randomTree() {
+        leaves = new ArrayList<>();
+        internalNodes = new ArrayList<>();
+        Node root = subtree(100.0, 0);
+        // leaf numbers are not in tree order, getExternalNodes() order matters for overwritten cells
+        Collections.shuffle(leaves, random);
+        int nr = 0;
+        for (Node leaf : leaves)
+            leaf.setNr(nr++);
+        for (Node node : internalNodes)
+            node.setNr(nr++);
+        return new Tree(root);
+    }
+
+    @Test
+    public void testSameAsPerLeafWalk() {
+        random = new Random(127);
+        List<String> hostsList = new ArrayList<>(Arrays.asList(HOSTS));
+        hostsList.add("unsampled");
+        Collections.shuffle(hostsList, random);
+        List<String> hostsListNoUnsampled = new ArrayList<>(hostsList);
+        hostsListNoUnsampled.remove("unsampled");
+        HostTreeIndex index = new HostTreeIndex(hostsList, hostsListNoUnsampled);
+        int size = hostsList.size();
+
+        for (int t = 0; t < 500; t++) {
+            Tree tree = randomTree();
+
+            int[] stringTransmissions = new int[size * size];
+            double[] stringTimes = new double[size - 1];
+            for (Node leaf : tree.getExternalNodes()) {
+                SpeciationAnalyser.fillTransmissions(leaf, stringTransmissions, hostsList);
+                SpeciationAnalyser.fillInfectionTimes(leaf, stringTimes, hostsListNoUnsampled);
+            }
+
+            index.index(tree);
+            int[] walkedTransmissions = new int[size * size];
+            double[] walkedTimes = new double[size - 1];
+            index.walkTransmissions(walkedTransmissions);
+            index.walkSpeciationTimes(walkedTimes);
+
+            int[] resolvedTransmissions = new int[size * size];
+            double[] resolvedTimes = new double[size - 1];
+            index.fillTransmissions(resolvedTransmissions);
+            index.fillSpeciationTimes(resolvedTimes);
+
+            assertEquals(Arrays.toString(stringTransmissions), Arrays.toString(walkedTransmissions));
+            assertEquals(Arrays.toString(stringTransmissions), Arrays.toString(resolvedTransmissions));
+            assertEquals(Arrays.toString(stringTimes), Arrays.toString(walkedTimes));
+            assertEquals(Arrays.toString(stringTimes), Arrays.toString(resolvedTimes));
+        }
+    }
+}